@@ -0,0 +1,163 @@
+package bazam;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Makes the inputs of the benchmarks: synthetic audio from SyntheticCorpus, and synthetic indexes of any
+ * number of tracks. Everything is generated from a seed, so every run and every fork sees the same data.
+ * @author Brook
+ *
+ */
+public class BenchData
+{
+	/** The frame rate of the synthetic audio */
+	public static final float FRAME_RATE = SyntheticCorpus.FRAME_RATE;
+
+	/** The length of a synthetic track, in seconds */
+	public static final double TRACK_SECONDS = 30;
+
+	/** The length of a synthetic query, in seconds */
+	public static final double QUERY_SECONDS = 10;
+
+	/**
+	 * Makes a signal of synthetic audio, read the way the application reads a file.
+	 * @param seed Picks the notes.
+	 * @param seconds The length of the audio.
+	 * @return The signal.
+	 */
+	public static Signal signal(long seed, double seconds)
+	{
+		return SyntheticCorpus.toSignal(SyntheticCorpus.track(seed, seconds), "synthetic-" + seed);
+	}
+
+	/**
+	 * Makes the hash points of a synthetic track without computing its spectrogram, so indexes of many
+	 * thousands of tracks can be built quickly. Like real ones, the hash points come in time order and their
+	 * frequencies are skewed towards the low end of the spectrum, which makes some probes far more common
+	 * than others.
+	 * @param trackNo The track; the same track always has the same hash points.
+	 * @param hashesPerTrack The number of hash points.
+	 * @return The hash points.
+	 */
+	public static ArrayList<HashPoint> hashPoints(int trackNo, int hashesPerTrack)
+	{
+		Random random = new Random(0x5eed0000L + trackNo);
+		int spectra = (int)(TRACK_SECONDS*Resampler.fingerprintRate(FRAME_RATE)/Spectrogram.SAMPLE_SIZE);
+		ArrayList<HashPoint> hashPoints = new ArrayList<HashPoint>(hashesPerTrack);
+		for(int i = 0; i < hashesPerTrack; i++){
+			int time = (int)((long)i*spectra/hashesPerTrack)*Spectrogram.SAMPLE_SIZE;
+			hashPoints.add(new HashPoint(randomProbe(random), time));
+		}
+		return hashPoints;
+	}
+
+	/**
+	 * Makes a query out of a stretch of a synthetic track: the hash points of QUERY_SECONDS of the track,
+	 * renumbered from the start of the stretch, with a fraction of them replaced by noise.
+	 * @param trackNo The track the query comes from.
+	 * @param hashesPerTrack The number of hash points of the track.
+	 * @param noise The fraction of the hash points that are replaced by random ones.
+	 * @param seed Picks the stretch and the noise.
+	 * @return The hash points of the query.
+	 */
+	public static ArrayList<HashPoint> query(int trackNo, int hashesPerTrack, double noise, long seed)
+	{
+		Random random = new Random(seed);
+		ArrayList<HashPoint> track = hashPoints(trackNo, hashesPerTrack);
+		int length = (int)(track.size()*QUERY_SECONDS/TRACK_SECONDS);
+		int start = random.nextInt(track.size() - length + 1);
+		int startTime = track.get(start).index;
+		ArrayList<HashPoint> query = new ArrayList<HashPoint>(length);
+		for(int i = start; i < start+length; i++){
+			HashPoint hash = track.get(i);
+			Probe probe = random.nextDouble() < noise ? randomProbe(random) : hash.probe;
+			query.add(new HashPoint(probe, hash.index - startTime));
+		}
+		return query;
+	}
+
+	/**
+	 * Makes a random probe inside the target zone used by SpectrogramProbesExtractor.
+	 * @param random The source of randomness.
+	 * @return The probe.
+	 */
+	private static Probe randomProbe(Random random)
+	{
+		double r = random.nextDouble();
+		int f1 = (int)(r*r*(Spectrogram.POWER_SIZE-Probe.FREQ_OFFSET-1));
+		int f2 = f1 + 1 + random.nextInt(Probe.FREQ_OFFSET);
+		int dt = (1 + random.nextInt(Probe.TIME_OFFSET))*Spectrogram.SAMPLE_SIZE;
+		return new Probe(dt, f1, f2);
+	}
+
+	/**
+	 * Builds an index of synthetic tracks 0 to tracks-1. The postings are loaded in bulk through the index
+	 * file format, as if the index had been saved and loaded again, since inserting the tracks one by one
+	 * would take far longer than the benchmark itself at 100,000 tracks.
+	 * @param tracks The number of tracks.
+	 * @param hashesPerTrack The number of hash points of each track.
+	 * @return The index.
+	 * @throws IOException If the temporary file cannot be written or read.
+	 */
+	public static CachedIndexMap index(int tracks, int hashesPerTrack) throws IOException
+	{
+		//group the postings by probe, counting first so each group is one array
+		HashMap<Probe, int[]> counts = new HashMap<Probe, int[]>();
+		for(int t = 0; t < tracks; t++){
+			for(HashPoint hash : hashPoints(t, hashesPerTrack)){
+				int[] count = counts.get(hash.probe);
+				if(count == null){
+					count = new int[1];
+					counts.put(hash.probe, count);
+				}
+				count[0]++;
+			}
+		}
+		HashMap<Probe, int[]> postings = new HashMap<Probe, int[]>();//track and index pairs
+		HashMap<Probe, int[]> filled = new HashMap<Probe, int[]>();
+		for(Map.Entry<Probe, int[]> entry : counts.entrySet()){
+			postings.put(entry.getKey(), new int[2*entry.getValue()[0]]);
+			filled.put(entry.getKey(), new int[1]);
+		}
+		counts = null;
+		for(int t = 0; t < tracks; t++){
+			for(HashPoint hash : hashPoints(t, hashesPerTrack)){
+				int[] pairs = postings.get(hash.probe);
+				int[] n = filled.get(hash.probe);
+				pairs[n[0]++] = t;
+				pairs[n[0]++] = hash.index;
+			}
+		}
+		filled = null;
+		File file = File.createTempFile("bench-index", ".bci");
+		try{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			try{
+				out.writeInt(CachedIndexMap.MAGIC);
+				out.writeInt(postings.size());
+				for(Map.Entry<Probe, int[]> entry : postings.entrySet()){
+					Probe probe = entry.getKey();
+					int[] pairs = entry.getValue();
+					out.writeInt(probe.getDt());
+					out.writeInt(probe.getFirstFrequency());
+					out.writeInt(probe.getSecondFrequency());
+					out.writeInt(pairs.length/2);
+					for(int i = 0; i < pairs.length; i++){
+						out.writeInt(pairs[i]);
+					}
+				}
+			} finally{
+				out.close();
+			}
+			postings = null;
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			try{
+				return CachedIndexMap.readFrom(in);
+			} finally{
+				in.close();
+			}
+		} finally{
+			file.delete();
+		}
+	}
+}
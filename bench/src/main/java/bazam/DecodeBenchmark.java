@@ -0,0 +1,76 @@
+package bazam;
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+import javax.sound.sampled.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures decoding 30 seconds of PCM audio in memory to mono samples, for the sample formats of common
+ * files: 16-bit stereo as on a CD, 24-bit stereo from a studio, and 32-bit float from an editor.
+ * @author Brook
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark
+{
+	/** The sample format: signed bits per sample, or float */
+	@Param({"16", "24", "float"})
+	public String sample;
+
+	/** The format of the audio */
+	private AudioFormat format;
+
+	/** The encoded audio */
+	private byte[] pcm;
+
+	@Setup
+	public void setUp()
+	{
+		boolean floating = sample.equals("float");
+		int bits = floating ? 32 : Integer.parseInt(sample);
+		format = new AudioFormat(floating ? AudioFormat.Encoding.PCM_FLOAT : AudioFormat.Encoding.PCM_SIGNED,
+				BenchData.FRAME_RATE, bits, 2, 2*bits/8, BenchData.FRAME_RATE, false);
+		double[] left = SyntheticCorpus.track(3, BenchData.TRACK_SECONDS);
+		double[] right = SyntheticCorpus.track(4, BenchData.TRACK_SECONDS);
+		ByteBuffer bytes = ByteBuffer.allocate(left.length*format.getFrameSize()).order(ByteOrder.LITTLE_ENDIAN);
+		for(int i = 0; i < left.length; i++){
+			put(bytes, left[i], bits, floating);
+			put(bytes, right[i], bits, floating);
+		}
+		pcm = bytes.array();
+	}
+
+	/**
+	 * Encodes one sample.
+	 * @param bytes Receives the sample.
+	 * @param value The sample, between -1 and 1.
+	 * @param bits The size of the sample.
+	 * @param floating Whether the sample is a float.
+	 */
+	private static void put(ByteBuffer bytes, double value, int bits, boolean floating)
+	{
+		if(floating){
+			bytes.putFloat((float)value);
+			return;
+		}
+		int s = (int)Math.round(Math.max(-1, Math.min(1, value))*((1 << (bits-1)) - 1));
+		for(int b = 0; b < bits; b += 8){
+			bytes.put((byte)(s >> b));
+		}
+	}
+
+	@Benchmark
+	public SampleStore decode() throws IOException
+	{
+		AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(pcm), format, pcm.length/format.getFrameSize());
+		return AudioClip.fromStream(in, "bench").getSamples();
+	}
+}
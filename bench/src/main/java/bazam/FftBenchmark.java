@@ -0,0 +1,58 @@
+package bazam;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.emory.mathcs.jtransforms.fft.FloatFFT_1D;
+
+/**
+ * Measures the work done for each frame of audio: the single-precision FFT alone with one plan kept across
+ * frames, and a whole PowerSpectrum, which runs the FFT with its thread's plan, computes the powers and picks
+ * the local peaks.
+ * @author Brook
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FftBenchmark
+{
+	/** One frame of synthetic audio, as interleaved complex values with zero imaginary parts */
+	private float[] frame;
+
+	/** The frame handed to the transform, which works in place */
+	private float[] work;
+
+	/** An FFT plan kept across frames */
+	private FloatFFT_1D fft;
+
+	@Setup
+	public void setUp()
+	{
+		double[] samples = SyntheticCorpus.track(1, 1);
+		frame = new float[2*Spectrogram.SAMPLE_SIZE];
+		for(int j = 0; j < Spectrogram.SAMPLE_SIZE; j++){
+			frame[2*j] = (float)samples[j];
+		}
+		work = new float[frame.length];
+		fft = new FloatFFT_1D(Spectrogram.SAMPLE_SIZE);
+	}
+
+	@Benchmark
+	public float[] fft()
+	{
+		System.arraycopy(frame, 0, work, 0, frame.length);
+		fft.complexForward(work);
+		return work;
+	}
+
+	@Benchmark
+	public PowerSpectrum powerSpectrum()
+	{
+		System.arraycopy(frame, 0, work, 0, frame.length);
+		return new PowerSpectrum(work, 0);
+	}
+}
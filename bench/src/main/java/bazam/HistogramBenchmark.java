@@ -0,0 +1,58 @@
+package bazam;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the accumulation of votes in the offset histogram of one track, per vote. Like a real match,
+ * a share of the votes fall on the true offset and the rest are spread over the offsets a 30 second
+ * track can have.
+ * @author Brook
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramBenchmark
+{
+	/** The number of votes per histogram */
+	private static final int VOTES = 1024;
+
+	/** The share of the votes that fall on the true offset */
+	@Param({"0.05", "0.5"})
+	public double matching;
+
+	/** The offsets voted for, in samples */
+	private int[] deltas;
+
+	@Setup
+	public void setUp()
+	{
+		Random random = new Random(4);
+		int spectra = (int)(BenchData.TRACK_SECONDS*BenchData.FRAME_RATE/Spectrogram.SAMPLE_SIZE);
+		int trueDelta = -200*Spectrogram.SAMPLE_SIZE;
+		deltas = new int[VOTES];
+		for(int i = 0; i < VOTES; i++){
+			if(random.nextDouble() < matching){
+				deltas[i] = trueDelta;
+			} else {
+				deltas[i] = (random.nextInt(2*spectra) - spectra)*Spectrogram.SAMPLE_SIZE;
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(VOTES)
+	public int accumulate()
+	{
+		Histogram histogram = new Histogram();
+		for(int i = 0; i < deltas.length; i++){
+			histogram.matchAt(deltas[i]);
+		}
+		return histogram.getBestCount();
+	}
+}
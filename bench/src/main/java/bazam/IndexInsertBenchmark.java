@@ -0,0 +1,70 @@
+package bazam;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.sound.sampled.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures how fast tracks are added to an index, in tracks per second. Each iteration starts from an
+ * empty index that grows by one track per call, so the rate includes the cost of the posting lists
+ * getting longer. indexHashPoints is the insert alone; indexFile also reads and fingerprints a WAV file.
+ * @author Brook
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexInsertBenchmark
+{
+	/** The hash points of a fingerprinted synthetic track */
+	private ArrayList<HashPoint> hashPoints;
+
+	/** A synthetic track on disk */
+	private File wav;
+
+	/** The index being filled */
+	private CachedIndexMap index;
+
+	/** The number of the next track to add */
+	private int nextTrack;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		Signal signal = BenchData.signal(5, BenchData.TRACK_SECONDS);
+		hashPoints = new SpectrogramProbesExtractor(new Spectrogram(signal)).getHashPoints();
+		wav = File.createTempFile("bench-track", ".wav");
+		SyntheticCorpus.writeWav(SyntheticCorpus.track(5, BenchData.TRACK_SECONDS), wav);
+	}
+
+	@Setup(Level.Iteration)
+	public void emptyIndex()
+	{
+		index = new CachedIndexMap();
+		nextTrack = 0;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		wav.delete();
+	}
+
+	@Benchmark
+	public int indexHashPoints()
+	{
+		return index.indexHashPoints(hashPoints, new TrackID(nextTrack++));
+	}
+
+	@Benchmark
+	public int indexFile() throws UnsupportedAudioFileException, IOException
+	{
+		return index.indexFile(wav, new TrackID(nextTrack++));
+	}
+}
@@ -0,0 +1,34 @@
+package bazam;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the pairing of the peaks of a 30 second track into hash points.
+ * @author Brook
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeHashingBenchmark
+{
+	/** The spectrogram of a synthetic track, with its peaks extracted */
+	private Spectrogram spectrogram;
+
+	@Setup
+	public void setUp()
+	{
+		spectrogram = new Spectrogram(BenchData.signal(3, BenchData.TRACK_SECONDS));
+	}
+
+	@Benchmark
+	public ArrayList<HashPoint> hash()
+	{
+		return new SpectrogramProbesExtractor(spectrogram).getHashPoints();
+	}
+}
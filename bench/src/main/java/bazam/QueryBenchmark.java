@@ -0,0 +1,81 @@
+package bazam;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the latency of matching a 10 second query against synthetic indexes of 1,000, 10,000 and 100,000
+ * tracks, with early termination and with every hash looked up. The queries are stretches of indexed tracks
+ * with some of their hash points replaced by noise, and go through the index in turn so the same posting
+ * lists are not always the ones in the processor caches.
+ * <p>
+ * The index of 100,000 tracks holds tens of millions of postings; the forked JVM is given a large heap.
+ * @author Brook
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g"})
+public class QueryBenchmark
+{
+	/** The number of queries gone through in turn */
+	private static final int QUERIES = 64;
+
+	/** The share of the hash points of a query that are noise */
+	private static final double NOISE = 0.5;
+
+	/** The number of tracks in the index */
+	@Param({"1000", "10000", "100000"})
+	public int tracks;
+
+	/** The number of hash points of each track */
+	@Param({"200"})
+	public int hashesPerTrack;
+
+	/** The index */
+	private CachedIndexMap index;
+
+	/** The queries */
+	private ArrayList<ArrayList<HashPoint>> queries = new ArrayList<ArrayList<HashPoint>>();
+
+	/** The number of the next query */
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		index = BenchData.index(tracks, hashesPerTrack);
+		Random random = new Random(6);
+		for(int i = 0; i < QUERIES; i++){
+			queries.add(BenchData.query(random.nextInt(tracks), hashesPerTrack, NOISE, random.nextLong()));
+		}
+	}
+
+	/**
+	 * Gets the next query in turn.
+	 * @return The hash points of the query.
+	 */
+	private ArrayList<HashPoint> nextQuery()
+	{
+		ArrayList<HashPoint> query = queries.get(next);
+		next = (next+1) % QUERIES;
+		return query;
+	}
+
+	@Benchmark
+	public MatchResults queryEarlyTermination()
+	{
+		return index.query(nextQuery(), "query", true);
+	}
+
+	@Benchmark
+	public MatchResults queryExhaustive()
+	{
+		return index.query(nextQuery(), "query", false);
+	}
+}
@@ -0,0 +1,38 @@
+package bazam;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures resampling 30 seconds of mono audio to the canonical rate from the rates of common files: 22.05 and
+ * 44.1 kHz, which are plain decimations, and 48 kHz, which takes every phase of the polyphase filter.
+ * @author Brook
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResampleBenchmark
+{
+	/** The frame rate of the audio */
+	@Param({"22050", "44100", "48000"})
+	public double rate;
+
+	/** The audio */
+	private double[] samples;
+
+	@Setup
+	public void setUp()
+	{
+		samples = SyntheticCorpus.track(5, BenchData.TRACK_SECONDS*rate/BenchData.FRAME_RATE);
+	}
+
+	@Benchmark
+	public double[] resample()
+	{
+		return Resampler.resample(samples, rate, Resampler.CANONICAL_RATE);
+	}
+}
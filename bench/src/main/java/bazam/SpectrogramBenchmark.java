@@ -0,0 +1,45 @@
+package bazam;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the spectrogram of a 30 second track: building it, which transforms every frame and extracts
+ * the peaks, and extracting the peaks again from spectra already computed.
+ * @author Brook
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpectrogramBenchmark
+{
+	/** A synthetic track */
+	private Signal signal;
+
+	/** The spectrogram of the track */
+	private Spectrogram spectrogram;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		signal = BenchData.signal(2, BenchData.TRACK_SECONDS);
+		spectrogram = new Spectrogram(signal);
+	}
+
+	@Benchmark
+	public Spectrogram spectrogram()
+	{
+		return new Spectrogram(signal);
+	}
+
+	@Benchmark
+	public int extractPeaks()
+	{
+		spectrogram.extractPeaks();
+		return spectrogram.getAllPeaks().size();
+	}
+}
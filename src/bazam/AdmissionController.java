@@ -0,0 +1,126 @@
+package bazam;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounds the number of queries that run at the same time and the number that wait for their turn. A query
+ * that finds the queue full is rejected at once, and a query that would wait past its deadline gives up,
+ * so under overload the admitted queries still finish on time and the others fail fast.
+ * @author Brook
+ *
+ */
+public class AdmissionController
+{
+	/** Grants the right to run */
+	private Semaphore running;
+
+	/** The number of queries waiting to run */
+	private AtomicInteger waiting = new AtomicInteger();
+
+	/** The most queries that may wait to run */
+	private int maxWaiting;
+
+	/** The number of queries admitted */
+	private AtomicLong admitted = new AtomicLong();
+
+	/** The number of queries rejected because the queue was full */
+	private AtomicLong rejected = new AtomicLong();
+
+	/** The number of queries that reached their deadline while waiting */
+	private AtomicLong timedOut = new AtomicLong();
+
+	/**
+	 * Constructs an admission controller.
+	 * @param maxRunning The most queries that may run at the same time.
+	 * @param maxWaiting The most queries that may wait to run.
+	 */
+	public AdmissionController(int maxRunning, int maxWaiting)
+	{
+		running = new Semaphore(maxRunning, true);
+		this.maxWaiting = maxWaiting;
+	}
+
+	/**
+	 * Admits a query, waiting for a query to finish if too many are running. Every query that is
+	 * admitted must call release once it is done.
+	 * @param deadline The deadline of the query.
+	 * @return True if the query was admitted, false if it was rejected.
+	 */
+	public boolean admit(Deadline deadline)
+	{
+		if(running.tryAcquire()){
+			admitted.incrementAndGet();
+			return true;
+		}
+		if(waiting.incrementAndGet() > maxWaiting){
+			waiting.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		try{
+			if(running.tryAcquire(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS)){
+				admitted.incrementAndGet();
+				return true;
+			}
+			timedOut.incrementAndGet();
+			return false;
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return false;
+		} finally{
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Lets the next query run. Called once for every query that was admitted.
+	 */
+	public void release()
+	{
+		running.release();
+	}
+
+	/**
+	 * Gets the number of queries waiting to run.
+	 * @return The length of the queue.
+	 */
+	public int getWaiting()
+	{
+		return waiting.get();
+	}
+
+	/**
+	 * Gets the number of queries admitted.
+	 * @return The number admitted.
+	 */
+	public long getAdmitted()
+	{
+		return admitted.get();
+	}
+
+	/**
+	 * Gets the number of queries rejected because the queue was full.
+	 * @return The number rejected.
+	 */
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * Gets the number of queries that reached their deadline while waiting.
+	 * @return The number timed out.
+	 */
+	public long getTimedOut()
+	{
+		return timedOut.get();
+	}
+
+	/**
+	 * Gets a string representation of the controller's counters.
+	 */
+	public String toString()
+	{
+		return ("Waiting: " + getWaiting() + " / Admitted: " + admitted + " / Rejected: " + rejected + " / Timed out: " + timedOut);
+	}
+}
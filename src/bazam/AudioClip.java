@@ -14,19 +14,48 @@ public class AudioClip
     /** Audio format associated with the clip. */
     private AudioFormat format;
 
-    /** Samples making up the clip. */
-    private double[] samples;
+    /** Samples making up the clip, as compact as their source allows. */
+    private SampleStore samples;
     
     /** Source data line */
     private SourceDataLine outputLine;    
 
     /**
-     * Create an empty audio clip of a given number of samples.
+     * Create an audio clip of the given samples.
      *
-     * @param length  The number of samples.
+     * @param samples  The samples.
+     * @param format  The format the clip is played back in.
      */
-    protected AudioClip(int length) {
-    	samples = new double[length];
+    protected AudioClip(SampleStore samples, AudioFormat format) {
+    	this.samples = samples;
+    	this.format = format;
+    }
+
+    /**
+     * Extract an audio clip from a WAV file, decoding its mapped samples directly.
+     *
+     * @param wav The WAV file.
+     * @return the extracted audio clip.
+     */
+    public static AudioClip fromWav(WavFile wav) {
+	SampleStore samples = SampleStore.forFormat(wav.getFormat(), wav.getFrameLength());
+	wav.read(samples);
+	return new AudioClip(samples, playableFormat(wav.getFormat()));
+    }
+
+    /**
+     * Gets the format a clip decoded from audio of some format is played back in: 
+     * 16-bit signed PCM at the same rate, mono or stereo.
+     *
+     * @param format The format of the decoded audio.
+     * @return The format itself if it is already 16-bit signed mono or stereo PCM.
+     */
+    private static AudioFormat playableFormat(AudioFormat format) {
+	int channels = Math.min(format.getChannels(), 2);
+	if(format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED) && format.getSampleSizeInBits() == 16
+		&& format.getChannels() == channels)
+	    return format;
+	return new AudioFormat(format.getSampleRate(), 16, channels, true, format.isBigEndian());
     }
 
     /**
@@ -38,9 +67,9 @@ public class AudioClip
     
     /**
      * Returns the samples for this current audio clip
-     * @return The sampled double values. 
+     * @return The store of the samples, which reads them out as double values. 
      */
-    public double[] getSamples()
+    public SampleStore getSamples()
     {
     	return samples;
     }
@@ -64,77 +93,74 @@ public class AudioClip
      */
     public static AudioClip fromStream(AudioInputStream in, String name)
 	throws IOException {
-	// Verify that the input stream has the format we need.
-	// Right now this is 16-bit signed PCM format.
-    //System.out.println(in.getFrameLength());
+	// Any PCM format is decoded to floating point, a block at a time,
+	// and kept as 16-bit or float samples depending on its bit depth.
+	// Stereo is reduced to mono by averaging the channel values.
 	AudioFormat format = in.getFormat();
-	if(format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED)
-	    throw new IllegalArgumentException("Signed PCM format required.");
-	int channels = format.getChannels();
-	if(channels != 1 && channels != 2)
-	    throw new IllegalArgumentException("Mono or stereo required.");
-	int bytesPerFrame = format.getFrameSize();
-	int bytesPerSample = bytesPerFrame/channels;
-	if(bytesPerSample != 2)
-	    throw new IllegalArgumentException("16-bit samples required.");
-
-	boolean bigEndian = format.isBigEndian();
-	long length = in.getFrameLength();
-	if(length > Integer.MAX_VALUE)
-	    throw new IllegalArgumentException("Clip too long");
+	SampleStore samples = SampleStore.forFormat(format, in.getFrameLength());
+	new PcmDecoder(format).decode(in, samples);
+	samples.trim();
+	return new AudioClip(samples, playableFormat(format));
+    }
 
-	// Convert the samples in the original stream to floating point.
-	// Stereo is reduced to mono by averaging the channel values.
-	AudioClip result = new AudioClip((int)length);
-	result.format = format;
-	byte[] buf = new byte[bytesPerFrame];
-	for(int i = 0; i < length; i++) {
-	    double v = 0.0;
-	    in.read(buf);
-	    for(int j = 0; j < channels; j++) {
-		byte b1 = buf[2*j];
-		byte b2 = buf[2*j+1];
-		if(!bigEndian) {
-		    byte tmp = b1;
-		    b1 = b2;
-		    b2 = tmp;
-		}
-		int s = ((b1<<8) | (b2&0xff));
-		v += (s/32768.0);
-	    }
-	    v /= channels;
-	    result.samples[i] = v;
-	}
-	return result;
+    /**
+     * Gets the number of frames of the clip.
+     * @return The number of samples.
+     */
+    public int getFrameLength()
+    {
+    	return samples.length();
     }
 
     /**
      * Create an audio input stream from the data in this AudioClip.
+     * The samples are converted to PCM a chunk at a time as the stream
+     * is read, so the clip is never held twice.
      *
-     * @param format The audio format to use to encode the data.
      * @return the audio input stream created from the data in this
      * Audio Clip.
      */
     public AudioInputStream toStream() {
-	// Verify that the input stream has the format we need.
-	// Right now this is 16-bit signed PCM format.
+	checkPlayable();
+	return
+	    new AudioInputStream(new PcmStream(),
+				 format, samples.length());
+    }
+
+    /**
+     * Verify that the clip is played back in a format it can be
+     * converted to: 16-bit signed PCM, mono or stereo.
+     */
+    private void checkPlayable() {
 	if(format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED)
 	    throw new IllegalArgumentException("Signed PCM format required.");
 	int channels = format.getChannels();
 	if(channels != 1 && channels != 2)
 	    throw new IllegalArgumentException("Mono or stereo required.");
-	int bytesPerFrame = format.getFrameSize();
-	int bytesPerSample = bytesPerFrame/channels;
-	if(bytesPerSample != 2)
+	if(format.getFrameSize() != 2*channels)
 	    throw new IllegalArgumentException("16-bit samples required.");
-	boolean bigEndian = format.isBigEndian();
+    }
 
-	// Reconstruct PCM samples from the clip and wrap them
-	// in an input stream.
-	byte[] result = new byte[samples.length * bytesPerFrame];
-	int off = 0;
-	for(int i = 0; i < samples.length; i++, off += bytesPerFrame) {
-	    double v = samples[i] * 32768.0;
+    /**
+     * Convert frames of the clip to PCM in the format of the clip.
+     *
+     * @param first The first frame.
+     * @param buffer Receives the frames.
+     * @param offset The position inside the buffer of the first frame.
+     * @param frames The largest number of frames.
+     * @return The number of frames converted, fewer than frames at the
+     * end of the clip.
+     */
+    public int read(int first, byte[] buffer, int offset, int frames) {
+	checkPlayable();
+	int channels = format.getChannels();
+	int bytesPerFrame = format.getFrameSize();
+	boolean bigEndian = format.isBigEndian();
+	double[] block = new double[Math.max(0, Math.min(frames, samples.length() - first))];
+	int n = samples.read(first, block, 0, block.length);
+	int off = offset;
+	for(int i = 0; i < n; i++, off += bytesPerFrame) {
+	    double v = block[i] * 32768.0;
 	    short s = v > Short.MAX_VALUE ? Short.MAX_VALUE : (short)v;
 	    byte b1 = (byte)((s>>8) & 0xff);
 	    byte b2 = (byte)(s & 0xff);
@@ -145,13 +171,54 @@ public class AudioClip
 	    }
 	    for(int j = 0; j < channels; j++) {
 		// If there is more than one channel, duplicate samples.
-		result[off+2*j] = b1;
-		result[off+2*j+1] = b2;
+		buffer[off+2*j] = b1;
+		buffer[off+2*j+1] = b2;
 	    }
 	}
-	return
-	    new AudioInputStream(new ByteArrayInputStream(result),
-				 format, samples.length);
+	return n;
+    }
+
+    /**
+     * The PCM bytes of the clip, converted a chunk at a time.
+     */
+    private class PcmStream extends InputStream {
+	/** The converted frames not yet read */
+	private byte[] chunk = new byte[Player.CHUNK_FRAMES * format.getFrameSize()];
+
+	/** The position of the next byte inside the chunk */
+	private int position = 0;
+
+	/** The number of bytes inside the chunk */
+	private int filled = 0;
+
+	/** The frame the next chunk starts at */
+	private int next = 0;
+
+	public int read() {
+	    byte[] b = new byte[1];
+	    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) {
+	    if(len == 0)
+		return 0;
+	    if(position == filled) {
+		int n = AudioClip.this.read(next, chunk, 0, Player.CHUNK_FRAMES);
+		if(n == 0)
+		    return -1;
+		next += n;
+		position = 0;
+		filled = n * format.getFrameSize();
+	    }
+	    int n = Math.min(len, filled - position);
+	    System.arraycopy(chunk, position, b, off, n);
+	    position += n;
+	    return n;
+	}
+
+	public int available() {
+	    return filled - position;
+	}
     }
 
     /**
@@ -0,0 +1,540 @@
+package bazam;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.sound.sampled.*;
+
+/**
+ * The command-line front end of Bazam. It runs on the core classes only, so it works on headless servers
+ * (-Djava.awt.headless=true) and in batch jobs. Every result is printed as one JSON object per line on the
+ * standard output; usage errors go to the standard error.
+ * <pre>
+ * bazam [--index FILE] index [--duplicates] FILE_OR_FOLDER...
+ * bazam [--index FILE] query [--top K] [--min-score N] FILE...
+ * bazam [--index FILE] stats [--hottest N] [--project TRACKS]...
+ * bazam [--index FILE] monitor [--follow] [FILE]
+ * bazam [--index FILE] serve [--port PORT]
+ * bazam [--index FILE] worker [--port PORT] [--first-track ID]
+ * bazam regress [--tracks N] [--queries N] [--seed S] [--min-score N] [--min-recall R] [--partitions N [--port PORT]]
+ * </pre>
+ * The index is kept in the file given by --index (bazam.idx by default). Indexing adds to an existing index
+ * and skips the files that are already in it. With --jfr FILE, any command runs under a Flight Recorder
+ * recording with the bundled profile, written to FILE when the process exits. Stats walks the whole index
+ * and also estimates it at each number of tracks given by --project. Monitor reads a stream of audio from FILE,
+ * or from the standard input without one, and prints a line whenever a track starts or stops playing on it;
+ * with --follow it follows a file that is still being written, until the process is stopped. Regress with
+ * --partitions also runs its queries through that many local workers, on the ports from --port on, and checks
+ * that their merged top matches are those of a single index. Regress fails when recall@1 is below --min-recall.
+ * @author Brook
+ *
+ */
+public class Bazam
+{
+	/** Exit status: the command succeeded and every query was matched */
+	public static final int EXIT_OK = 0;
+
+	/** Exit status: at least one query did not match any track */
+	public static final int EXIT_NO_MATCH = 1;
+
+	/** Exit status: the command line was invalid */
+	public static final int EXIT_USAGE = 2;
+
+	/** Exit status: the index or an audio file could not be read or written */
+	public static final int EXIT_ERROR = 3;
+
+	/** Exit status: the regression harness found too little recall, too many false positives, or partitions that disagree */
+	public static final int EXIT_REGRESSION = 4;
+
+	/** The index file used when none is given */
+	public static final String DEFAULT_INDEX = "bazam.idx";
+
+	/** The lowest score at which a query counts as matched, unless --min-score is given */
+	public static int DEFAULT_MIN_SCORE = MatchResults.MIN_SCORE;
+
+	/** How often a followed file is checked for more audio, in milliseconds */
+	public static long FOLLOW_POLL_MILLIS = 200;
+
+	/** How much of a Flight Recorder recording is kept, in minutes */
+	public static int JFR_MAX_AGE_MINUTES = 60;
+
+	/** Receives the JSON lines */
+	private PrintStream out;
+
+	/** The index file */
+	private File indexFile = new File(DEFAULT_INDEX);
+
+	/** The number of matches reported for each query */
+	private int top = 1;
+
+	/** The lowest score at which a query counts as matched */
+	private int minScore = DEFAULT_MIN_SCORE;
+
+	/** The port the identification service listens on */
+	private int port = 8080;
+
+	/** The global ID of the first track of a worker's partition */
+	private int firstTrack = 0;
+
+	/** The number of synthetic tracks indexed by the regression harness */
+	private int tracks = 50;
+
+	/** The number of queries run by the regression harness */
+	private int queries = 200;
+
+	/** Picks the synthetic tracks and queries of the regression harness */
+	private long seed = 1;
+
+	/** The lowest recall@1 at which the regression harness passes */
+	private double minRecall = RegressionHarness.MIN_RECALL;
+
+	/** The number of workers the regression harness splits its tracks across, or 0 for none */
+	private int partitions = 0;
+
+	/** The number of hottest hashes reported by stats */
+	private int hottest = IndexStatistics.HOTTEST;
+
+	/** The numbers of tracks stats projects the index to */
+	private ArrayList<Long> projections = new ArrayList<Long>();
+
+	/** The file a Flight Recorder recording is written to, or null not to record */
+	private File jfrFile = null;
+
+	/** Whether duplicates are linked as aliases while indexing */
+	private boolean detectDuplicates = false;
+
+	/** Whether monitor follows a file that is still being written */
+	private boolean follow = false;
+
+	/**
+	 * Constructs a front end that prints to the given stream.
+	 * @param out Receives the JSON lines.
+	 */
+	public Bazam(PrintStream out)
+	{
+		this.out = out;
+	}
+
+	/**
+	 * Runs a command.
+	 * @param args The command line.
+	 */
+	public static void main(String[] args)
+	{
+		System.exit(new Bazam(System.out).run(args));
+	}
+
+	/**
+	 * Runs a command.
+	 * @param args The command line.
+	 * @return The exit status.
+	 */
+	public int run(String[] args)
+	{
+		String command = null;
+		ArrayList<String> operands = new ArrayList<String>();
+		try{
+			for(int i = 0; i < args.length; i++){
+				String arg = args[i];
+				if(arg.equals("--index")){
+					indexFile = new File(value(args, ++i, arg));
+				} else if(arg.equals("--top")){
+					top = Integer.parseInt(value(args, ++i, arg));
+				} else if(arg.equals("--min-score")){
+					minScore = Integer.parseInt(value(args, ++i, arg));
+				} else if(arg.equals("--port")){
+					port = Integer.parseInt(value(args, ++i, arg));
+				} else if(arg.equals("--first-track")){
+					firstTrack = Integer.parseInt(value(args, ++i, arg));
+				} else if(arg.equals("--tracks")){
+					tracks = Integer.parseInt(value(args, ++i, arg));
+				} else if(arg.equals("--queries")){
+					queries = Integer.parseInt(value(args, ++i, arg));
+				} else if(arg.equals("--seed")){
+					seed = Long.parseLong(value(args, ++i, arg));
+				} else if(arg.equals("--min-recall")){
+					minRecall = Double.parseDouble(value(args, ++i, arg));
+				} else if(arg.equals("--partitions")){
+					partitions = Integer.parseInt(value(args, ++i, arg));
+				} else if(arg.equals("--hottest")){
+					hottest = Integer.parseInt(value(args, ++i, arg));
+				} else if(arg.equals("--project")){
+					projections.add(Long.valueOf(Long.parseLong(value(args, ++i, arg))));
+				} else if(arg.equals("--jfr")){
+					jfrFile = new File(value(args, ++i, arg));
+				} else if(arg.equals("--duplicates")){
+					detectDuplicates = true;
+				} else if(arg.equals("--follow")){
+					follow = true;
+				} else if(arg.startsWith("--")){
+					return usage("Unknown option " + arg);
+				} else if(command == null){
+					command = arg;
+				} else {
+					operands.add(arg);
+				}
+			}
+		} catch(NumberFormatException e){
+			return usage("Invalid number: " + e.getMessage());
+		} catch(IllegalArgumentException e){
+			return usage(e.getMessage());
+		}
+		if(command == null)return usage("No command given");
+		try{
+			if(jfrFile != null && !FlightEvents.startRecording(jfrFile, JFR_MAX_AGE_MINUTES)){
+				out.println(new Json().put("event", "error").put("error", "This JVM has no Flight Recorder"));
+				return EXIT_ERROR;
+			}
+			if(command.equals("index")){
+				if(operands.isEmpty())return usage("No files to index");
+				return index(operands);
+			} else if(command.equals("query")){
+				if(operands.isEmpty())return usage("No files to query");
+				if(top < 1)return usage("--top must be at least 1");
+				return query(operands);
+			} else if(command.equals("stats")){
+				if(hottest < 0)return usage("--hottest must be at least 0");
+				for(Long projection : projections){
+					if(projection.longValue() < 1)return usage("--project must be at least 1");
+				}
+				return stats();
+			} else if(command.equals("monitor")){
+				if(operands.size() > 1)return usage("monitor reads one stream");
+				if(follow && operands.isEmpty())return usage("--follow needs a file");
+				return monitor(operands.isEmpty() ? null : new File(operands.get(0)));
+			} else if(command.equals("serve")){
+				return serve();
+			} else if(command.equals("worker")){
+				return worker();
+			} else if(command.equals("regress")){
+				if(tracks < 1 || queries < 1)return usage("--tracks and --queries must be at least 1");
+				if(partitions < 0)return usage("--partitions must be at least 0");
+				if(minRecall < 0 || minRecall > 1)return usage("--min-recall must be between 0 and 1");
+				RegressionHarness harness = new RegressionHarness(tracks, queries, seed, minScore);
+				harness.setMinRecall(minRecall);
+				harness.setPartitions(partitions, port);
+				try{
+					out.println(harness.run());
+				} catch(IOException e){
+					out.println(new Json().put("event", "error").put("error", message(e)));
+					return EXIT_ERROR;
+				}
+				return harness.hasPassed() ? EXIT_OK : EXIT_REGRESSION;
+			}
+		} catch(IOException e){
+			out.println(new Json().put("event", "error").put("index", indexFile.getPath()).put("error", message(e)));
+			return EXIT_ERROR;
+		}
+		return usage("Unknown command " + command);
+	}
+
+	/**
+	 * Indexes audio files and folders of audio files, and saves the index.
+	 * @param paths The files and folders.
+	 * @return The exit status.
+	 * @throws IOException If the index cannot be read or written.
+	 */
+	private int index(List<String> paths) throws IOException
+	{
+		TrackIndex trackIndex = indexFile.exists() ? TrackIndex.load(indexFile) : new TrackIndex();
+		trackIndex.setDuplicateDetection(detectDuplicates);
+		int status = EXIT_OK;
+		int indexed = 0;
+		for(String path : paths){
+			for(File file : listAudioFiles(new File(path))){
+				if(trackIndex.getTrackID(file) != null){
+					out.println(new Json().put("event", "skipped").put("file", file.getPath()));
+					continue;
+				}
+				try{
+					TrackID id = trackIndex.indexTrack(file);
+					TrackInfo info = trackIndex.getTrackInfo(id);
+					Json line = new Json().put("event", info.isAlias() ? "alias" : "indexed").put("file", file.getPath())
+							.put("trackId", id.getIntID()).put("hashes", info.getNumberHashPoints());
+					if(info.isAlias())line.put("aliasOf", info.getAliasOf().getIntID());
+					out.println(line);
+					indexed++;
+				} catch(Exception e){
+					out.println(new Json().put("event", "error").put("file", file.getPath()).put("error", message(e)));
+					status = EXIT_ERROR;
+				}
+			}
+		}
+		if(indexed > 0 || !indexFile.exists())save(trackIndex);
+		out.println(new Json().put("event", "saved").put("index", indexFile.getPath()).put("indexed", indexed)
+				.put("tracks", trackIndex.getNumberOfTracks()));
+		return status;
+	}
+
+	/**
+	 * Writes the index next to the index file and then replaces it, so a query running at the same time
+	 * never reads a partly written index.
+	 * @param trackIndex The index.
+	 * @throws IOException If the index cannot be written.
+	 */
+	private void save(TrackIndex trackIndex) throws IOException
+	{
+		File dir = indexFile.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(indexFile.getName(), ".tmp", dir);
+		try{
+			trackIndex.save(temp);
+			if(!temp.renameTo(indexFile)){
+				if(!indexFile.delete() || !temp.renameTo(indexFile)){
+					throw new IOException("Cannot replace " + indexFile);
+				}
+			}
+		} finally{
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Matches audio files against the index.
+	 * @param paths The audio files.
+	 * @return The exit status.
+	 * @throws IOException If the index cannot be read.
+	 */
+	private int query(List<String> paths) throws IOException
+	{
+		TrackIndex trackIndex = TrackIndex.load(indexFile);
+		TrackMap trackMap = trackIndex.getTrackMap();
+		int status = EXIT_OK;
+		ArrayList<File> files = new ArrayList<File>();
+		ArrayList<Signal> signals = new ArrayList<Signal>();
+		for(String path : paths){
+			File file = new File(path);
+			try{
+				signals.add(readSignal(file));
+				files.add(file);
+			} catch(Exception e){
+				out.println(new Json().put("event", "error").put("file", file.getPath()).put("error", message(e)));
+				status = EXIT_ERROR;
+			}
+		}
+		ArrayList<MatchResults> results;
+		try{
+			results = trackIndex.matchBatch(signals);
+		} catch(Exception e){
+			out.println(new Json().put("event", "error").put("error", message(e)));
+			return EXIT_ERROR;
+		}
+		for(int i = 0; i < results.size(); i++){
+			Signal signal = signals.get(i);
+			ArrayList<Json> matches = new ArrayList<Json>();
+			for(RankedMatch match : results.get(i).getTopMatches(top)){
+				if(match.getScore() < minScore)break;
+				matches.add(match.toJson(trackMap, Resampler.fingerprintRate(signal.getFrameRate())));
+			}
+			if(matches.isEmpty() && status == EXIT_OK)status = EXIT_NO_MATCH;
+			out.println(new Json().put("file", files.get(i).getPath()).put("matched", !matches.isEmpty())
+					.put("confidence", results.get(i).getConfidenceMargin()).put("matches", matches));
+		}
+		return status;
+	}
+
+	/**
+	 * Prints the size and shape of the index, and its projections to larger libraries.
+	 * @return The exit status.
+	 * @throws IOException If the index cannot be read.
+	 */
+	private int stats() throws IOException
+	{
+		TrackIndex trackIndex = TrackIndex.load(indexFile);
+		CachedIndexMap indexMap = trackIndex.getCachedIndexMap();
+		IndexStatistics statistics = trackIndex.getStatistics(hottest);
+		ArrayList<Json> projected = new ArrayList<Json>();
+		for(Long projection : projections){
+			Json estimate = statistics.project(projection.longValue());
+			if(estimate != null)projected.add(estimate);
+		}
+		out.println(new Json().put("index", indexFile.getPath()).put("bytes", indexFile.length())
+				.put("tracks", trackIndex.getNumberOfTracks()).put("probes", indexMap.getNumberOfProbes())
+				.put("dataPoints", indexMap.getNumberOfDataPoints()).put("timeOffset", Probe.TIME_OFFSET)
+				.put("freqOffset", Probe.FREQ_OFFSET).put("canonicalRate", Resampler.CANONICAL_RATE)
+				.put("statistics", statistics.toJson()).put("projections", projected));
+		return EXIT_OK;
+	}
+
+	/**
+	 * Reports the tracks playing on a stream of audio as they start and stop.
+	 * @param file The stream, or null for the standard input.
+	 * @return The exit status.
+	 * @throws IOException If the index cannot be read.
+	 */
+	private int monitor(File file) throws IOException
+	{
+		TrackIndex trackIndex = TrackIndex.load(indexFile);
+		final TrackMap trackMap = trackIndex.getTrackMap();
+		String name = file == null ? "-" : file.getPath();
+		final InputStream in;
+		try{
+			if(file == null){
+				in = System.in;
+			} else if(follow){
+				in = new StreamMonitor.FollowingInputStream(file, FOLLOW_POLL_MILLIS);
+			} else {
+				in = new FileInputStream(file);
+			}
+		} catch(IOException e){
+			out.println(new Json().put("event", "error").put("stream", name).put("error", message(e)));
+			return EXIT_ERROR;
+		}
+		final CountDownLatch finished = new CountDownLatch(1);
+		Thread hook = new Thread(){
+			public void run(){
+				try{
+					in.close();//ends the stream, so the current match is reported before the process exits
+					finished.await(1, TimeUnit.SECONDS);
+				} catch(Exception e){
+					//exiting anyway
+				}
+			}
+		};
+		if(follow)Runtime.getRuntime().addShutdownHook(hook);
+		try{
+			AudioInputStream audio = openStream(new BufferedInputStream(in));
+			StreamMonitor monitor = new StreamMonitor(trackIndex.getCachedIndexMap(), audio.getFormat().getFrameRate(),
+					new StreamMonitor.MatchListener(){
+						public void matchStarted(MatchEvent event){
+							out.println(event.toJson(trackMap));
+						}
+						public void matchEnded(MatchEvent event){
+							out.println(event.toJson(trackMap));
+						}
+					});
+			monitor.monitor(audio);
+			return EXIT_OK;
+		} catch(Exception e){
+			out.println(new Json().put("event", "error").put("stream", name).put("error", message(e)));
+			return EXIT_ERROR;
+		} finally{
+			finished.countDown();
+			in.close();
+		}
+	}
+
+	/**
+	 * Opens a stream of audio that may have no end, such as a capture in progress. The length in the header
+	 * is ignored, since a capture writes it only once it stops.
+	 * @param in The stream, starting with a WAV or AU header.
+	 * @return The audio, read until the stream ends.
+	 * @throws UnsupportedAudioFileException If the header is not recognized.
+	 * @throws IOException If the header cannot be read.
+	 */
+	private static AudioInputStream openStream(InputStream in) throws UnsupportedAudioFileException, IOException
+	{
+		AudioInputStream header = AudioSystem.getAudioInputStream(in);
+		return new AudioInputStream(in, header.getFormat(), AudioSystem.NOT_SPECIFIED);
+	}
+
+	/**
+	 * Serves identification requests over HTTP until the process is stopped.
+	 * @return The exit status, if the service is interrupted.
+	 * @throws IOException If the index cannot be read or the port cannot be bound.
+	 */
+	private int serve() throws IOException
+	{
+		final IdentificationServer server = new IdentificationServer(TrackIndex.load(indexFile), new InetSocketAddress(port));
+		server.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				server.stop(1);
+			}
+		});
+		out.println(new Json().put("event", "serving").put("index", indexFile.getPath()).put("port", server.getAddress().getPort()));
+		try{
+			Thread.currentThread().join();
+		} catch(InterruptedException e){
+			server.stop(0);
+		}
+		return EXIT_OK;
+	}
+
+	/**
+	 * Serves one partition of an index to a Coordinator until the process is stopped.
+	 * @return The exit status, if the worker is interrupted.
+	 * @throws IOException If the partition cannot be read or the port cannot be bound.
+	 */
+	private int worker() throws IOException
+	{
+		PartitionWorker worker = new PartitionWorker(indexFile, firstTrack, new InetSocketAddress(port));
+		worker.start();
+		out.println(new Json().put("event", "worker").put("index", indexFile.getPath()).put("port", port)
+				.put("firstTrack", firstTrack));
+		try{
+			Thread.currentThread().join();
+		} catch(InterruptedException e){
+			worker.stop(0);
+		}
+		return EXIT_OK;
+	}
+
+	/**
+	 * Reads an audio file into a signal.
+	 * @param file The audio file.
+	 * @return The signal.
+	 * @throws IOException Problem reading the audio file.
+	 * @throws UnsupportedAudioFileException The audio file type is not supported.
+	 */
+	private static Signal readSignal(File file) throws UnsupportedAudioFileException, IOException
+	{
+		return CachedIndexMap.readSignal(file);
+	}
+
+	/**
+	 * Lists the audio files of a folder, or the file itself if it is not a folder.
+	 * @param file The file or folder.
+	 * @return The audio files, sorted by name.
+	 */
+	private static List<File> listAudioFiles(File file)
+	{
+		if(!file.isDirectory())return Collections.singletonList(file);
+		File[] files = file.listFiles(new TrackMap.AudioFileFilter());
+		if(files == null)return Collections.emptyList();
+		Arrays.sort(files);
+		return Arrays.asList(files);
+	}
+
+	/**
+	 * Gets the value of an option.
+	 * @param args The command line.
+	 * @param i The position of the value.
+	 * @param option The option.
+	 * @return The value.
+	 */
+	private static String value(String[] args, int i, String option)
+	{
+		if(i >= args.length)throw new IllegalArgumentException("Missing value for " + option);
+		return args[i];
+	}
+
+	/**
+	 * Describes an exception in one line.
+	 * @param e The exception.
+	 * @return Its message, or its type if it has none.
+	 */
+	private static String message(Exception e)
+	{
+		return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+	}
+
+	/**
+	 * Prints the usage to the standard error.
+	 * @param problem What was wrong with the command line.
+	 * @return The exit status.
+	 */
+	private static int usage(String problem)
+	{
+		System.err.println("bazam: " + problem);
+		System.err.println("Usage: bazam [--index FILE] [--jfr FILE] COMMAND ...");
+		System.err.println("       bazam [--index FILE] index [--duplicates] FILE_OR_FOLDER...");
+		System.err.println("       bazam [--index FILE] query [--top K] [--min-score N] FILE...");
+		System.err.println("       bazam [--index FILE] stats [--hottest N] [--project TRACKS]...");
+		System.err.println("       bazam [--index FILE] monitor [--follow] [FILE]");
+		System.err.println("       bazam [--index FILE] serve [--port PORT]");
+		System.err.println("       bazam [--index FILE] worker [--port PORT] [--first-track ID]");
+		System.err.println("       bazam regress [--tracks N] [--queries N] [--seed S] [--min-score N] [--min-recall R] [--partitions N [--port PORT]]");
+		return EXIT_USAGE;
+	}
+}
@@ -1,9 +1,10 @@
 package bazam;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 import javax.sound.sampled.*;
-import javax.swing.*;
 
 /**
  * Contains the entire mapping of all the indexed probes. The underlying map is a 
@@ -21,6 +22,69 @@ public class CachedIndexMap
 	private LinkedHashMap<Probe, ArrayList<ProbeDataPoint>> indexProbeMapping = new LinkedHashMap
 		<Probe, ArrayList<ProbeDataPoint>>();	
 	
+	/** The tracks that were removed but whose data points are still inside the index. Indexed by track ID */
+	private BitSet deletedTracks = new BitSet();
+	
+	/** The number of data points each track has inside the index. Indexed by track ID */
+	private int[] postingsPerTrack = new int[16];
+	
+	/** The number of data points inside the index, including those of removed tracks */
+	private long totalPostings = 0;
+	
+	/** The number of data points inside the index that belong to removed tracks */
+	private long deletedPostings = 0;
+	
+	/** Guards the index: queries share the read lock, changes to the index take the write lock */
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/** Incremented every time the contents of the index change */
+	private volatile long generation = 0;
+	
+	/** The cache of query results, or null if query results are not cached */
+	private volatile QueryCache queryCache;
+	
+	/** Whether queries of signals stop once the leading track can no longer be overtaken */
+	public static boolean EARLY_TERMINATION = true;
+	
+	/** The number of standard deviations by which the runner-up must be out of reach to stop a query early */
+	public static double EARLY_TERMINATION_Z = 4.0;
+	
+	/** The leading track must have at least this score before a query may stop early, so that a query stopped
+	 * early is one that would have been identified */
+	public static int MIN_EARLY_TERMINATION_SCORE = MatchResults.MIN_SCORE;
+	
+	/** Whether queries count the hash matches of every track first and only verify the time offsets of the best tracks */
+	public static boolean CANDIDATE_FILTER = true;
+	
+	/** The number of tracks whose time offsets are verified when the candidate filter is on */
+	public static int CANDIDATES = 20;
+	
+	/** The smallest fraction of its hashes a query looks up when it degrades to meet its deadline */
+	public static double MIN_SAMPLE_RATE = 0.1;
+	
+	/** The number of hashes looked up between two checks of the deadline */
+	private static final int DEADLINE_CHECK_INTERVAL = 16;
+	
+	/** The number of hashes the candidate filter looks up between two checks of whether it can stop early */
+	private static final int EARLY_CHECK_INTERVAL = 64;
+	
+	/** The number of times compaction builds the compacted index outside the write lock before it gives up and 
+	 * compacts under the lock, when the index keeps changing while it builds */
+	private static final int COMPACTION_ATTEMPTS = 3;
+	
+	/** Lets a single compaction run at a time */
+	private final Object compactionLock = new Object();
+	
+	/** Identifies a serialized index map */
+	static final int MAGIC = 0x42434931;//"BCI1"
+	
+	/** The hits of the queries running the candidate filter, reused across queries whatever thread runs them */
+	private final ScratchPool<Hits> queryHits = new ScratchPool<Hits>(2*Runtime.getRuntime().availableProcessors()){
+		protected Hits create(){
+			return new Hits();
+		}
+	};
+	
 	/**
 	 * Constructs an index map.
 	 */
@@ -35,21 +99,651 @@ public class CachedIndexMap
 	 */
 	public MatchResults query(Signal signalQuery)
 	{
-		MatchResults results = new MatchResults(signalQuery.getName());//initialize matchResults object
 		Spectrogram s = new Spectrogram(signalQuery);
 		//TrackID thisID = new TrackID(Integer.MAX_VALUE);//to prevent overwriting index track map
 		SpectrogramProbesExtractor ex = new SpectrogramProbesExtractor(s);
-		ArrayList<HashPoint>hashPoints = ex.getHashPoints();
-		for(HashPoint hash : hashPoints){
-			Probe probeKey = hash.probe;
-			int thisIndex = hash.index;
-			if(indexProbeMapping.containsKey(probeKey)){
-				//CREATE MATCH HISTOGRAM
+		return matchHashPoints(ex.getHashPoints(), signalQuery.getName());
+	}
+	
+	/**
+	 * Finds the results of the matches against hash points that were already extracted, the same way as
+	 * query(Signal): through the query cache if there is one, and stopping early if EARLY_TERMINATION is on.
+	 * @param hashPoints The hash points of the query.
+	 * @param name The name of the query.
+	 * @return The results of the match inside a MatchResults object.
+	 */
+	public MatchResults matchHashPoints(ArrayList<HashPoint> hashPoints, String name)
+	{
+		try{
+			return matchHashPoints(hashPoints, name, Deadline.NONE);
+		} catch(TimeoutException e){
+			throw new IllegalStateException(e);//there is no deadline
+		}
+	}
+	
+	/**
+	 * Finds the results of the matches against hash points that were already extracted, as matchHashPoints 
+	 * does, degrading the query if needed to meet its deadline. Partial results are not cached.
+	 * @param hashPoints The hash points of the query.
+	 * @param name The name of the query.
+	 * @param deadline The deadline of the query.
+	 * @return The results of the match inside a MatchResults object.
+	 * @throws TimeoutException If the deadline passed while waiting for an identical query to be matched.
+	 */
+	public MatchResults matchHashPoints(final ArrayList<HashPoint> hashPoints, final String name, final Deadline deadline)
+			throws TimeoutException
+	{
+		QueryCache cache = queryCache;
+		if(cache == null){
+			return query(hashPoints, name, EARLY_TERMINATION, deadline);
+		}
+		try{
+			MatchResults results = cache.get(hashPoints, generation, deadline, new Callable<MatchResults>(){
+				public MatchResults call(){
+					return query(hashPoints, name, EARLY_TERMINATION, deadline);
+				}
+			});
+			return results.copyFor(name);
+		} catch(ExecutionException e){
+			if(e.getCause() instanceof RuntimeException)throw (RuntimeException)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Matches many signals against the index at once. The hash points of all the signals are extracted in 
+	 * parallel and sorted by probe, so every distinct probe is looked up once and its data points are read 
+	 * a single time, scattering the matches to the results of each signal that has the probe.
+	 * Every hash point is processed; the candidate filter and early termination do not apply.
+	 * @param signals The signals to be matched.
+	 * @return The results of each signal, in the same order as the signals.
+	 * @throws ExecutionException If extracting the hash points of a signal failed.
+	 */
+	public ArrayList<MatchResults> queryBatch(List<Signal> signals) throws ExecutionException
+	{
+		ArrayList<ArrayList<HashPoint>> hashPoints = extractHashPoints(signals);
+		int total = 0;
+		for(ArrayList<HashPoint> clipHashPoints : hashPoints){
+			total += clipHashPoints.size();
+		}
+		BatchHash[] batch = new BatchHash[total];
+		int n = 0;
+		for(int clip = 0; clip < hashPoints.size(); clip++){
+			for(HashPoint hash : hashPoints.get(clip)){
+				batch[n++] = new BatchHash(hash.probe, clip, hash.index);
+			}
+		}
+		Arrays.sort(batch);
+		ArrayList<MatchResults> results = new ArrayList<MatchResults>(signals.size());
+		FlightEvents flightEvents = FlightEvents.get();
+		Object[] events = new Object[signals.size()];
+		for(int clip = 0; clip < events.length; clip++){
+			events[clip] = flightEvents.beginQuery();
+		}
+		long start = System.nanoTime();
+		lock.readLock().lock();
+		try{
+			for(Signal signal : signals){
+				results.add(new MatchResults(signal.getName(), deletedTracks));
+			}
+			int[] found = new int[signals.size()];
+			int groupStart = 0;
+			while(groupStart < total){
+				Probe probeKey = batch[groupStart].probe;
+				int groupEnd = groupStart+1;
+				while(groupEnd < total && batch[groupEnd].probe.equals(probeKey))groupEnd++;
 				ArrayList<ProbeDataPoint>matchingPoints = indexProbeMapping.get(probeKey);
-				results.matchTally(thisIndex,matchingPoints);
+				if(matchingPoints != null){
+					for(int i = groupStart; i < groupEnd; i++){
+						found[batch[i].clip]++;
+						results.get(batch[i].clip).getStatistics().postingsScanned += matchingPoints.size();
+					}
+					for(int p = 0, size = matchingPoints.size(); p < size; p++){
+						ProbeDataPoint dataPoint = matchingPoints.get(p);
+						int id = dataPoint.getTrackID().getIntID();
+						if(deletedTracks.get(id))continue;
+						for(int i = groupStart; i < groupEnd; i++){
+							results.get(batch[i].clip).matchAt(id, batch[i].index - dataPoint.getIndex());
+						}
+					}
+				}
+				groupStart = groupEnd;
+			}
+			for(int clip = 0; clip < signals.size(); clip++){
+				MatchResults clipResults = results.get(clip);
+				clipResults.setHashesProcessed(found[clip], found[clip]);
+				clipResults.getStatistics().tracksTouched = clipResults.getNumberMatched();
+				clipResults.getStatistics().candidates = clipResults.getNumberMatched();
+				//every query of the batch waits for the whole batch
+				Metrics.QUERY.record(start, found[clip], clipResults.getStatistics().postingsScanned);
+			}
+		} finally{
+			lock.readLock().unlock();
+		}
+		for(int clip = 0; clip < events.length; clip++){
+			flightEvents.commitQuery(events[clip], signals.get(clip).getName(), hashPoints.get(clip).size(), results.get(clip));
+		}
+		return results;
+	}
+	
+	/**
+	 * Extracts the hash points of many signals in parallel, one task per signal.
+	 * @param signals The signals.
+	 * @return The hash points of each signal, in the same order as the signals.
+	 * @throws ExecutionException If extracting the hash points of a signal failed.
+	 */
+	private static ArrayList<ArrayList<HashPoint>> extractHashPoints(List<Signal> signals) throws ExecutionException
+	{
+		int threads = Math.max(1, Math.min(signals.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try{
+			ArrayList<Future<ArrayList<HashPoint>>> futures = new ArrayList<Future<ArrayList<HashPoint>>>();
+			for(final Signal signal : signals){
+				futures.add(executor.submit(new Callable<ArrayList<HashPoint>>(){
+					public ArrayList<HashPoint> call(){
+						return new SpectrogramProbesExtractor(new Spectrogram(signal)).getHashPoints();
+					}
+				}));
+			}
+			ArrayList<ArrayList<HashPoint>> hashPoints = new ArrayList<ArrayList<HashPoint>>();
+			for(Future<ArrayList<HashPoint>> future : futures){
+				hashPoints.add(future.get());
+			}
+			return hashPoints;
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new ExecutionException(e);
+		} finally{
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * A hash point of one clip of a batch query.
+	 */
+	private static class BatchHash implements Comparable<BatchHash>
+	{
+		/** The probe of the hash point */
+		Probe probe;
+		
+		/** The number of the clip inside the batch */
+		int clip;
+		
+		/** The index location of the probe inside the clip */
+		int index;
+		
+		BatchHash(Probe probe, int clip, int index)
+		{
+			this.probe = probe;
+			this.clip = clip;
+			this.index = index;
+		}
+		
+		/**
+		 * Orders the hash points by probe, so that identical probes are next to each other.
+		 */
+		public int compareTo(BatchHash o)
+		{
+			return probe.compareTo(o.probe);
+		}
+	}
+	
+	/**
+	 * Receives the data points of a probe, one at a time.
+	 */
+	public interface DataPointVisitor
+	{
+		/**
+		 * Called for every data point of the probe whose track was not removed.
+		 * @param trackNo The track ID of the data point.
+		 * @param index The index location of the probe inside the track.
+		 */
+		void visit(int trackNo, int index);
+	}
+	
+	/**
+	 * Passes every data point of a probe to a visitor, skipping removed tracks. The index cannot change 
+	 * while the data points are visited.
+	 * @param probeKey The probe to look up.
+	 * @param visitor Receives the data points.
+	 * @return The number of data points of the probe, including those of removed tracks.
+	 */
+	public int visitDataPoints(Probe probeKey, DataPointVisitor visitor)
+	{
+		lock.readLock().lock();
+		try{
+			ArrayList<ProbeDataPoint>matchingPoints = indexProbeMapping.get(probeKey);
+			if(matchingPoints == null)return 0;
+			for(int i = 0, n = matchingPoints.size(); i < n; i++){
+				ProbeDataPoint dataPoint = matchingPoints.get(i);
+				int trackNo = dataPoint.getTrackID().getIntID();
+				if(!deletedTracks.get(trackNo))visitor.visit(trackNo, dataPoint.getIndex());
+			}
+			return matchingPoints.size();
+		} finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Receives the probes of the index, one at a time.
+	 */
+	public interface ProbeVisitor
+	{
+		/**
+		 * Called for every probe of the index.
+		 * @param probe The probe.
+		 * @param dataPoints The number of data points of the probe, including those of removed tracks.
+		 * @param liveDataPoints The number of data points of the probe whose track was not removed.
+		 */
+		void visit(Probe probe, int dataPoints, int liveDataPoints);
+	}
+	
+	/**
+	 * Passes every probe of the index to a visitor, with the length of its list of data points. The index 
+	 * cannot change while the probes are visited.
+	 * @param visitor Receives the probes.
+	 */
+	public void visitProbes(ProbeVisitor visitor)
+	{
+		lock.readLock().lock();
+		try{
+			boolean deletions = !deletedTracks.isEmpty();
+			for(Map.Entry<Probe, ArrayList<ProbeDataPoint>> entry : indexProbeMapping.entrySet()){
+				ArrayList<ProbeDataPoint> dataPoints = entry.getValue();
+				int live = dataPoints.size();
+				if(deletions){
+					for(int i = 0, n = dataPoints.size(); i < n; i++){
+						if(deletedTracks.get(dataPoints.get(i).getTrackID().getIntID()))live--;
+					}
+				}
+				visitor.visit(entry.getKey(), dataPoints.size(), live);
+			}
+		} finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Turns caching of query results on or off. Cached results are dropped whenever the index changes.
+	 * @param cache The cache to use, or null to match every query against the index.
+	 */
+	public void setQueryCache(QueryCache cache)
+	{
+		queryCache = cache;
+	}
+	
+	/**
+	 * Gets the cache of query results.
+	 * @return The cache, or null if query results are not cached.
+	 */
+	public QueryCache getQueryCache()
+	{
+		return queryCache;
+	}
+	
+	/**
+	 * Gets the generation of the index, which changes every time tracks are added or removed.
+	 * @return The generation.
+	 */
+	public long getGeneration()
+	{
+		return generation;
+	}
+	
+	/**
+	 * Records a change to the contents of the index. Must be called with the write lock held.
+	 */
+	private void indexChanged()
+	{
+		generation++;
+		QueryCache cache = queryCache;
+		if(cache != null)cache.invalidate(generation);
+	}
+	
+	/**
+	 * Matches the signal against the index and ranks the best matching tracks.
+	 * @param signalQuery The signal to be matched.
+	 * @param topK The number of tracks to return.
+	 * @return The best matching tracks, from the best to the worst.
+	 */
+	public ArrayList<RankedMatch> query(Signal signalQuery, int topK)
+	{
+		return query(signalQuery).getTopMatches(topK);
+	}
+	
+	/**
+	 * Finds the results of the matches against hash points that were already extracted.
+	 * Every hash point is processed.
+	 * @param hashPoints The hash points of the query.
+	 * @param name The name of the query.
+	 * @return The results of the match inside a MatchResults object.
+	 */
+	public MatchResults query(ArrayList<HashPoint> hashPoints, String name)
+	{
+		return query(hashPoints, name, false);
+	}
+	
+	/**
+	 * Finds the results of the matches against hash points that were already extracted. The hash points 
+	 * are processed from the one with the fewest data points in the index to the one with the most, so 
+	 * the cheapest and most selective hashes come first.
+	 * @param hashPoints The hash points of the query.
+	 * @param name The name of the query.
+	 * @param stopEarly True to stop once the leading track can no longer be overtaken.
+	 * @return The results of the match inside a MatchResults object.
+	 */
+	public MatchResults query(ArrayList<HashPoint> hashPoints, String name, boolean stopEarly)
+	{
+		return query(hashPoints, name, stopEarly, Deadline.NONE);
+	}
+	
+	/**
+	 * Finds the results of the matches against hash points as query(hashPoints, name, stopEarly) does, 
+	 * within a deadline. If the deadline is near when the lookup starts, only the most selective part of 
+	 * the hashes is looked up, in proportion to the time left; if the deadline passes during the lookup, 
+	 * the lookup stops. Either way the results are marked as partial.
+	 * @param hashPoints The hash points of the query.
+	 * @param name The name of the query.
+	 * @param stopEarly True to stop once the leading track can no longer be overtaken.
+	 * @param deadline The deadline of the query.
+	 * @return The results of the match inside a MatchResults object.
+	 */
+	public MatchResults query(ArrayList<HashPoint> hashPoints, String name, boolean stopEarly, Deadline deadline)
+	{
+		FlightEvents events = FlightEvents.get();
+		Object event = events.beginQuery();
+		MatchResults results;
+		lock.readLock().lock();
+		try{
+			results = queryLocked(hashPoints, name, stopEarly, deadline);
+		} finally{
+			lock.readLock().unlock();
+		}
+		events.commitQuery(event, name, hashPoints.size(), results);
+		return results;
+	}
+	
+	/**
+	 * Matches the hash points of a query against the index. Must be called with the read lock held.
+	 * @param hashPoints The hash points of the query.
+	 * @param name The name of the query.
+	 * @param stopEarly True to stop once the leading track can no longer be overtaken.
+	 * @param deadline The deadline of the query.
+	 * @return The results of the match inside a MatchResults object.
+	 */
+	private MatchResults queryLocked(ArrayList<HashPoint> hashPoints, String name, boolean stopEarly, Deadline deadline)
+	{
+		long start = System.nanoTime();
+		MatchResults results = new MatchResults(name, deletedTracks);//initialize matchResults object
+		int found = 0;
+		List<ArrayList<ProbeDataPoint>> postings = new ArrayList<ArrayList<ProbeDataPoint>>(hashPoints.size());//null if not found
+		long[] order = new long[hashPoints.size()];//postings length in the high bits, hash number in the low bits
+		for(int i = 0; i < hashPoints.size(); i++){
+			ArrayList<ProbeDataPoint>matchingPoints = indexProbeMapping.get(hashPoints.get(i).probe);
+			postings.add(matchingPoints);
+			if(matchingPoints != null){
+				order[found++] = ((long)matchingPoints.size() << 32) | i;
+			}
+		}
+		Arrays.sort(order, 0, found);
+		int limit = found;//the number of hashes to look up
+		if(deadline.isNear()){//degrade: keep the rarest hashes, in proportion to the time left
+			double rate = Math.max(MIN_SAMPLE_RATE, deadline.getFractionRemaining()/Deadline.NEAR_FRACTION);
+			limit = (int)Math.ceil(found*rate);
+			if(limit < found)results.setPartial(true);
+		}
+		QueryStatistics statistics = results.getStatistics();
+		int processed = 0;
+		if(CANDIDATE_FILTER){
+			processed = matchCandidates(hashPoints, postings, order, limit, stopEarly, deadline, results);
+		} else {
+			long verifyStart = System.nanoTime();
+			while(processed < limit){
+				int i = (int)order[processed];
+				//CREATE MATCH HISTOGRAM
+				results.matchTally(hashPoints.get(i).index, postings.get(i));
+				processed++;
+				if(stopEarly && isUnreachable(results.getLeaderScore(), results.getRunnerUpScore(), processed, 
+						limit - processed))break;
+				if(processed % DEADLINE_CHECK_INTERVAL == 0 && deadline.isExpired()){
+					results.setPartial(true);
+					break;
+				}
 			}
+			statistics.verifyNanos = System.nanoTime() - verifyStart;
+			statistics.tracksTouched = results.getNumberMatched();
+			statistics.candidates = results.getNumberMatched();
 		}
+		results.setHashesProcessed(processed, found);
+		Metrics.QUERY.record(start, processed, statistics.postingsScanned, results.isPartial() ? 1 : 0);
 		return results;
+	}
+	
+	/**
+	 * Matches the hash points of a query in two stages. The filter reads the data points of the hashes from
+	 * the rarest on, counting the hashes each track shares with the query without regard to time offsets,
+	 * and chaining the time offset of each hit to the earlier hits of its track. Only the CANDIDATES tracks
+	 * with the most hits are verified, by building the offset histograms of their own hits.
+	 * <p>
+	 * Every DEADLINE_CHECK_INTERVAL hashes the filter checks the deadline. To stop early, it verifies the
+	 * candidates so far every EARLY_CHECK_INTERVAL hashes, and stops once the leading one can no longer be
+	 * overtaken by the others: as in the verification itself, the tracks outside the candidates are assumed
+	 * out of the running. Must be called with the read lock held.
+	 * @param hashPoints The hash points of the query.
+	 * @param postings The data points of each query hash, by hash number, or null for hashes not in the index.
+	 * @param order The hash numbers of the query hashes that were found, from the rarest, in the low bits.
+	 * @param limit The number of hashes to look up.
+	 * @param stopEarly True to stop once the leading track can no longer be overtaken.
+	 * @param deadline The deadline of the query.
+	 * @param results Receives the histograms of the candidates and the statistics of the query.
+	 * @return The number of hashes looked up.
+	 */
+	private int matchCandidates(ArrayList<HashPoint> hashPoints, List<ArrayList<ProbeDataPoint>> postings, long[] order, 
+			int limit, boolean stopEarly, Deadline deadline, MatchResults results)
+	{
+		long filterStart = System.nanoTime();
+		QueryStatistics statistics = results.getStatistics();
+		long postingsToScan = 0;
+		for(int h = 0; h < limit; h++){
+			postingsToScan += order[h] >>> 32;
+		}
+		Hits hits = queryHits.borrow();
+		hits.reset(postingsPerTrack.length, postingsToScan);
+		int mostHits = 0;//no track scores more than its hits
+		int processed = 0;
+		try{
+			while(processed < limit){
+				int q = (int)order[processed];
+				int index = hashPoints.get(q).index;
+				ArrayList<ProbeDataPoint> dataPoints = postings.get(q);
+				statistics.postingsScanned += dataPoints.size();
+				for(int i = 0, n = dataPoints.size(); i < n; i++){
+					ProbeDataPoint dataPoint = dataPoints.get(i);
+					int id = dataPoint.getTrackID().getIntID();
+					if(deletedTracks.get(id))continue;
+					mostHits = Math.max(mostHits, hits.add(id, index - dataPoint.getIndex()));
+				}
+				processed++;
+				if(processed % DEADLINE_CHECK_INTERVAL == 0 && processed < limit){
+					if(deadline.isExpired()){
+						results.setPartial(true);
+						break;
+					}
+					if(stopEarly && processed % EARLY_CHECK_INTERVAL == 0 && mostHits >= MIN_EARLY_TERMINATION_SCORE
+							&& isDecided(hits, processed, limit - processed))break;
+				}
+			}
+			int[] candidates = hits.selectCandidates(CANDIDATES);
+			statistics.tracksTouched = hits.numberTouched;
+			statistics.candidates = candidates.length;
+			statistics.filterNanos = System.nanoTime() - filterStart;
+			long verifyStart = System.nanoTime();
+			int[] chain = hits.chain;
+			for(int id : candidates){
+				for(int hit = hits.last[id]; hit >= 0; hit = chain[hit+1]){
+					results.matchAt(id, chain[hit]);
+				}
+			}
+			statistics.verifyNanos = System.nanoTime() - verifyStart;
+		} finally{
+			hits.clear();
+			queryHits.giveBack(hits);
+		}
+		return processed;
+	}
+	
+	/**
+	 * Decides whether the candidate filter can stop, because the leading candidate so far can no longer be
+	 * overtaken by the other candidates.
+	 * @param hits The hits so far.
+	 * @param processed The number of hashes processed.
+	 * @param remaining The number of hashes not yet processed.
+	 * @return True if the leading candidate can no longer be overtaken.
+	 */
+	private static boolean isDecided(Hits hits, int processed, int remaining)
+	{
+		int leaderScore = 0, runnerUpScore = 0;
+		for(int id : hits.selectCandidates(CANDIDATES)){
+			int score = hits.score(id);
+			if(score > leaderScore){
+				runnerUpScore = leaderScore;
+				leaderScore = score;
+			} else if(score > runnerUpScore){
+				runnerUpScore = score;
+			}
+		}
+		return isUnreachable(leaderScore, runnerUpScore, processed, remaining);
+	}
+	
+	/**
+	 * The hits of a query on each track during the candidate filter. The hits are borrowed from the pool of the
+	 * index for each query, and only the entries of the tracks that were touched are cleared.
+	 */
+	private static class Hits
+	{
+		/** The number of hits of each track, indexed by track ID */
+		int[] counts = new int[16];
+		
+		/** The last hit of each touched track, indexed by track ID */
+		int[] last = new int[16];
+		
+		/** Two entries per hit, at the position of the hit: the time offset between the query and the track, and
+		 * the position of the hit of the same track before it, or -1 for its first */
+		int[] chain = new int[2048];
+		
+		/** The position of the next hit */
+		int size = 0;
+		
+		/** The tracks that were hit, in the order they were first hit */
+		int[] touched = new int[64];
+		
+		/** The number of tracks that were hit */
+		int numberTouched = 0;
+		
+		/**
+		 * Makes room for the hits of a query.
+		 * @param tracks The number of track IDs of the index.
+		 * @param postings The number of data points the query may read.
+		 */
+		void reset(int tracks, long postings)
+		{
+			if(counts.length < tracks){
+				counts = new int[tracks];
+				last = new int[tracks];
+			}
+			if(chain.length < postings*2){
+				chain = new int[(int)Math.min(Integer.MAX_VALUE - 8, Math.max(postings*2, chain.length*2L))];
+			}
+		}
+		
+		/**
+		 * Records a hit on a track.
+		 * @param id The track ID.
+		 * @param offset The time offset between the query and the track.
+		 * @return The number of hits of the track.
+		 */
+		int add(int id, int offset)
+		{
+			if(counts[id] == 0){
+				if(numberTouched == touched.length)touched = Arrays.copyOf(touched, numberTouched*2);
+				touched[numberTouched++] = id;
+				last[id] = -1;
+			}
+			chain[size] = offset;
+			chain[size+1] = last[id];
+			last[id] = size;
+			size += 2;
+			return ++counts[id];
+		}
+		
+		/**
+		 * Builds the offset histogram of a track from its hits so far.
+		 * @param id The track ID.
+		 * @return The number of hits at its best time offset.
+		 */
+		int score(int id)
+		{
+			Histogram h = new Histogram();
+			for(int hit = last[id]; hit >= 0; hit = chain[hit+1]){
+				h.matchAt(chain[hit]);
+			}
+			return h.getBestCount();
+		}
+		
+		/**
+		 * Keeps the tracks with the most hits.
+		 * @param maxCandidates The number of tracks to keep.
+		 * @return The track IDs kept.
+		 */
+		int[] selectCandidates(int maxCandidates)
+		{
+			if(numberTouched <= maxCandidates)return Arrays.copyOf(touched, numberTouched);
+			long[] ranked = new long[numberTouched];//count in the high bits, track ID in the low bits
+			for(int i = 0; i < numberTouched; i++){
+				ranked[i] = ((long)counts[touched[i]] << 32) | touched[i];
+			}
+			Arrays.sort(ranked);
+			int[] candidates = new int[maxCandidates];
+			for(int i = 0; i < maxCandidates; i++){
+				candidates[i] = (int)ranked[numberTouched - 1 - i];
+			}
+			return candidates;
+		}
+		
+		/**
+		 * Clears the hits of the last query.
+		 */
+		void clear()
+		{
+			for(int i = 0; i < numberTouched; i++){
+				counts[touched[i]] = 0;
+			}
+			numberTouched = 0;
+			size = 0;
+		}
+	}
+	
+	/**
+	 * Decides whether the runner-up can still catch up with the leading track. Each remaining hash adds
+	 * at most one match to any time offset of a track. The runner-up is assumed to keep matching the 
+	 * remaining hashes at the rate it matched the processed ones, and must fall short by EARLY_TERMINATION_Z
+	 * standard deviations of that estimate.
+	 * @param leaderScore The score of the leading track so far.
+	 * @param runnerUpScore The score of the runner-up so far, or a bound above it.
+	 * @param processed The number of hashes processed.
+	 * @param remaining The number of hashes not yet processed.
+	 * @return True if the leading track can no longer be overtaken.
+	 */
+	private static boolean isUnreachable(int leaderScore, int runnerUpScore, int processed, int remaining)
+	{
+		int lead = leaderScore - runnerUpScore;
+		if(leaderScore < MIN_EARLY_TERMINATION_SCORE)return false;
+		if(lead > remaining)return true;
+		double rate = (runnerUpScore + 1.0)/(processed + 1.0);
+		double expectedGain = remaining*rate;
+		double deviation = Math.sqrt(remaining*rate*(1-rate));
+		return lead > expectedGain + EARLY_TERMINATION_Z*deviation;
 	}	
 	
 	/**
@@ -71,15 +765,83 @@ public class CachedIndexMap
 	 * @throws UnsupportedAudioFileException The audio file type is not supported.
 	 */
 	public int indexFile(File file, TrackID id) throws UnsupportedAudioFileException, IOException
+	{
+		return indexHashPoints(extractHashPoints(file), id);
+	}
+	
+	/**
+	 * Reads the audio file and extracts its hash points without adding them to the index.
+	 * @param file The audio file.
+	 * @return The list of hash points of the file.
+	 * @throws IOException Problem reading the audio file.
+	 * @throws UnsupportedAudioFileException The audio file type is not supported.
+	 */
+	public ArrayList<HashPoint> extractHashPoints(File file) throws UnsupportedAudioFileException, IOException
+	{
+		final ArrayList<HashPoint> hashPoints = new ArrayList<HashPoint>();
+		StreamingFingerprinter fingerprinter = new StreamingFingerprinter(new StreamingFingerprinter.HashPointListener(){
+			public void hashPoint(HashPoint hash){
+				hashPoints.add(hash);
+			}
+		});
+		StreamingFingerprinter.readSamples(file, fingerprinter);
+		fingerprinter.finish();
+		return hashPoints;
+	}
+	
+	/**
+	 * Reads an audio file into a signal.
+	 * @param file The audio file.
+	 * @return The signal, named after the file.
+	 * @throws IOException Problem reading the audio file.
+	 * @throws UnsupportedAudioFileException The audio file type is not supported.
+	 */
+	static Signal readSignal(File file) throws UnsupportedAudioFileException, IOException
 	{
 		String fileName = file.getName();
+		try{
+			return new Signal(AudioClip.fromWav(WavFile.open(file)), fileName);
+		} catch(UnsupportedAudioFileException e){
+			//not a WAV file Bazam reads itself; Java Sound may know it
+		}
 		AudioInputStream ain = AudioSystem.getAudioInputStream(file);
-		AudioClip clip = AudioClip.fromStream(ain, fileName);
-		ain.close();
-		Spectrogram s = new Spectrogram(new Signal(clip, fileName));
-		SpectrogramProbesExtractor ex = new SpectrogramProbesExtractor(s);
-		ArrayList<HashPoint>hashPoints = ex.getHashPoints();
+		try{
+			return new Signal(AudioClip.fromStream(ain, fileName), fileName);
+		} finally{
+			ain.close();
+		}
+	}
+	
+	/**
+	 * Places the hash points of a track into the cache hash map.
+	 * @param hashPoints The hash points extracted from the track.
+	 * @param id The trackID of the track.
+	 * @return The number of hash points that were added to index.
+	 */
+	public int indexHashPoints(ArrayList<HashPoint> hashPoints, TrackID id)
+	{
+		long start = System.nanoTime();
+		lock.writeLock().lock();
+		try{
+			int size = indexHashPointsLocked(hashPoints, id);
+			indexChanged();
+			Metrics.INDEX.record(start, size);
+			return size;
+		} finally{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Places the hash points of a track into the cache hash map. Must be called with the write lock held.
+	 * @param hashPoints The hash points extracted from the track.
+	 * @param id The trackID of the track.
+	 * @return The number of hash points.
+	 */
+	private int indexHashPointsLocked(ArrayList<HashPoint> hashPoints, TrackID id)
+	{
 		int size = hashPoints.size();
+		int added = 0;
 		//System.out.println(size);
 		for(HashPoint hash : hashPoints){
 			Probe probeKey = hash.probe;//probe key
@@ -89,16 +851,267 @@ public class CachedIndexMap
 				ArrayList<ProbeDataPoint>dataPoints = indexProbeMapping.get(probeKey);//get current data points inside map
 				if(!dataPoints.contains(aDataPoint)){
 					dataPoints.add(aDataPoint);
+					added++;
 				}
 				indexProbeMapping.put(probeKey, dataPoints);//add updated mapping back
 			} else {//new probe 
 				ArrayList<ProbeDataPoint>newDataPoints = new ArrayList<ProbeDataPoint>();
 				newDataPoints.add(aDataPoint);
 				indexProbeMapping.put(probeKey,newDataPoints);
+				added++;
 			}
 		}		
+		int trackNo = id.getIntID();
+		if(trackNo >= postingsPerTrack.length){
+			postingsPerTrack = Arrays.copyOf(postingsPerTrack, Math.max(trackNo+1, postingsPerTrack.length*2));
+		}
+		postingsPerTrack[trackNo] += added;
+		totalPostings += added;
 		return size;
 		
 	}
+	
+	/**
+	 * Removes a track from the index. The track is only marked as deleted, so its data points are 
+	 * skipped while matching; they are physically removed by the next call to compact().
+	 * @param id The track to be removed.
+	 */
+	public void removeTrack(TrackID id)
+	{
+		lock.writeLock().lock();
+		try{
+			int trackNo = id.getIntID();
+			if(deletedTracks.get(trackNo))return;
+			deletedTracks.set(trackNo);
+			if(trackNo < postingsPerTrack.length){
+				deletedPostings += postingsPerTrack[trackNo];
+			}
+			indexChanged();
+		} finally{
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Checks whether the track was removed from the index.
+	 * @param id The track to check.
+	 * @return True if the track was removed, false otherwise.
+	 */
+	public boolean isDeleted(TrackID id)
+	{
+		lock.readLock().lock();
+		try{
+			return deletedTracks.get(id.getIntID());
+		} finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets the number of distinct probes inside the index.
+	 * @return The number of probes.
+	 */
+	public int getNumberOfProbes()
+	{
+		lock.readLock().lock();
+		try{
+			return indexProbeMapping.size();
+		} finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets the number of data points inside the index that belong to tracks that were not removed.
+	 * @return The number of data points.
+	 */
+	public long getNumberOfDataPoints()
+	{
+		return totalPostings - deletedPostings;
+	}
+	
+	/**
+	 * Gets the fraction of the data points in the index that belong to removed tracks.
+	 * @return A value between 0 and 1.
+	 */
+	public double getDeletedFraction()
+	{
+		if(totalPostings == 0)return 0;
+		return (double)deletedPostings/(double)totalPostings;
+	}
+	
+	/**
+	 * Physically removes the data points of all removed tracks from the index, and drops probes
+	 * that have no data points left. The compacted index is built under the read lock, so queries carry on 
+	 * while it is built, and swapped in under the write lock if the index did not change meanwhile.
+	 * @return The number of data points removed.
+	 */
+	public long compact()
+	{
+		synchronized(compactionLock){
+			for(int attempt = 0; attempt < COMPACTION_ATTEMPTS; attempt++){
+				long builtGeneration;
+				LinkedHashMap<Probe, ArrayList<ProbeDataPoint>> compacted;
+				long removed = 0;
+				lock.readLock().lock();
+				try{
+					if(deletedTracks.isEmpty())return 0;
+					builtGeneration = generation;
+					compacted = new LinkedHashMap<Probe, ArrayList<ProbeDataPoint>>(indexProbeMapping.size()*4/3 + 1);
+					for(Map.Entry<Probe, ArrayList<ProbeDataPoint>> entry : indexProbeMapping.entrySet()){
+						ArrayList<ProbeDataPoint> dataPoints = entry.getValue();
+						int kept = 0;
+						for(int i = 0; i < dataPoints.size(); i++){
+							if(!deletedTracks.get(dataPoints.get(i).getTrackID().getIntID()))kept++;
+						}
+						removed += dataPoints.size() - kept;
+						if(kept == dataPoints.size()){
+							compacted.put(entry.getKey(), dataPoints);//unchanged lists are shared with the new index
+						} else if(kept > 0){
+							ArrayList<ProbeDataPoint> keptPoints = new ArrayList<ProbeDataPoint>(kept);
+							for(int i = 0; i < dataPoints.size(); i++){
+								ProbeDataPoint dataPoint = dataPoints.get(i);
+								if(!deletedTracks.get(dataPoint.getTrackID().getIntID()))keptPoints.add(dataPoint);
+							}
+							compacted.put(entry.getKey(), keptPoints);
+						}
+					}
+				} finally{
+					lock.readLock().unlock();
+				}
+				lock.writeLock().lock();
+				try{
+					if(generation == builtGeneration){
+						indexProbeMapping = compacted;
+						clearDeletedTracks(removed);
+						return removed;
+					}
+				} finally{
+					lock.writeLock().unlock();
+				}
+			}
+			lock.writeLock().lock();
+			try{
+				return compactLocked();
+			} finally{
+				lock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Removes the data points of all removed tracks from the index. Must be called with the write lock held.
+	 * Compacting does not change the results of any query, so the generation of the index stays the same.
+	 * @return The number of data points removed.
+	 */
+	private long compactLocked()
+	{
+		if(deletedTracks.isEmpty())return 0;
+		long removed = 0;
+		for(Iterator<ArrayList<ProbeDataPoint>>it = indexProbeMapping.values().iterator();it.hasNext();){
+			ArrayList<ProbeDataPoint> dataPoints = it.next();
+			int kept = 0;
+			for(int i = 0; i < dataPoints.size(); i++){
+				ProbeDataPoint dataPoint = dataPoints.get(i);
+				if(!deletedTracks.get(dataPoint.getTrackID().getIntID())){
+					dataPoints.set(kept++, dataPoint);
+				}
+			}
+			removed += dataPoints.size() - kept;
+			if(kept == 0){
+				it.remove();
+			} else {
+				dataPoints.subList(kept, dataPoints.size()).clear();
+				dataPoints.trimToSize();
+			}
+		}
+		clearDeletedTracks(removed);
+		return removed;
+	}
+	
+	/**
+	 * Forgets the removed tracks once their data points are out of the index. Must be called with the write lock held.
+	 * @param removed The number of data points removed.
+	 */
+	private void clearDeletedTracks(long removed)
+	{
+		for(int trackNo = deletedTracks.nextSetBit(0); trackNo >= 0; trackNo = deletedTracks.nextSetBit(trackNo+1)){
+			if(trackNo < postingsPerTrack.length)postingsPerTrack[trackNo] = 0;
+		}
+		totalPostings -= removed;
+		deletedPostings = 0;
+		deletedTracks.clear();
+	}
+	
+	/**
+	 * Writes the index to a stream. The data points of removed tracks are left out.
+	 * @param out The stream to write to.
+	 * @throws IOException If the stream cannot be written.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException
+	{
+		lock.readLock().lock();
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(indexProbeMapping.size());
+			for(Map.Entry<Probe, ArrayList<ProbeDataPoint>> entry : indexProbeMapping.entrySet()){
+				Probe probe = entry.getKey();
+				ArrayList<ProbeDataPoint> dataPoints = entry.getValue();
+				int live = 0;
+				for(int i = 0; i < dataPoints.size(); i++){
+					if(!deletedTracks.get(dataPoints.get(i).getTrackID().getIntID()))live++;
+				}
+				out.writeInt(probe.getDt());
+				out.writeInt(probe.getFirstFrequency());
+				out.writeInt(probe.getSecondFrequency());
+				out.writeInt(live);
+				for(int i = 0; i < dataPoints.size(); i++){
+					ProbeDataPoint dataPoint = dataPoints.get(i);
+					int trackNo = dataPoint.getTrackID().getIntID();
+					if(deletedTracks.get(trackNo))continue;
+					out.writeInt(trackNo);
+					out.writeInt(dataPoint.getIndex());
+				}
+			}
+		} finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Reads an index that was written with writeTo.
+	 * @param in The stream to read from.
+	 * @return The index.
+	 * @throws IOException If the stream cannot be read or does not hold an index.
+	 */
+	public static CachedIndexMap readFrom(DataInputStream in) throws IOException
+	{
+		if(in.readInt() != MAGIC)throw new IOException("Not an index map.");
+		CachedIndexMap map = new CachedIndexMap();
+		int probes = in.readInt();
+		HashMap<Integer, TrackID> trackIDs = new HashMap<Integer, TrackID>();
+		for(int p = 0; p < probes; p++){
+			Probe probe = new Probe(in.readInt(), in.readInt(), in.readInt());
+			int size = in.readInt();
+			ArrayList<ProbeDataPoint> dataPoints = new ArrayList<ProbeDataPoint>(size);
+			for(int i = 0; i < size; i++){
+				int trackNo = in.readInt();
+				int index = in.readInt();
+				TrackID id = trackIDs.get(trackNo);
+				if(id == null){
+					id = new TrackID(trackNo);
+					trackIDs.put(trackNo, id);
+				}
+				dataPoints.add(new ProbeDataPoint(id, index));
+				if(trackNo >= map.postingsPerTrack.length){
+					map.postingsPerTrack = Arrays.copyOf(map.postingsPerTrack, Math.max(trackNo+1, map.postingsPerTrack.length*2));
+				}
+				map.postingsPerTrack[trackNo]++;
+			}
+			map.totalPostings += size;
+			map.indexProbeMapping.put(probe, dataPoints);
+		}
+		return map;
+	}
 
 }
@@ -4,7 +4,6 @@ package bazam;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.util.ArrayList;
 
 import javax.sound.*;
 import javax.sound.sampled.AudioFileFormat;
@@ -38,11 +37,17 @@ public class ClipFrame extends JFrame
 	/** Menu item to play the clip */
 	private JMenuItem play;
 	
+	/** Menu item to pause the clip */
+	private JMenuItem pause;
+	
+	/** Menu item to stop the clip */
+	private JMenuItem stop;
+	
 	/** Menu item to match selected clip against index */
 	private JMenuItem match;	
 	
-	/** List of the threads started */
-	private ArrayList<Thread>threadList = new ArrayList<Thread>();	
+	/** Plays the clip; one playback thread serves every press of play */
+	private Player player = new Player();	
 	
 	/**
 	 * Constructs a clip frame open user selection of a clip.
@@ -64,20 +69,37 @@ public class ClipFrame extends JFrame
 		play.addActionListener
 			(new ActionListener(){
 				public void actionPerformed (ActionEvent e){
-					Thread t = new Thread(signal);
-					threadList.add(t);
-					t.start();	
+					player.play(signal.getAudioClip());
 				}
 			});
 		fileMenu.add(play);				
 		
+		pause = new JMenuItem("Pause");
+		pause.addActionListener
+			(new ActionListener(){
+				public void actionPerformed (ActionEvent e){
+					player.pause();
+				}
+			});
+		fileMenu.add(pause);
+		
+		stop = new JMenuItem("Stop");
+		stop.addActionListener
+			(new ActionListener(){
+				public void actionPerformed (ActionEvent e){
+					player.stop();
+				}
+			});
+		fileMenu.add(stop);
+		
 		//TO match tracks
 		match = new JMenuItem("Match Track");
 		match.addActionListener
 			(new ActionListener(){
 				public void actionPerformed(ActionEvent e){
 					try {
-						trackIndex.matchSignal(signal);						
+						MatchResults results = trackIndex.matchSignal(signal);
+						new MatchResultsFrame(results, trackIndex.getTrackMap());
 					} catch(NullPointerException x){
 						JOptionPane.showMessageDialog(null, "Nothing in the index.");
 						x.printStackTrace();
@@ -133,8 +155,11 @@ public class ClipFrame extends JFrame
 			(new ActionListener() {
 				public void actionPerformed(ActionEvent e)
 				{					
-					Probe.increaseSelectivity();
-					
+					if(Probe.increaseSelectivity()){
+						JOptionPane.showMessageDialog(null, "Increased the selectivity of probes.");
+					} else {
+						JOptionPane.showMessageDialog(null, "Reached maximum selectivity of probes.", "Warning", JOptionPane.WARNING_MESSAGE);
+					}
 				}
 			});
 		
@@ -144,8 +169,11 @@ public class ClipFrame extends JFrame
 			(new ActionListener() {
 				public void actionPerformed(ActionEvent e)
 				{					
-					Probe.decreaseSelectivity();
-					
+					if(Probe.decreaseSelectivity()){
+						JOptionPane.showMessageDialog(null, "Decreased the selectivity of probes.");
+					} else {
+						JOptionPane.showMessageDialog(null, "Reached minimum selectivity of probes.", "Warning", JOptionPane.WARNING_MESSAGE);
+					}
 				}
 			});
 		menuBar.add(adjustMenu);
@@ -154,6 +182,21 @@ public class ClipFrame extends JFrame
 		
 		waveformPanel = new WaveformPanel(signal);		
 		spectrogramPanel = new SpectrogramPanel(signal);
+		//clicking the waveform moves playback to the sample clicked
+		waveformPanel.addMouseListener
+			(new MouseAdapter() {
+				public void mousePressed(MouseEvent e)
+				{
+					player.seek(waveformPanel.getSampleAt(e.getX()));
+				}
+			});
+		addWindowListener
+			(new WindowAdapter() {
+				public void windowClosing(WindowEvent e)
+				{
+					player.close();//ends the playback thread, which would otherwise keep the clip reachable
+				}
+			});
 		Container c = getContentPane();
 			
 		JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT);
@@ -161,7 +204,7 @@ public class ClipFrame extends JFrame
 		splitPane.setBottomComponent(spectrogramPanel);
 		JScrollPane scrollPane = new JScrollPane(splitPane);
 		c.add(scrollPane);
-		setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+		setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 		pack();
 		setVisible(true);
 	}
@@ -0,0 +1,359 @@
+package bazam;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Splits an index that does not fit in one JVM across several PartitionWorker processes by track ID range:
+ * worker p holds the tracks whose IDs are in [p*tracksPerPartition, (p+1)*tracksPerPartition). The
+ * coordinator keeps the catalogue of tracks, sends each new track to the worker of its range, and sends
+ * each query's hash points to every worker at once, merging the top matches they return.
+ * <p>
+ * A track is wholly inside one partition, so its offset histogram is too, and the top matches of the whole
+ * index are the best of the top matches of the partitions. Each worker only returns the summary of the
+ * histograms of its top tracks (best offset, votes at that offset, total votes). Adding workers adds
+ * capacity; since the partitions are queried in parallel, a query takes as long as the slowest partition.
+ * @author Brook
+ *
+ */
+public class Coordinator
+{
+	/** The time given to a worker to start, in milliseconds */
+	public static long WORKER_START_MILLIS = 30000;
+
+	/** The catalogue of all the tracks */
+	private TrackMap trackMap;
+
+	/** The base URL of each worker, by partition number */
+	private URL[] workers;
+
+	/** The number of track IDs in each partition */
+	private int tracksPerPartition;
+
+	/** Sends the requests to the workers */
+	private ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory(){
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r, "coordinator");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/** The worker processes started by startLocal */
+	private ArrayList<Process> processes = new ArrayList<Process>();
+
+	/**
+	 * Constructs a coordinator over running workers.
+	 * @param trackMap The catalogue of all the tracks.
+	 * @param workers The base URL of each worker, by partition number.
+	 * @param tracksPerPartition The number of track IDs in each partition.
+	 */
+	public Coordinator(TrackMap trackMap, List<URL> workers, int tracksPerPartition)
+	{
+		this.trackMap = trackMap;
+		this.workers = workers.toArray(new URL[workers.size()]);
+		this.tracksPerPartition = tracksPerPartition;
+	}
+
+	/**
+	 * Starts the workers as processes on this machine, such as for testing, and constructs a coordinator
+	 * over them. Worker p listens on firstPort+p and keeps its partition in folder/partition-p.idx.
+	 * @param trackMap The catalogue of all the tracks.
+	 * @param folder The folder holding the partitions.
+	 * @param partitions The number of workers.
+	 * @param tracksPerPartition The number of track IDs in each partition.
+	 * @param firstPort The port of the first worker.
+	 * @return The coordinator. Closing it stops the workers.
+	 * @throws IOException If a worker cannot be started.
+	 */
+	public static Coordinator startLocal(TrackMap trackMap, File folder, int partitions, int tracksPerPartition,
+			int firstPort) throws IOException
+	{
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ArrayList<URL> urls = new ArrayList<URL>();
+		ArrayList<Process> started = new ArrayList<Process>();
+		try{
+			for(int p = 0; p < partitions; p++){
+				File indexFile = new File(folder, "partition-" + p + ".idx");
+				ProcessBuilder builder = new ProcessBuilder(java, "-Djava.awt.headless=true",
+						"-cp", System.getProperty("java.class.path"), Bazam.class.getName(),
+						"--index", indexFile.getPath(), "worker", "--port", Integer.toString(firstPort+p),
+						"--first-track", Integer.toString(p*tracksPerPartition));
+				builder.redirectErrorStream(true);
+				Process process = builder.start();
+				started.add(process);
+				drain(process.getInputStream());
+				urls.add(new URL("http://localhost:" + (firstPort+p) + "/"));
+			}
+			for(URL url : urls){
+				waitForWorker(url);
+			}
+		} catch(IOException e){
+			for(Process process : started)process.destroy();
+			throw e;
+		}
+		Coordinator coordinator = new Coordinator(trackMap, urls, tracksPerPartition);
+		coordinator.processes = started;
+		return coordinator;
+	}
+
+	/**
+	 * Reads the output of a worker process so it never blocks on a full pipe.
+	 * @param in The output of the process.
+	 */
+	private static void drain(final InputStream in)
+	{
+		Thread t = new Thread("worker output"){
+			public void run(){
+				byte[] buf = new byte[1024];
+				try{
+					while(in.read(buf) != -1){
+						//the worker only prints its status
+					}
+				} catch(IOException e){
+					//the process ended
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Waits until a worker answers its health check.
+	 * @param url The base URL of the worker.
+	 * @throws IOException If the worker does not answer in time.
+	 */
+	private static void waitForWorker(URL url) throws IOException
+	{
+		long end = System.currentTimeMillis() + WORKER_START_MILLIS;
+		while(true){
+			try{
+				HttpURLConnection connection = (HttpURLConnection)new URL(url, "health").openConnection();
+				connection.setConnectTimeout(1000);
+				if(connection.getResponseCode() == 200){
+					connection.getInputStream().close();
+					return;
+				}
+			} catch(IOException e){
+				if(System.currentTimeMillis() > end)throw new IOException("Worker did not start: " + url);
+			}
+			try{
+				Thread.sleep(100);
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while starting " + url);
+			}
+		}
+	}
+
+	/**
+	 * Adds a track to the catalogue and has the worker of its range index it. The worker must be able to
+	 * read the file under the same path.
+	 * @param file The audio file.
+	 * @return The TrackID of the track.
+	 * @throws IOException If no worker holds the range of the track ID, or the worker could not index it.
+	 */
+	public TrackID addTrack(File file) throws IOException
+	{
+		TrackID id = trackMap.getTrackID(file);
+		if(id != null)return id;
+		id = trackMap.addTrack(file);
+		int partition = getPartitionOf(id.getIntID());
+		try{
+			if(partition >= workers.length){
+				throw new IOException("No partition for track " + id.getIntID() + "; add a worker.");
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(id.getIntID());
+			out.writeUTF(file.getAbsolutePath());
+			byte[] response = post(new URL(workers[partition], "partition/index"), bytes.toByteArray(), 0);
+			trackMap.setNumberHashPoints(id, new DataInputStream(new ByteArrayInputStream(response)).readInt());
+			return id;
+		} catch(IOException e){
+			trackMap.removeTrack(id);
+			throw e;
+		}
+	}
+
+	/**
+	 * Matches the hash points of a query against every partition at once, and merges their top matches.
+	 * @param hashPoints The hash points of the query.
+	 * @param topK The number of matches to return.
+	 * @param deadline The deadline of the query, passed on to the workers.
+	 * @return The best matches of the whole index.
+	 * @throws IOException If a worker could not be reached or failed.
+	 */
+	public Answer query(ArrayList<HashPoint> hashPoints, final int topK, Deadline deadline) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + hashPoints.size()*10);
+		PartitionWorker.writeQuery(new DataOutputStream(bytes), hashPoints, topK,
+				Math.max(1, deadline.remainingNanos()/1000000));
+		final byte[] request = bytes.toByteArray();
+		final int timeout = (int)Math.min(Integer.MAX_VALUE, Math.max(1, deadline.remainingNanos()/1000000));
+		ArrayList<Future<byte[]>> responses = new ArrayList<Future<byte[]>>();
+		for(int p = 0; p < workers.length; p++){
+			final URL url = new URL(workers[p], "partition/query");
+			responses.add(executor.submit(new Callable<byte[]>(){
+				public byte[] call() throws IOException{
+					return post(url, request, timeout);
+				}
+			}));
+		}
+		Answer answer = new Answer();
+		for(int p = 0; p < workers.length; p++){
+			byte[] response;
+			try{
+				response = responses.get(p).get();
+			} catch(ExecutionException e){
+				for(Future<byte[]> other : responses)other.cancel(true);
+				if(e.getCause() instanceof IOException)throw (IOException)e.getCause();
+				throw new IOException("Partition " + p + " failed: " + e.getCause());
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while querying partition " + p);
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+			if(in.readBoolean())answer.partial = true;
+			int size = in.readInt();
+			for(int i = 0; i < size; i++){
+				answer.matches.add(new RankedMatch(new TrackID(in.readInt()), in.readInt(), in.readInt(), in.readInt()));
+			}
+		}
+		Collections.sort(answer.matches);
+		if(answer.matches.size() > topK){
+			answer.matches.subList(topK, answer.matches.size()).clear();
+		}
+		return answer;
+	}
+
+	/**
+	 * Has every worker save its partition, and writes the catalogue.
+	 * @param catalogue The file the catalogue is written to.
+	 * @throws IOException If a worker could not save its partition or the catalogue cannot be written.
+	 */
+	public void save(File catalogue) throws IOException
+	{
+		for(URL worker : workers){
+			post(new URL(worker, "partition/save"), new byte[0], 0);
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(catalogue)));
+		try{
+			trackMap.writeTo(out);
+		} finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Stops the worker processes started by startLocal.
+	 */
+	public void close()
+	{
+		for(Process process : processes){
+			process.destroy();
+		}
+		processes.clear();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Gets the partition that holds a track.
+	 * @param trackNo The track ID.
+	 * @return The partition number.
+	 */
+	public int getPartitionOf(int trackNo)
+	{
+		return trackNo/tracksPerPartition;
+	}
+
+	/**
+	 * Gets the number of partitions.
+	 * @return The number of workers.
+	 */
+	public int getNumberOfPartitions()
+	{
+		return workers.length;
+	}
+
+	/**
+	 * Gets the catalogue of all the tracks.
+	 * @return The track map.
+	 */
+	public TrackMap getTrackMap()
+	{
+		return trackMap;
+	}
+
+	/**
+	 * Posts a request to a worker.
+	 * @param url The URL of the request.
+	 * @param body The body of the request.
+	 * @param timeoutMillis The time to wait for the response, or 0 to wait as long as it takes.
+	 * @return The body of the response.
+	 * @throws IOException If the worker could not be reached or failed.
+	 */
+	private static byte[] post(URL url, byte[] body, int timeoutMillis) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		connection.setConnectTimeout(timeoutMillis);
+		connection.setReadTimeout(timeoutMillis);
+		OutputStream out = connection.getOutputStream();
+		try{
+			out.write(body);
+		} finally{
+			out.close();
+		}
+		int status = connection.getResponseCode();
+		InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		if(in != null){
+			try{
+				byte[] buf = new byte[8192];
+				int n;
+				while((n = in.read(buf)) != -1)response.write(buf, 0, n);
+			} finally{
+				in.close();
+			}
+		}
+		if(status != 200){
+			throw new IOException(url + " answered " + status + ": " + response.toString("UTF-8"));
+		}
+		return response.toByteArray();
+	}
+
+	/**
+	 * The merged answer of the partitions to a query.
+	 */
+	public static class Answer
+	{
+		/** The best matches, from the best to the worst */
+		private ArrayList<RankedMatch> matches = new ArrayList<RankedMatch>();
+
+		/** Whether a partition skipped hashes to meet the deadline */
+		private boolean partial = false;
+
+		/**
+		 * Gets the best matches of the whole index.
+		 * @return The matches, from the best to the worst.
+		 */
+		public ArrayList<RankedMatch> getMatches()
+		{
+			return matches;
+		}
+
+		/**
+		 * Checks whether a partition skipped hashes to meet the deadline.
+		 * @return True if the answer is partial.
+		 */
+		public boolean isPartial()
+		{
+			return partial;
+		}
+	}
+}
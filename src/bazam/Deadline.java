@@ -0,0 +1,103 @@
+package bazam;
+
+/**
+ * The time by which a query must be answered. A deadline is created when a query is admitted and carried
+ * through fingerprinting and lookup, so each stage can tell how much time is left and cut its work short
+ * instead of making the query late.
+ * @author Brook
+ *
+ */
+public class Deadline
+{
+	/** The fraction of the time budget below which a deadline is near, and queries degrade */
+	public static double NEAR_FRACTION = 0.25;
+
+	/** A deadline that never expires */
+	public static final Deadline NONE = new Deadline(Long.MAX_VALUE/4, 0);
+
+	/** When the deadline was set, from System.nanoTime */
+	private long start;
+
+	/** The time budget, in nanoseconds */
+	private long budget;
+
+	/**
+	 * Constructs a deadline from a time budget.
+	 * @param budgetNanos The time budget, in nanoseconds.
+	 * @param start When the budget starts, from System.nanoTime.
+	 */
+	private Deadline(long budgetNanos, long start)
+	{
+		this.budget = budgetNanos;
+		this.start = start;
+	}
+
+	/**
+	 * Creates a deadline that expires after the given time from now.
+	 * @param millis The time budget, in milliseconds.
+	 * @return The deadline.
+	 */
+	public static Deadline after(long millis)
+	{
+		return new Deadline(millis*1000000L, System.nanoTime());
+	}
+
+	/**
+	 * Creates a deadline that expires after the given time from an earlier moment, such as the arrival of
+	 * a request that had to wait before being handled.
+	 * @param millis The time budget, in milliseconds.
+	 * @param startNanos When the budget starts, from System.nanoTime.
+	 * @return The deadline.
+	 */
+	public static Deadline after(long millis, long startNanos)
+	{
+		return new Deadline(millis*1000000L, startNanos);
+	}
+
+	/**
+	 * Gets the time left before the deadline.
+	 * @return The time left in nanoseconds, negative once the deadline has passed.
+	 */
+	public long remainingNanos()
+	{
+		if(this == NONE)return Long.MAX_VALUE;
+		return budget - (System.nanoTime() - start);
+	}
+
+	/**
+	 * Gets the fraction of the time budget that is left.
+	 * @return A value up to 1, negative once the deadline has passed.
+	 */
+	public double getFractionRemaining()
+	{
+		if(this == NONE)return 1;
+		return (double)remainingNanos()/(double)budget;
+	}
+
+	/**
+	 * Checks whether the deadline has passed.
+	 * @return True if no time is left.
+	 */
+	public boolean isExpired()
+	{
+		return remainingNanos() <= 0;
+	}
+
+	/**
+	 * Checks whether less than NEAR_FRACTION of the time budget is left.
+	 * @return True if the query should degrade to meet the deadline.
+	 */
+	public boolean isNear()
+	{
+		return getFractionRemaining() < NEAR_FRACTION;
+	}
+
+	/**
+	 * Gets a string representation of the deadline.
+	 */
+	public String toString()
+	{
+		if(this == NONE)return "No deadline";
+		return ("Deadline in " + remainingNanos()/1000000 + "ms of " + budget/1000000 + "ms");
+	}
+}
@@ -0,0 +1,150 @@
+package bazam;
+import java.io.*;
+
+/**
+ * Emits the Flight Recorder events of the engine: one per track indexed and one per query, so a recording
+ * shows which tracks and which clips the CPU and the garbage collector were busy with. Where the JVM has no
+ * Flight Recorder (before 8u262), the events cost nothing and go nowhere; the events themselves live in
+ * JfrFlightEvents, which is only loaded when jdk.jfr is there.
+ * <p>
+ * Even on a JVM with a Flight Recorder, get hands out the events that go nowhere while no recording is
+ * running: creating and timing an event for every query costs a large part of the query throughput. The
+ * Flight Recorder events are swapped in when a recording starts, whether with --jfr, on the command line
+ * of the JVM or from a tool attached to it, and swapped out when the last recording stops.
+ * <p>
+ * A recording with the bundled profile can be started with -XX:StartFlightRecording:settings=bazam.jfc
+ * (unzip bazam/bazam.jfc from the jar), or from inside the process with startRecording.
+ * @author Brook
+ *
+ */
+public class FlightEvents
+{
+	/** The profile bundled with the classes */
+	public static final String PROFILE = "bazam.jfc";
+
+	/** The events that go nowhere */
+	private static final FlightEvents NONE = new FlightEvents();
+
+	/** The Flight Recorder events, or null if the JVM has no Flight Recorder */
+	private static final FlightEvents RECORDER = load();
+
+	/** The events handed out: RECORDER while a recording is running, NONE otherwise */
+	private static volatile FlightEvents active = NONE;
+
+	static{
+		if(RECORDER != null)RECORDER.watch();
+	}
+
+	/**
+	 * Loads the Flight Recorder events.
+	 * @return The events, or null if the JVM has no Flight Recorder.
+	 */
+	private static FlightEvents load()
+	{
+		try{
+			Class.forName("jdk.jfr.Event");
+			return (FlightEvents)Class.forName("bazam.JfrFlightEvents").getDeclaredConstructor().newInstance();
+		} catch(Throwable e){
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the events to emit now.
+	 * @return The Flight Recorder events while a recording is running, events that go nowhere otherwise.
+	 */
+	public static FlightEvents get()
+	{
+		return active;
+	}
+
+	/**
+	 * Tells the engine whether a recording is running, so that get hands out the events that match.
+	 * @param recording True if at least one recording is running.
+	 */
+	static void setRecording(boolean recording)
+	{
+		active = recording && RECORDER != null ? RECORDER : NONE;
+	}
+
+	/**
+	 * Starts following the recordings of the Flight Recorder, calling setRecording whenever one starts or stops.
+	 */
+	void watch()
+	{
+	}
+
+	/**
+	 * Starts recording with the bundled profile until the process exits; see record.
+	 * @param destination The file the recording is written to.
+	 * @param maxAgeMinutes How much of the recording is kept.
+	 * @return True if the recording started, false if the JVM has no Flight Recorder.
+	 * @throws IOException If the profile cannot be read or the file cannot be written.
+	 */
+	public static boolean startRecording(File destination, int maxAgeMinutes) throws IOException
+	{
+		if(RECORDER == null)return false;
+		boolean started = RECORDER.record(destination, maxAgeMinutes);
+		if(started)setRecording(true);
+		return started;
+	}
+
+	/**
+	 * Starts timing the indexing of a track.
+	 * @return The event, to be passed to commitIndex, or null if there is no Flight Recorder.
+	 */
+	public Object beginIndex()
+	{
+		return null;
+	}
+
+	/**
+	 * Ends the indexing of a track and records it, if the recording wants it.
+	 * @param event The event returned by beginIndex.
+	 * @param file The audio file.
+	 * @param trackNo The ID of the track.
+	 * @param samples The number of samples decoded.
+	 * @param peaks The number of peaks found.
+	 * @param hashes The number of hash points extracted.
+	 * @param decodeNanos The time spent decoding the file.
+	 * @param fingerprintNanos The time spent computing the spectrogram and the hash points.
+	 * @param insertNanos The time spent adding the hash points to the index.
+	 */
+	public void commitIndex(Object event, File file, int trackNo, long samples, int peaks, int hashes,
+			long decodeNanos, long fingerprintNanos, long insertNanos)
+	{
+	}
+
+	/**
+	 * Starts timing a query.
+	 * @return The event, to be passed to commitQuery, or null if there is no Flight Recorder.
+	 */
+	public Object beginQuery()
+	{
+		return null;
+	}
+
+	/**
+	 * Ends a query and records it, if the recording wants it.
+	 * @param event The event returned by beginQuery.
+	 * @param name The name of the query.
+	 * @param hashes The number of hash points of the query.
+	 * @param results The results of the query.
+	 */
+	public void commitQuery(Object event, String name, int hashes, MatchResults results)
+	{
+	}
+
+	/**
+	 * Starts recording with the bundled profile until the process exits, keeping the last maxAgeMinutes
+	 * minutes, and writes the recording to a file when the process exits.
+	 * @param destination The file the recording is written to.
+	 * @param maxAgeMinutes How much of the recording is kept.
+	 * @return True if the recording started, false if the JVM has no Flight Recorder.
+	 * @throws IOException If the profile cannot be read or the file cannot be written.
+	 */
+	boolean record(File destination, int maxAgeMinutes) throws IOException
+	{
+		return false;
+	}
+}
@@ -1,41 +1,80 @@
 package bazam;
 import java.util.*;
 /**
- * This class represents a map of the number of probes that matched mapped to the 
- * time offset (dt)  between the probe to match and the probe in the constructed index. There is 
- * one histogram for each track in the index. 
+ * This class represents a map of the number of probes that matched mapped to the
+ * time offset (dt)  between the probe to match and the probe in the constructed index. There is
+ * one histogram for each track in the index.
+ * <p>
+ * Offsets are binned by spectrum (Spectrogram.SAMPLE_SIZE samples) and counted in an open addressing
+ * table of primitive ints. The bin with the most matches and the total number of matches are kept up to
+ * date as matches are added, so reading them does not walk the table.
  * @author Brook
  *
  */
-public class Histogram 
+public class Histogram
 {
-	/** List of all the matches. Key is the time offset, value is the number of matches the time offset */
-	private HashMap<Integer,Integer>matches;
-	
+	/** The offset bins of the table. Empty slots hold EMPTY */
+	private int[] bins;
+
+	/** The number of matches at each offset bin of the table */
+	private int[] counts;
+
+	/** The number of offset bins in use */
+	private int size;
+
+	/** The combined number of matches at all the offset bins */
+	private int totalMatches;
+
+	/** The offset bin with the most matches */
+	private int bestBin;
+
+	/** The number of matches at the best offset bin */
+	private int bestCount;
+
+	/** Marks an empty slot in the table. No offset is ever this far from zero */
+	private static final int EMPTY = Integer.MIN_VALUE;
+
+	/** The number of slots a histogram starts with */
+	private static final int INITIAL_CAPACITY = 8;
+
 	/**
 	 * Creates a histogram
 	 */
 	public Histogram()
 	{
-		matches = new HashMap<Integer,Integer>();		
+		bins = new int[INITIAL_CAPACITY];
+		counts = new int[INITIAL_CAPACITY];
+		Arrays.fill(bins, EMPTY);
 	}
-	
+
 	/**
 	 * Increase the count of matches at the given time difference
 	 * @param dt
 	 */
 	public void matchAt(int dt)
 	{
-		if(matches.containsKey(dt)){//there is an identical time difference already found
-			int count = matches.get(dt);
-			count++;
-			matches.put(dt,count);
-		} else {//the time difference is new
-			int count = 1; //new count
-			matches.put(dt, count);
-		}		
+		int bin = toBin(dt);
+		int slot = findSlot(bins, bin);
+		int count;
+		if(bins[slot] == EMPTY){//the time difference is new
+			if((size+1)*2 > bins.length){
+				grow();
+				slot = findSlot(bins, bin);
+			}
+			bins[slot] = bin;
+			size++;
+			count = 1;
+		} else {//there is an identical time difference already found
+			count = counts[slot] + 1;
+		}
+		counts[slot] = count;
+		totalMatches++;
+		if(count > bestCount){
+			bestCount = count;
+			bestBin = bin;
+		}
 	}
-	
+
 	/**
 	 * Gets the number of matches for a particular index difference.
 	 * @param dt Difference in the index.
@@ -43,54 +82,103 @@ public class Histogram
 	 */
 	public int getCount(int dt)
 	{
-		return (matches.get(dt));
-		
+		int slot = findSlot(bins, toBin(dt));
+		if(bins[slot] == EMPTY)return 0;
+		return counts[slot];
+
 	}
-	
+
 	/**
 	 * Gets the combined values of all the matches in the histogram.
 	 * @return The total matches for at all the dt's of the particular histogram.
 	 */
 	public int getTotalMatches()
 	{
-		int result = 0;
-		for(Integer i : matches.keySet()){
-			int matchTally = matches.get(i).intValue();
-			result+=matchTally;
-		}
-		return result;
+		return totalMatches;
+	}
+
+	/**
+	 * Gets the number of matches at the best time difference, without creating a MaxMatch.
+	 * @return The number of matches at the best time difference.
+	 */
+	public int getBestCount()
+	{
+		return bestCount;
 	}
-	
+
+	/**
+	 * Gets the time difference with the most matches, without creating a MaxMatch.
+	 * @return The best time difference.
+	 */
+	public int getBestDelta()
+	{
+		return bestBin*Spectrogram.SAMPLE_SIZE;
+	}
+
 	/**
 	 * Gets the maximum match at any given delta, and returns that as a <delta, number matched> pair
 	 * @return An object that contains the maximum match inside the histogram.
 	 */
 	public MaxMatch getMaxMatch()
 	{
-		MaxMatch result;
-		int maxTally = Integer.MIN_VALUE;
-		int delta = 0;
-		for(Integer i : matches.keySet()){
-			int matchTally = matches.get(i).intValue();
-			if(matchTally > maxTally){
-				maxTally = matchTally;	
-				delta = i;
-			}
+		if(bestCount == 0)return new MaxMatch(0, Integer.MIN_VALUE);
+		return new MaxMatch(getBestDelta(), bestCount);
+	}
+
+	/**
+	 * Converts a time difference to the offset bin it is counted in.
+	 * @param dt The time difference in samples.
+	 * @return The offset bin.
+	 */
+	private static int toBin(int dt)
+	{
+		int bin = dt/Spectrogram.SAMPLE_SIZE;
+		if(dt < 0 && bin*Spectrogram.SAMPLE_SIZE != dt)bin--;//round towards negative infinity
+		return bin;
+	}
+
+	/**
+	 * Finds the slot of the table that holds the bin, or the empty slot where it belongs.
+	 * @param table The table of bins, whose length is a power of two.
+	 * @param bin The offset bin.
+	 * @return The slot.
+	 */
+	private static int findSlot(int[] table, int bin)
+	{
+		int mask = table.length-1;
+		int slot = (bin * 0x9E3779B9) >>> 16 & mask;
+		while(table[slot] != EMPTY && table[slot] != bin){
+			slot = (slot+1) & mask;
 		}
-		result = new MaxMatch(delta,maxTally);
-		return result;		
+		return slot;
 	}
+
+	/**
+	 * Doubles the size of the table.
+	 */
+	private void grow()
+	{
+		int[] oldBins = bins;
+		int[] oldCounts = counts;
+		bins = new int[oldBins.length*2];
+		counts = new int[oldBins.length*2];
+		Arrays.fill(bins, EMPTY);
+		for(int i = 0; i < oldBins.length; i++){
+			if(oldBins[i] == EMPTY)continue;
+			int slot = findSlot(bins, oldBins[i]);
+			bins[slot] = oldBins[i];
+			counts[slot] = oldCounts[i];
+		}
+	}
+
 	/**
 	 * Prints out the contents of the histogram.
 	 */
 	public void print()
 	{
-		for(Integer delta : matches.keySet()){			
-			int matchCount = matches.get(delta);
-			System.out.println("Delta " + delta/Spectrogram.SAMPLE_SIZE + " Matches: " + matchCount);
-		}		
+		System.out.print(toString());
 	}
-	
+
 	/**
 	 * Gets a string representation of the contents.
 	 * @return The string representation of all the match results of this histogram.
@@ -98,11 +186,11 @@ public class Histogram
 	public String toString()
 	{
 		StringBuilder s = new StringBuilder();
-		for(Integer delta : matches.keySet()){			
-			int matchCount = matches.get(delta);
-			s.append("Delta " + delta/Spectrogram.SAMPLE_SIZE + " / Matches: " + matchCount + "\n");
-		}	
+		for(int i = 0; i < bins.length; i++){
+			if(bins[i] == EMPTY)continue;
+			s.append("Delta " + bins[i] + " / Matches: " + counts[i] + "\n");
+		}
 		return s.toString();
-		
+
 	}
 }
@@ -0,0 +1,502 @@
+package bazam;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.sound.sampled.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Identifies audio over HTTP with the JDK's built-in server, so no container is needed.
+ * <ul>
+ * <li>POST /identify?top=K&amp;timeoutMs=T takes a WAV file as the request body and returns the best matching
+ * tracks.</li>
+ * <li>GET /health returns the status of the service.</li>
+ * <li>GET /stats returns the size of the index and the request counters.</li>
+ * </ul>
+ * Uploads are fingerprinted while they are being received, block by block, so neither the upload nor its
+ * samples are ever held in full or written to a file. Each request runs on its own virtual thread when the
+ * JVM has them (Java 21 and later), so thousands of slow uploads only cost memory; on older JVMs requests run
+ * on a fixed pool of POOL_THREADS threads.
+ * <p>
+ * Only the stages that use the processor are bounded by the number of processors: a block of an upload is
+ * fingerprinted once it holds one of the fingerprinting permits, which it gives back before the next block is
+ * received, and lookups are admitted by an AdmissionController, which rejects them with 503 when its queue is
+ * full. An upload that is still being received holds neither, so slow uploads do not keep fast ones waiting.
+ * <p>
+ * Every request has a deadline, counted from its arrival, so time spent waiting for a thread counts. When the deadline is near, the upload is no longer
+ * fingerprinted and the lookup only uses the most selective hashes, so the response is flagged as partial
+ * instead of being late. A lookup that waits for an identical one in flight gives up with 503 at its deadline.
+ * Once MAX_CONNECTIONS requests are queued or running, a new one is answered with 503 as it arrives, on one of
+ * SHED_THREADS threads, or on the thread that accepts connections when those are all busy.
+ * @author Brook
+ *
+ */
+public class IdentificationServer
+{
+	/** The longest upload accepted, in seconds of audio */
+	public static double MAX_UPLOAD_SECONDS = 120;
+
+	/** The number of matches returned when the request does not say */
+	public static int DEFAULT_TOP = 5;
+
+	/** The time budget of a request that does not give one, in milliseconds */
+	public static long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+	/** The largest time budget a request may ask for, in milliseconds */
+	public static long MAX_TIMEOUT_MILLIS = 60000;
+
+	/** The most requests that may be queued or running at the same time; more are rejected as they arrive */
+	public static int MAX_CONNECTIONS = 4096;
+
+	/** The most lookups that may wait for their turn; more are rejected at once */
+	public static int MAX_WAITING_LOOKUPS = 256;
+
+	/** The number of request threads when the JVM has no virtual threads, which bounds the uploads received at once */
+	public static int POOL_THREADS = 1024;
+
+	/** The number of threads that answer the requests rejected as they arrive, when the JVM has no virtual threads */
+	public static int SHED_THREADS = 8;
+
+	/** The most rejected requests that may wait for a shedding thread; more are answered by the accepting thread */
+	private static final int MAX_WAITING_SHED = 1024;
+
+	/** The number of connections that may wait to be accepted */
+	private static final int BACKLOG = 4096;
+
+	/** The index to match against */
+	private TrackIndex trackIndex;
+
+	/** The HTTP server */
+	private HttpServer server;
+
+	/** Runs the requests */
+	private ExecutorService executor;
+
+	/** Answers the requests shed as they arrive, so they never wait behind the requests that were accepted */
+	private ExecutorService shedder;
+
+	/** When the request handled by the current thread was handed to the executor, from System.nanoTime */
+	private static final ThreadLocal<long[]> arrival = new ThreadLocal<long[]>(){
+		protected long[] initialValue(){
+			return new long[1];
+		}
+	};
+
+	/** Whether the request run by the current thread was shed as it arrived */
+	private static final ThreadLocal<boolean[]> shed = new ThreadLocal<boolean[]>(){
+		protected boolean[] initialValue(){
+			return new boolean[1];
+		}
+	};
+
+	/** Bounds the blocks of uploads fingerprinted at the same time, one per processor */
+	private Semaphore fingerprinting = new Semaphore(Runtime.getRuntime().availableProcessors(), true);
+
+	/** Bounds the lookups running at the same time, one per processor */
+	private AdmissionController admission = new AdmissionController(Runtime.getRuntime().availableProcessors(), 
+			MAX_WAITING_LOOKUPS);
+
+	/** Whether requests run on virtual threads */
+	private boolean virtualThreads;
+
+	/** The number of requests received */
+	private AtomicLong requests = new AtomicLong();
+
+	/** The number of uploads that were matched */
+	private AtomicLong identified = new AtomicLong();
+
+	/** The number of uploads rejected because of their format or size */
+	private AtomicLong rejected = new AtomicLong();
+
+	/** The number of requests rejected because the server was overloaded */
+	private AtomicLong overloaded = new AtomicLong();
+
+	/** The number of responses flagged as partial to meet their deadline */
+	private AtomicLong partial = new AtomicLong();
+
+	/** The number of requests that failed on the server */
+	private AtomicLong failed = new AtomicLong();
+
+	/** The number of requests being handled right now */
+	private AtomicInteger inFlight = new AtomicInteger();
+
+	/** The number of requests of any kind queued or running */
+	private AtomicInteger accepted = new AtomicInteger();
+
+	/**
+	 * Constructs a server. It does not accept requests until it is started.
+	 * @param trackIndex The index to match against.
+	 * @param address The address and port to listen on.
+	 * @throws IOException If the address cannot be bound.
+	 */
+	public IdentificationServer(TrackIndex trackIndex, InetSocketAddress address) throws IOException
+	{
+		this.trackIndex = trackIndex;
+		Metrics.watchIndex(trackIndex.getCachedIndexMap());
+		server = HttpServer.create(address, BACKLOG);
+		server.createContext("/identify", new IdentifyHandler());
+		server.createContext("/health", new HealthHandler());
+		server.createContext("/stats", new StatsHandler());
+		executor = newVirtualThreadExecutor();
+		virtualThreads = executor != null;
+		if(executor == null)executor = Executors.newFixedThreadPool(POOL_THREADS);
+		shedder = virtualThreads ? executor : new ThreadPoolExecutor(SHED_THREADS, SHED_THREADS, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(MAX_WAITING_SHED), new ThreadPoolExecutor.CallerRunsPolicy());
+		server.setExecutor(new Executor(){
+			public void execute(final Runnable request){
+				final long received = System.nanoTime();
+				if(accepted.incrementAndGet() > MAX_CONNECTIONS){
+					accepted.decrementAndGet();
+					shedder.execute(new Runnable(){
+						public void run(){
+							shed.get()[0] = true;
+							try{
+								request.run();
+							} finally{
+								shed.get()[0] = false;
+							}
+						}
+					});
+					return;
+				}
+				executor.execute(new Runnable(){
+					public void run(){
+						try{
+							arrival.get()[0] = received;
+							request.run();
+						} finally{
+							accepted.decrementAndGet();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Creates an executor that runs every task on a new virtual thread. It is looked up by reflection so the
+	 * server still runs on JVMs that do not have virtual threads.
+	 * @return The executor, or null if the JVM has no virtual threads.
+	 */
+	private static ExecutorService newVirtualThreadExecutor()
+	{
+		try{
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)method.invoke(null);
+		} catch(Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * Starts accepting requests.
+	 */
+	public void start()
+	{
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests, waits for the requests being handled, and releases the threads.
+	 * @param delaySeconds The longest time to wait for the requests being handled.
+	 */
+	public void stop(int delaySeconds)
+	{
+		server.stop(delaySeconds);
+		executor.shutdown();
+		shedder.shutdown();
+	}
+
+	/**
+	 * Gets the address the server listens on.
+	 * @return The address.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return server.getAddress();
+	}
+
+	/**
+	 * Fingerprints an upload while it is being received, taking a fingerprinting permit for each block. Once the
+	 * deadline is near, or passes while waiting for a permit, the rest of the upload is left unread and the 
+	 * upload is marked as truncated.
+	 * @param body The request body, holding an audio file.
+	 * @param deadline The deadline of the request.
+	 * @return The hash points of the upload.
+	 * @throws IOException If the body cannot be read.
+	 * @throws UnsupportedAudioFileException If the body is not an audio file in a supported format.
+	 */
+	private Upload fingerprint(InputStream body, final Deadline deadline) throws UnsupportedAudioFileException, IOException
+	{
+		AudioInputStream in = AudioSystem.getAudioInputStream(new BufferedInputStream(body, 1 << 16));
+		final Upload upload = new Upload();
+		upload.frameRate = Resampler.fingerprintRate(in.getFormat().getFrameRate());
+		final long maxSamples = (long)(MAX_UPLOAD_SECONDS*upload.frameRate);
+		final StreamingFingerprinter fingerprinter = new StreamingFingerprinter(new StreamingFingerprinter.HashPointListener(){
+			public void hashPoint(HashPoint hash){
+				upload.hashPoints.add(hash);
+			}
+		});
+		try{
+			StreamingFingerprinter.readSamples(in, new SampleSink(){
+				private long received = 0;
+				public void process(double[] samples, int offset, int length){
+					received += length;
+					if(received > maxSamples)throw new UploadTooLongException();
+					if(deadline.isNear())throw new DeadlineNearException();
+					acquireFingerprinting(deadline);
+					try{
+						fingerprinter.process(samples, offset, length);
+					} finally{
+						fingerprinting.release();
+					}
+				}
+			});
+		} catch(DeadlineNearException e){
+			upload.truncated = true;
+		}
+		fingerprinting.acquireUninterruptibly();
+		try{
+			fingerprinter.finish();
+		} finally{
+			fingerprinting.release();
+		}
+		return upload;
+	}
+
+	/**
+	 * Waits for a fingerprinting permit until the deadline of the request.
+	 * @param deadline The deadline of the request.
+	 * @throws DeadlineNearException If no permit was free before the deadline, or the thread was interrupted.
+	 */
+	private void acquireFingerprinting(Deadline deadline)
+	{
+		try{
+			if(fingerprinting.tryAcquire(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS))return;
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		throw new DeadlineNearException();
+	}
+
+	/**
+	 * The fingerprint of an upload.
+	 */
+	private static class Upload
+	{
+		/** The hash points of the audio that was read */
+		ArrayList<HashPoint> hashPoints = new ArrayList<HashPoint>();
+
+		/** The frame rate the audio was fingerprinted at */
+		double frameRate;
+
+		/** Whether the rest of the upload was left unread to meet the deadline */
+		boolean truncated = false;
+	}
+
+	/**
+	 * Thrown when an upload holds more audio than MAX_UPLOAD_SECONDS.
+	 */
+	private static class UploadTooLongException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Thrown to stop reading an upload when the deadline of the request is near.
+	 */
+	private static class DeadlineNearException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Sends a JSON response and closes the exchange.
+	 * @param exchange The exchange.
+	 * @param status The HTTP status code.
+	 * @param json The body of the response.
+	 * @throws IOException If the response cannot be sent.
+	 */
+	private static void send(HttpExchange exchange, int status, Json json) throws IOException
+	{
+		byte[] body = (json.toString() + "\n").getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try{
+			out.write(body);
+		} finally{
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Sends an error response.
+	 * @param exchange The exchange.
+	 * @param status The HTTP status code.
+	 * @param message What went wrong.
+	 * @throws IOException If the response cannot be sent.
+	 */
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException
+	{
+		send(exchange, status, new Json().put("error", message));
+	}
+
+	/**
+	 * Reads an integer parameter from the query string of a request.
+	 * @param exchange The exchange.
+	 * @param name The name of the parameter.
+	 * @param defaultValue The value if the parameter is missing.
+	 * @return The value of the parameter.
+	 * @throws NumberFormatException If the parameter is not an integer.
+	 */
+	private static int intParameter(HttpExchange exchange, String name, int defaultValue)
+	{
+		String query = exchange.getRequestURI().getRawQuery();
+		if(query == null)return defaultValue;
+		for(String pair : query.split("&")){
+			int equals = pair.indexOf('=');
+			if(equals > 0 && pair.substring(0, equals).equals(name)){
+				return Integer.parseInt(pair.substring(equals+1));
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Matches uploaded audio against the index.
+	 */
+	private class IdentifyHandler implements HttpHandler
+	{
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			requests.incrementAndGet();
+			inFlight.incrementAndGet();
+			try{
+				if(!exchange.getRequestMethod().equals("POST")){
+					exchange.getResponseHeaders().set("Allow", "POST");
+					sendError(exchange, 405, "Use POST with a WAV body.");
+					return;
+				}
+				if(shed.get()[0]){
+					overloaded.incrementAndGet();
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					sendError(exchange, 503, "Too many requests.");
+					return;
+				}
+				int top;
+				long timeout;
+				try{
+					top = intParameter(exchange, "top", DEFAULT_TOP);
+					timeout = intParameter(exchange, "timeoutMs", (int)DEFAULT_TIMEOUT_MILLIS);
+				} catch(NumberFormatException e){
+					top = 0;
+					timeout = 0;
+				}
+				if(top < 1 || timeout < 1){
+					rejected.incrementAndGet();
+					sendError(exchange, 400, "The top and timeoutMs parameters must be positive integers.");
+					return;
+				}
+				Deadline deadline = Deadline.after(Math.min(timeout, MAX_TIMEOUT_MILLIS), arrival.get()[0]);
+				if(deadline.isNear()){//waited too long for a thread to be worth starting
+					overloaded.incrementAndGet();
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					sendError(exchange, 503, "Too many requests.");
+					return;
+				}
+				Upload upload;
+				try{
+					upload = fingerprint(exchange.getRequestBody(), deadline);
+				} catch(UnsupportedAudioFileException e){
+					rejected.incrementAndGet();
+					sendError(exchange, 415, "Unsupported audio file format.");
+					return;
+				} catch(IllegalArgumentException e){
+					rejected.incrementAndGet();
+					sendError(exchange, 415, e.getMessage());
+					return;
+				} catch(UploadTooLongException e){
+					rejected.incrementAndGet();
+					sendError(exchange, 413, "Uploads are limited to " + MAX_UPLOAD_SECONDS + " seconds of audio.");
+					return;
+				}
+				if(!admission.admit(deadline)){
+					overloaded.incrementAndGet();
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					sendError(exchange, 503, "Too many lookups waiting.");
+					return;
+				}
+				MatchResults results;
+				try{
+					results = trackIndex.getCachedIndexMap().matchHashPoints(upload.hashPoints, "upload", deadline);
+				} catch(TimeoutException e){
+					overloaded.incrementAndGet();
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					sendError(exchange, 503, "Timed out waiting for an identical query.");
+					return;
+				} finally{
+					admission.release();
+				}
+				TrackMap trackMap = trackIndex.getTrackMap();
+				ArrayList<Json> matches = new ArrayList<Json>();
+				for(RankedMatch match : results.getTopMatches(top)){
+					matches.add(match.toJson(trackMap, upload.frameRate));
+				}
+				boolean isPartial = upload.truncated || results.isPartial();
+				if(isPartial)partial.incrementAndGet();
+				identified.incrementAndGet();
+				send(exchange, 200, new Json().put("hashes", upload.hashPoints.size()).put("partial", isPartial)
+						.put("confidence", results.getConfidenceMargin()).put("terminatedEarly", results.isTerminatedEarly())
+						.put("matches", matches));
+			} catch(RuntimeException e){
+				failed.incrementAndGet();
+				sendError(exchange, 500, e.toString());
+			} finally{
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Reports that the service is up.
+	 */
+	private class HealthHandler implements HttpHandler
+	{
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			send(exchange, 200, new Json().put("status", "ok").put("tracks", trackIndex.getNumberOfTracks()));
+		}
+	}
+
+	/**
+	 * Reports the size of the index and the request counters.
+	 */
+	private class StatsHandler implements HttpHandler
+	{
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			CachedIndexMap indexMap = trackIndex.getCachedIndexMap();
+			Json json = new Json().put("tracks", trackIndex.getNumberOfTracks()).put("probes", indexMap.getNumberOfProbes())
+					.put("dataPoints", indexMap.getNumberOfDataPoints()).put("generation", indexMap.getGeneration())
+					.put("requests", requests.get()).put("inFlight", inFlight.get()).put("identified", identified.get())
+					.put("rejected", rejected.get()).put("overloaded", overloaded.get()).put("partial", partial.get())
+					.put("failed", failed.get()).put("virtualThreads", virtualThreads)
+					.put("admission", new Json().put("waiting", admission.getWaiting()).put("admitted", admission.getAdmitted())
+							.put("rejected", admission.getRejected()).put("timedOut", admission.getTimedOut()));
+			QueryCache cache = indexMap.getQueryCache();
+			if(cache != null){
+				json.put("cache", new Json().put("entries", cache.size()).put("hits", cache.getHits())
+						.put("misses", cache.getMisses()).put("coalesced", cache.getCoalesced())
+						.put("timedOut", cache.getTimedOut()));
+			}
+			json.put("stages", Metrics.toJson());
+			send(exchange, 200, json);
+		}
+	}
+}
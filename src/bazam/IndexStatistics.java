@@ -0,0 +1,477 @@
+package bazam;
+import java.util.*;
+
+/**
+ * A report on the shape and size of an index, for sizing the hardware a library needs: how many distinct
+ * hashes it holds and how long their lists of data points (postings) are, which hashes are the hottest,
+ * how many hashes each track and each second of audio contributes, and how much memory and disk each
+ * structure takes. From these, project estimates the index at any number of tracks.
+ * <p>
+ * Memory is estimated for a 64-bit JVM with compressed references (heaps under 32 GB), counting one
+ * TrackID per track and posting lists sized exactly, as they are after loading a saved index. Lists that
+ * grew while indexing may hold up to half as much again in unused capacity.
+ * @author Brook
+ *
+ */
+public class IndexStatistics
+{
+	/** The number of hottest hashes reported, unless another number is asked for */
+	public static int HOTTEST = 10;
+
+	/** The heap taken by one entry of the probe map */
+	static final int ENTRY_BYTES = 40;
+
+	/** The heap taken by one Probe */
+	static final int PROBE_BYTES = 24;
+
+	/** The heap taken by one ArrayList, not counting its array */
+	static final int LIST_BYTES = 24;
+
+	/** The heap taken by one ProbeDataPoint */
+	static final int DATA_POINT_BYTES = 24;
+
+	/** The heap taken by one TrackID */
+	static final int TRACK_ID_BYTES = 16;
+
+	/** The size of a reference */
+	static final int REFERENCE_BYTES = 4;
+
+	/** The number of tracks indexed on their own */
+	private int tracks;
+
+	/** The number of tracks linked to another as duplicates */
+	private int aliases;
+
+	/** The number of track ID's allocated, including those of removed tracks */
+	private int trackIDLimit;
+
+	/** The total length of the tracks whose length is known, in seconds */
+	private double audioSeconds;
+
+	/** The hash points of the tracks whose length is known */
+	private long timedHashes;
+
+	/** The number of probes the probe settings can produce */
+	private long hashSpace;
+
+	/** The number of probes with at least one live data point */
+	private int distinctHashes;
+
+	/** The number of probes whose data points all belong to removed tracks */
+	private int emptyHashes;
+
+	/** The number of live data points */
+	private long postings;
+
+	/** The number of data points of removed tracks, still in memory until the index is compacted */
+	private long deletedPostings;
+
+	/** The sum of the squared lengths of the live posting lists */
+	private double postingsSquared;
+
+	/** The live length of every posting list, in increasing order */
+	private int[] lengths;
+
+	/** Bucket b counts the posting lists whose live length is at least 2^b and below 2^(b+1) */
+	private long[] lengthBuckets = new long[32];
+
+	/** The live data points of the posting lists of each bucket */
+	private long[] lengthBucketPostings = new long[32];
+
+	/** The hottest hashes, hottest first */
+	private ArrayList<HotHash> hottest;
+
+	/** The number of hash points of each track indexed on its own, in increasing order */
+	private int[] hashesPerTrack;
+
+	/** The hash points per second of audio of each track of known length, in increasing order */
+	private double[] hashesPerSecond;
+
+	/** Estimated heap of the entries of the probe map */
+	private long entryBytes;
+
+	/** Estimated heap of the table of the probe map */
+	private long tableBytes;
+
+	/** Estimated heap of the probes */
+	private long probeBytes;
+
+	/** Estimated heap of the posting lists, not counting their arrays */
+	private long listBytes;
+
+	/** Estimated heap of the arrays of the posting lists */
+	private long listArrayBytes;
+
+	/** Estimated heap of the data points */
+	private long dataPointBytes;
+
+	/** Estimated heap of the track ID's */
+	private long trackIDBytes;
+
+	/** Estimated heap of the track map */
+	private long trackMapBytes;
+
+	/** The size of the index once saved */
+	private long serializedBytes;
+
+	/** The part of the saved index taken by the track map */
+	private long serializedTrackMapBytes;
+
+	/**
+	 * Walks an index and its track map. Neither may change while they are walked; the probe map is
+	 * read-locked, but the track map must be left alone by the caller.
+	 * @param trackMap The tracks of the index.
+	 * @param indexMap The probes of the index.
+	 * @param hottest The number of hottest hashes to report.
+	 */
+	public IndexStatistics(TrackMap trackMap, CachedIndexMap indexMap, int hottest)
+	{
+		walkTracks(trackMap);
+		walkProbes(indexMap, Math.max(hottest, 0));
+		hashSpace = (long)Probe.TIME_OFFSET*Spectrogram.POWER_SIZE*Probe.FREQ_OFFSET;
+		entryBytes = (long)ENTRY_BYTES*(distinctHashes + emptyHashes);
+		tableBytes = TrackMap.arrayBytes(tableCapacity(distinctHashes + emptyHashes), REFERENCE_BYTES);
+		probeBytes = (long)PROBE_BYTES*(distinctHashes + emptyHashes);
+		listBytes = (long)LIST_BYTES*(distinctHashes + emptyHashes);
+		dataPointBytes = (long)DATA_POINT_BYTES*(postings + deletedPostings);
+		trackIDBytes = (long)TRACK_ID_BYTES*trackIDLimit;
+		trackMapBytes = trackMap.getMemoryBytes();
+		serializedTrackMapBytes = trackMap.getSerializedBytes();
+		serializedBytes = 16 + serializedTrackMapBytes + 8 + 16L*(distinctHashes + emptyHashes) + 8L*postings;
+	}
+
+	/**
+	 * Collects the hash points and length of every track.
+	 * @param trackMap The tracks.
+	 */
+	private void walkTracks(TrackMap trackMap)
+	{
+		trackIDLimit = trackMap.getTrackIDLimit();
+		int[] hashes = new int[trackMap.getNumberOfTracks()];
+		double[] rates = new double[hashes.length];
+		int rated = 0;
+		for(Iterator<TrackID> it = trackMap.getTrackIDIterator(); it.hasNext();){
+			TrackInfo info = trackMap.getTrackInfo(it.next());
+			if(info.isAlias()){
+				aliases++;
+				continue;
+			}
+			hashes[tracks++] = info.getNumberHashPoints();
+			if(info.getDuration() > 0){
+				audioSeconds += info.getDuration();
+				timedHashes += info.getNumberHashPoints();
+				rates[rated++] = info.getNumberHashPoints()/info.getDuration();
+			}
+		}
+		hashesPerTrack = Arrays.copyOf(hashes, tracks);
+		Arrays.sort(hashesPerTrack);
+		hashesPerSecond = Arrays.copyOf(rates, rated);
+		Arrays.sort(hashesPerSecond);
+	}
+
+	/**
+	 * Collects the length of every posting list, and the hottest hashes.
+	 * @param indexMap The probes.
+	 * @param hottestWanted The number of hottest hashes to keep.
+	 */
+	private void walkProbes(CachedIndexMap indexMap, final int hottestWanted)
+	{
+		lengths = new int[1024];
+		final PriorityQueue<HotHash> heap = new PriorityQueue<HotHash>(hottestWanted + 1);
+		indexMap.visitProbes(new CachedIndexMap.ProbeVisitor(){
+			public void visit(Probe probe, int dataPoints, int liveDataPoints){
+				deletedPostings += dataPoints - liveDataPoints;
+				listArrayBytes += TrackMap.arrayBytes(dataPoints, REFERENCE_BYTES);
+				if(liveDataPoints == 0){
+					emptyHashes++;
+					return;
+				}
+				if(distinctHashes == lengths.length)lengths = Arrays.copyOf(lengths, distinctHashes*2);
+				lengths[distinctHashes++] = liveDataPoints;
+				postings += liveDataPoints;
+				postingsSquared += (double)liveDataPoints*liveDataPoints;
+				int bucket = 31 - Integer.numberOfLeadingZeros(liveDataPoints);
+				lengthBuckets[bucket]++;
+				lengthBucketPostings[bucket] += liveDataPoints;
+				if(hottestWanted == 0)return;
+				if(heap.size() < hottestWanted){
+					heap.add(new HotHash(probe, liveDataPoints));
+				} else if(liveDataPoints > heap.peek().postings){
+					heap.poll();
+					heap.add(new HotHash(probe, liveDataPoints));
+				}
+			}
+		});
+		lengths = Arrays.copyOf(lengths, distinctHashes);
+		Arrays.sort(lengths);
+		hottest = new ArrayList<HotHash>(heap);
+		Collections.sort(hottest, Collections.reverseOrder());
+	}
+
+	/**
+	 * Gets the table length a HashMap grows to for a number of entries, at its default load factor.
+	 * @param entries The number of entries.
+	 * @return The length of the table.
+	 */
+	private static long tableCapacity(long entries)
+	{
+		long capacity = 16;
+		while(capacity*3/4 < entries){
+			capacity *= 2;
+		}
+		return capacity;
+	}
+
+	/**
+	 * A hash and the number of live data points it has.
+	 */
+	private static class HotHash implements Comparable<HotHash>
+	{
+		/** The probe of the hash */
+		Probe probe;
+
+		/** The number of live data points of the probe */
+		int postings;
+
+		HotHash(Probe probe, int postings)
+		{
+			this.probe = probe;
+			this.postings = postings;
+		}
+
+		/**
+		 * Orders the hashes from the coldest to the hottest.
+		 */
+		public int compareTo(HotHash o)
+		{
+			return postings < o.postings ? -1 : (postings == o.postings ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Gets the number of tracks indexed on their own, not counting duplicates linked as aliases.
+	 * @return The number of tracks.
+	 */
+	public int getNumberOfTracks()
+	{
+		return tracks;
+	}
+
+	/**
+	 * Gets the number of distinct hashes in the index.
+	 * @return The number of probes with at least one data point of a track that was not removed.
+	 */
+	public int getDistinctHashes()
+	{
+		return distinctHashes;
+	}
+
+	/**
+	 * Gets the number of data points in the index, not counting those of removed tracks.
+	 * @return The number of postings.
+	 */
+	public long getPostings()
+	{
+		return postings;
+	}
+
+	/**
+	 * Gets the mean number of postings a query scans for each of its hashes that is in the index, for a
+	 * query whose hashes are as common as they are in the index. Hot hashes are both long and often
+	 * queried, so this is well above postings per distinct hash.
+	 * @return The number of postings.
+	 */
+	public double getPostingsPerQueryHash()
+	{
+		return postings == 0 ? 0 : postingsSquared/postings;
+	}
+
+	/**
+	 * Gets the estimated heap taken by the index.
+	 * @return The number of bytes.
+	 */
+	public long getMemoryBytes()
+	{
+		return getHashBytes() + getPostingBytes() + trackIDBytes + trackMapBytes;
+	}
+
+	/**
+	 * Gets the heap that grows with the number of probes: map entries and table, probes and posting lists.
+	 * @return The number of bytes.
+	 */
+	private long getHashBytes()
+	{
+		return entryBytes + tableBytes + probeBytes + listBytes;
+	}
+
+	/**
+	 * Gets the heap that grows with the number of data points: the arrays of the lists and the data points.
+	 * @return The number of bytes.
+	 */
+	private long getPostingBytes()
+	{
+		return listArrayBytes + dataPointBytes;
+	}
+
+	/**
+	 * Gets the size of the index once saved.
+	 * @return The number of bytes.
+	 */
+	public long getSerializedBytes()
+	{
+		return serializedBytes;
+	}
+
+	/**
+	 * Estimates how many distinct hashes an index of some number of tracks would hold. Each track is taken
+	 * to fill the space of possible probes as the tracks indexed so far did on average, so every further
+	 * track finds fewer probes that are still free; skewed music fills the space more slowly than this.
+	 * @param projectedTracks The number of tracks.
+	 * @return The number of distinct hashes.
+	 */
+	public long projectDistinctHashes(long projectedTracks)
+	{
+		if(tracks == 0 || distinctHashes == 0)return 0;
+		if(distinctHashes >= hashSpace)return hashSpace;
+		double filled = (double)distinctHashes/hashSpace;
+		double free = Math.pow(1 - filled, (double)projectedTracks/tracks);
+		return Math.max(1, Math.round(hashSpace*(1 - free)));
+	}
+
+	/**
+	 * Estimates an index of some number of tracks like the ones indexed: the data points and the bytes per
+	 * track stay the same, the distinct hashes fill up the space of probes (see projectDistinctHashes), and
+	 * the postings a query scans grow with the data points per distinct hash.
+	 * @param projectedTracks The number of tracks.
+	 * @return The estimate, or null if the index has no tracks to project from.
+	 */
+	public Json project(long projectedTracks)
+	{
+		if(tracks == 0 || distinctHashes == 0)return null;
+		double scale = (double)projectedTracks/tracks;
+		long projectedHashes = projectDistinctHashes(projectedTracks);
+		long projectedPostings = Math.round(postings*scale);
+		double hashGrowth = (double)projectedHashes/distinctHashes;
+		double postingGrowth = (double)projectedPostings/Math.max(postings + deletedPostings, 1);
+		long memory = Math.round(getHashBytes()*hashGrowth + getPostingBytes()*postingGrowth
+				+ (trackIDBytes + trackMapBytes)*(double)projectedTracks/Math.max(trackIDLimit, 1));
+		long serialized = 16 + Math.round(serializedTrackMapBytes*(double)projectedTracks/Math.max(trackIDLimit, 1))
+				+ 8 + 16*projectedHashes + 8*projectedPostings;
+		double perQueryHash = getPostingsPerQueryHash()*scale*distinctHashes/projectedHashes;
+		return new Json().put("tracks", projectedTracks).put("distinctHashes", projectedHashes)
+				.put("postings", projectedPostings).put("postingsPerHash", (double)projectedPostings/projectedHashes)
+				.put("postingsPerQueryHash", perQueryHash).put("memoryBytes", memory).put("serializedBytes", serialized);
+	}
+
+	/**
+	 * Gets the report in JSON.
+	 * @return The report.
+	 */
+	public Json toJson()
+	{
+		ArrayList<Json> buckets = new ArrayList<Json>();
+		for(int b = 0; b < lengthBuckets.length; b++){
+			if(lengthBuckets[b] == 0)continue;
+			buckets.add(new Json().put("min", 1L << b).put("max", (1L << (b+1)) - 1).put("hashes", lengthBuckets[b])
+					.put("postings", lengthBucketPostings[b]));
+		}
+		ArrayList<Json> hot = new ArrayList<Json>();
+		for(HotHash hash : hottest){
+			hot.add(new Json().put("dt", hash.probe.getDt()/Spectrogram.SAMPLE_SIZE).put("f1", hash.probe.getFirstFrequency())
+					.put("f2", hash.probe.getSecondFrequency()).put("postings", hash.postings)
+					.put("share", postings == 0 ? 0 : (double)hash.postings/postings));
+		}
+		int hottestPercent = (distinctHashes + 99)/100;
+		long hottestPercentPostings = 0;
+		for(int i = 0; i < hottestPercent; i++){
+			hottestPercentPostings += lengths[lengths.length - 1 - i];
+		}
+		Json lengthPercentiles = new Json().put("p50", percentile(lengths, 50)).put("p90", percentile(lengths, 90))
+				.put("p99", percentile(lengths, 99)).put("p999", percentile(lengths, 99.9))
+				.put("max", lengths.length == 0 ? 0 : lengths[lengths.length-1]);
+		Json perTrack = new Json().put("mean", tracks == 0 ? 0 : (double)sum(hashesPerTrack)/tracks)
+				.put("min", hashesPerTrack.length == 0 ? 0 : hashesPerTrack[0]).put("p50", percentile(hashesPerTrack, 50))
+				.put("max", hashesPerTrack.length == 0 ? 0 : hashesPerTrack[hashesPerTrack.length-1]);
+		Json perSecond = new Json().put("mean", audioSeconds == 0 ? 0 : timedHashes/audioSeconds)
+				.put("min", hashesPerSecond.length == 0 ? 0 : hashesPerSecond[0]).put("p50", percentile(hashesPerSecond, 50))
+				.put("max", hashesPerSecond.length == 0 ? 0 : hashesPerSecond[hashesPerSecond.length-1])
+				.put("tracks", hashesPerSecond.length);
+		Json memory = new Json().put("mapEntries", entryBytes).put("mapTable", tableBytes).put("probes", probeBytes)
+				.put("postingLists", listBytes).put("postingArrays", listArrayBytes).put("dataPoints", dataPointBytes)
+				.put("trackIds", trackIDBytes).put("trackMap", trackMapBytes).put("total", getMemoryBytes());
+		Json bytesPerTrack = new Json().put("memory", tracks == 0 ? 0 : (double)getMemoryBytes()/tracks)
+				.put("serialized", tracks == 0 ? 0 : (double)serializedBytes/tracks);
+		return new Json().put("tracks", tracks).put("aliases", aliases).put("audioSeconds", audioSeconds)
+				.put("hashSpace", hashSpace).put("distinctHashes", distinctHashes)
+				.put("hashSpaceFilled", hashSpace == 0 ? 0 : (double)distinctHashes/hashSpace).put("emptyHashes", emptyHashes)
+				.put("postings", postings).put("deletedPostings", deletedPostings)
+				.put("postingsPerHash", distinctHashes == 0 ? 0 : (double)postings/distinctHashes)
+				.put("postingsPerQueryHash", getPostingsPerQueryHash()).put("postingsPerHashPercentiles", lengthPercentiles)
+				.put("postingsLengths", buckets)
+				.put("hottestPercentShare", postings == 0 ? 0 : (double)hottestPercentPostings/postings)
+				.put("hottest", hot).put("hashesPerTrack", perTrack).put("hashesPerSecond", perSecond)
+				.put("bytesPerTrack", bytesPerTrack).put("memoryBytes", memory).put("serializedBytes", serializedBytes);
+	}
+
+	/**
+	 * Adds up values.
+	 * @param values The values.
+	 * @return The sum.
+	 */
+	private static long sum(int[] values)
+	{
+		long sum = 0;
+		for(int i = 0; i < values.length; i++){
+			sum += values[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Gets a percentile of sorted values, by nearest rank.
+	 * @param sorted The values, in increasing order.
+	 * @param percentile The percentile, from 0 to 100.
+	 * @return The value, or 0 if there are none.
+	 */
+	private static int percentile(int[] sorted, double percentile)
+	{
+		if(sorted.length == 0)return 0;
+		int rank = (int)Math.ceil(sorted.length*percentile/100);
+		return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+	}
+
+	/**
+	 * Gets a percentile of sorted values, by nearest rank.
+	 * @param sorted The values, in increasing order.
+	 * @param percentile The percentile, from 0 to 100.
+	 * @return The value, or 0 if there are none.
+	 */
+	private static double percentile(double[] sorted, double percentile)
+	{
+		if(sorted.length == 0)return 0;
+		int rank = (int)Math.ceil(sorted.length*percentile/100);
+		return sorted[Math.min(Math.max(rank, 1), sorted.length) - 1];
+	}
+
+	/**
+	 * Gets the report as lines of text.
+	 */
+	public String toString()
+	{
+		StringBuilder text = new StringBuilder();
+		text.append("Tracks: ").append(tracks).append(" (").append(aliases).append(" aliases), ")
+				.append(Math.round(audioSeconds)).append(" s of audio\n");
+		text.append("Distinct hashes: ").append(distinctHashes).append(" of ").append(hashSpace).append(" possible\n");
+		text.append("Postings: ").append(postings).append(" (").append(deletedPostings).append(" deleted), ")
+				.append(String.format("%.1f", distinctHashes == 0 ? 0.0 : (double)postings/distinctHashes))
+				.append(" per hash, longest ").append(lengths.length == 0 ? 0 : lengths[lengths.length-1]).append("\n");
+		text.append("Hashes per track: ").append(String.format("%.1f", tracks == 0 ? 0.0 : (double)sum(hashesPerTrack)/tracks))
+				.append(", per second of audio: ").append(String.format("%.1f", percentile(hashesPerSecond, 50))).append("\n");
+		text.append("Memory: ").append(getMemoryBytes()/1024).append(" KB, saved: ").append(serializedBytes/1024)
+				.append(" KB\n");
+		for(HotHash hash : hottest){
+			text.append("Hot hash ").append(hash.probe).append(": ").append(hash.postings).append(" postings\n");
+		}
+		return text.toString();
+	}
+}
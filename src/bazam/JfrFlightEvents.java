@@ -0,0 +1,209 @@
+package bazam;
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+import jdk.jfr.*;
+
+/**
+ * The Flight Recorder events of the engine. Only FlightEvents refers to this class, and only once it has
+ * found jdk.jfr, so the rest of the engine runs on JVMs without a Flight Recorder.
+ * @author Brook
+ *
+ */
+class JfrFlightEvents extends FlightEvents
+{
+	public Object beginIndex()
+	{
+		TrackIndexedEvent event = new TrackIndexedEvent();
+		event.begin();
+		return event;
+	}
+
+	public void commitIndex(Object started, File file, int trackNo, long samples, int peaks, int hashes,
+			long decodeNanos, long fingerprintNanos, long insertNanos)
+	{
+		TrackIndexedEvent event = (TrackIndexedEvent)started;
+		event.end();
+		if(!event.shouldCommit())return;
+		event.file = file.getPath();
+		event.trackId = trackNo;
+		event.samples = samples;
+		event.peaks = peaks;
+		event.hashes = hashes;
+		event.decodeNanos = decodeNanos;
+		event.fingerprintNanos = fingerprintNanos;
+		event.insertNanos = insertNanos;
+		event.commit();
+	}
+
+	public Object beginQuery()
+	{
+		QueryEvent event = new QueryEvent();
+		event.begin();
+		return event;
+	}
+
+	public void commitQuery(Object started, String name, int hashes, MatchResults results)
+	{
+		QueryEvent event = (QueryEvent)started;
+		event.end();
+		if(!event.shouldCommit())return;
+		QueryStatistics statistics = results.getStatistics();
+		event.name = name;
+		event.hashes = hashes;
+		event.hashesFound = results.getHashesTotal();
+		event.hashesProcessed = results.getHashesProcessed();
+		event.postingsScanned = statistics.postingsScanned;
+		event.tracksTouched = statistics.tracksTouched;
+		event.candidates = statistics.candidates;
+		ArrayList<RankedMatch> top = results.getTopMatches(1);
+		event.winningTrackId = top.isEmpty() ? -1 : top.get(0).getTrackID().getIntID();
+		event.winningScore = top.isEmpty() ? 0 : top.get(0).getScore();
+		event.confidenceMargin = results.getConfidenceMargin();
+		event.terminatedEarly = results.isTerminatedEarly();
+		event.partial = results.isPartial();
+		event.filterNanos = statistics.filterNanos;
+		event.verifyNanos = statistics.verifyNanos;
+		event.commit();
+	}
+
+	void watch()
+	{
+		FlightRecorder.addListener(new FlightRecorderListener(){
+			public void recordingStateChanged(Recording recording)
+			{
+				FlightEvents.setRecording(isRecording());
+			}
+		});
+		FlightEvents.setRecording(isRecording());
+	}
+
+	/**
+	 * Tells whether a recording is running, without starting the Flight Recorder if it is not.
+	 * @return True if at least one recording is running.
+	 */
+	private static boolean isRecording()
+	{
+		if(!FlightRecorder.isInitialized())return false;
+		for(Recording recording : FlightRecorder.getFlightRecorder().getRecordings()){
+			if(recording.getState() == RecordingState.RUNNING)return true;
+		}
+		return false;
+	}
+
+	boolean record(File destination, int maxAgeMinutes) throws IOException
+	{
+		InputStream in = FlightEvents.class.getResourceAsStream(PROFILE);
+		if(in == null)throw new FileNotFoundException("Missing resource " + PROFILE);
+		Configuration configuration;
+		try{
+			configuration = Configuration.create(new InputStreamReader(in, "UTF-8"));
+		} catch(ParseException e){
+			throw new IOException("Bad profile " + PROFILE + ": " + e.getMessage());
+		} finally{
+			in.close();
+		}
+		Recording recording = new Recording(configuration);
+		recording.setName("bazam");
+		recording.setToDisk(true);
+		recording.setMaxAge(java.time.Duration.ofMinutes(maxAgeMinutes));
+		recording.setDumpOnExit(true);
+		recording.setDestination(destination.toPath());
+		recording.start();
+		return true;
+	}
+
+	/**
+	 * A track was fingerprinted and added to an index.
+	 */
+	@Name("bazam.TrackIndexed")
+	@Label("Track Indexed")
+	@Category("Bazam")
+	@Description("A track was decoded, fingerprinted and added to the index")
+	static class TrackIndexedEvent extends Event
+	{
+		@Label("File")
+		String file;
+
+		@Label("Track ID")
+		int trackId;
+
+		@Label("Samples")
+		long samples;
+
+		@Label("Peaks")
+		int peaks;
+
+		@Label("Hashes")
+		int hashes;
+
+		@Label("Decode Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long decodeNanos;
+
+		@Label("Fingerprint Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long fingerprintNanos;
+
+		@Label("Insert Time")
+		@Description("Adding the hashes to the index, or finding the track it duplicates")
+		@Timespan(Timespan.NANOSECONDS)
+		long insertNanos;
+	}
+
+	/**
+	 * The hash points of a clip were matched against an index.
+	 */
+	@Name("bazam.Query")
+	@Label("Query")
+	@Category("Bazam")
+	@Description("The hash points of a clip were matched against the index")
+	static class QueryEvent extends Event
+	{
+		@Label("Name")
+		String name;
+
+		@Label("Hashes")
+		int hashes;
+
+		@Label("Hashes Found")
+		@Description("Hashes of the query that are in the index")
+		int hashesFound;
+
+		@Label("Hashes Processed")
+		int hashesProcessed;
+
+		@Label("Postings Scanned")
+		long postingsScanned;
+
+		@Label("Tracks Touched")
+		int tracksTouched;
+
+		@Label("Candidates")
+		int candidates;
+
+		@Label("Winning Track ID")
+		int winningTrackId;
+
+		@Label("Winning Score")
+		int winningScore;
+
+		@Label("Confidence Margin")
+		int confidenceMargin;
+
+		@Label("Terminated Early")
+		boolean terminatedEarly;
+
+		@Label("Partial")
+		boolean partial;
+
+		@Label("Filter Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long filterNanos;
+
+		@Label("Verify Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long verifyNanos;
+	}
+}
@@ -0,0 +1,135 @@
+package bazam;
+
+/**
+ * Builds a JSON object one member at a time, for machine-readable output such as JSON lines.
+ * @author Brook
+ *
+ */
+public class Json
+{
+	/** The members written so far */
+	private StringBuilder builder = new StringBuilder("{");
+
+	/** Whether no member was written yet */
+	private boolean empty = true;
+
+	/**
+	 * Adds a string member.
+	 * @param name The name of the member.
+	 * @param value The value, or null.
+	 * @return This object.
+	 */
+	public Json put(String name, String value)
+	{
+		return putRaw(name, value == null ? "null" : quote(value));
+	}
+
+	/**
+	 * Adds an integer member.
+	 * @param name The name of the member.
+	 * @param value The value.
+	 * @return This object.
+	 */
+	public Json put(String name, long value)
+	{
+		return putRaw(name, Long.toString(value));
+	}
+
+	/**
+	 * Adds a number member. Values that JSON cannot represent are written as null.
+	 * @param name The name of the member.
+	 * @param value The value.
+	 * @return This object.
+	 */
+	public Json put(String name, double value)
+	{
+		return putRaw(name, (Double.isNaN(value) || Double.isInfinite(value)) ? "null" : Double.toString(value));
+	}
+
+	/**
+	 * Adds a boolean member.
+	 * @param name The name of the member.
+	 * @param value The value.
+	 * @return This object.
+	 */
+	public Json put(String name, boolean value)
+	{
+		return putRaw(name, Boolean.toString(value));
+	}
+
+	/**
+	 * Adds an object member.
+	 * @param name The name of the member.
+	 * @param value The object, or null.
+	 * @return This object.
+	 */
+	public Json put(String name, Json value)
+	{
+		return putRaw(name, value == null ? "null" : value.toString());
+	}
+
+	/**
+	 * Adds an array of objects.
+	 * @param name The name of the member.
+	 * @param values The objects.
+	 * @return This object.
+	 */
+	public Json put(String name, Iterable<Json> values)
+	{
+		StringBuilder array = new StringBuilder("[");
+		for(Json value : values){
+			if(array.length() > 1)array.append(',');
+			array.append(value.toString());
+		}
+		return putRaw(name, array.append(']').toString());
+	}
+
+	/**
+	 * Adds a member whose value is already written in JSON.
+	 * @param name The name of the member.
+	 * @param json The value in JSON.
+	 * @return This object.
+	 */
+	public Json putRaw(String name, String json)
+	{
+		if(!empty)builder.append(',');
+		builder.append(quote(name)).append(':').append(json);
+		empty = false;
+		return this;
+	}
+
+	/**
+	 * Gets the object in JSON.
+	 */
+	public String toString()
+	{
+		return builder.toString() + "}";
+	}
+
+	/**
+	 * Writes a string as a JSON string literal.
+	 * @param value The string.
+	 * @return The quoted and escaped string.
+	 */
+	public static String quote(String value)
+	{
+		StringBuilder quoted = new StringBuilder(value.length()+2).append('"');
+		for(int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			switch(c){
+				case '"': quoted.append("\\\""); break;
+				case '\\': quoted.append("\\\\"); break;
+				case '\n': quoted.append("\\n"); break;
+				case '\r': quoted.append("\\r"); break;
+				case '\t': quoted.append("\\t"); break;
+				default:
+					if(c < 0x20){
+						quoted.append(String.format("\\u%04x", (int)c));
+					} else {
+						quoted.append(c);
+					}
+			}
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,139 @@
+package bazam;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts latencies in buckets whose width grows with the latency, like an HDR histogram: every power of
+ * two is split into SUB_BUCKETS buckets, so any recorded value is known within 1/SUB_BUCKETS of itself,
+ * from nanoseconds to hours, in a fixed table. Recording is lock-free and allocates nothing.
+ * @author Brook
+ *
+ */
+public class LatencyHistogram
+{
+	/** The number of bits of a value kept below its highest bit */
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/** The number of buckets each power of two is split into */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** The number of buckets, enough for any positive long */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS)*SUB_BUCKETS;
+
+	/** The number of values recorded in each bucket */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/** The number of values recorded */
+	private final AtomicLong count = new AtomicLong();
+
+	/** The sum of the values recorded */
+	private final AtomicLong sum = new AtomicLong();
+
+	/** The largest value recorded */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a value.
+	 * @param value The value, such as a latency in nanoseconds. Negative values count as zero.
+	 */
+	public void record(long value)
+	{
+		if(value < 0)value = 0;
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long largest = max.get();
+		while(value > largest && !max.compareAndSet(largest, value)){
+			largest = max.get();
+		}
+	}
+
+	/**
+	 * Gets the bucket of a value.
+	 * @param value The value, at least zero.
+	 * @return The bucket.
+	 */
+	private static int bucketOf(long value)
+	{
+		if(value < SUB_BUCKETS)return (int)value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+		return (exponent - SUB_BUCKET_BITS + 1)*SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest value that falls in a bucket.
+	 * @param bucket The bucket.
+	 * @return The largest value of the bucket.
+	 */
+	private static long highestValueIn(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)return bucket;
+		int exponent = bucket/SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int shift = exponent - SUB_BUCKET_BITS;
+		long lowest = (long)(SUB_BUCKETS + bucket%SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Gets a percentile of the values recorded, such as 99 for the value that 99% of the values do not exceed.
+	 * The answer is the top of the bucket the percentile falls in, so it is never below the true value.
+	 * @param percentile The percentile, from 0 to 100.
+	 * @return The value, or 0 if none was recorded.
+	 */
+	public long getPercentile(double percentile)
+	{
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			total += counts.get(i);
+		}
+		if(total == 0)return 0;
+		long rank = Math.max(1, (long)Math.ceil(total*percentile/100));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += counts.get(i);
+			if(seen >= rank)return Math.min(highestValueIn(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Gets the number of values recorded.
+	 * @return The count.
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * Gets the mean of the values recorded.
+	 * @return The mean, or 0 if none was recorded.
+	 */
+	public double getMean()
+	{
+		long n = count.get();
+		return n == 0 ? 0 : (double)sum.get()/n;
+	}
+
+	/**
+	 * Gets the largest value recorded.
+	 * @return The largest value, or 0 if none was recorded.
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Forgets every value recorded.
+	 */
+	public void reset()
+	{
+		for(int i = 0; i < BUCKETS; i++){
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
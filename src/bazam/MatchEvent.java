@@ -0,0 +1,108 @@
+package bazam;
+
+/**
+ * The start or the end of a track being identified on a monitored stream.
+ * @author Brook
+ *
+ */
+public class MatchEvent
+{
+	/** The track that was identified */
+	private TrackID trackID;
+
+	/** True if the track started playing, false if it stopped */
+	private boolean start;
+
+	/** The time of the event on the stream, in seconds from the start of the stream */
+	private double streamTime;
+
+	/** The position inside the track at the time of the event, in seconds */
+	private double trackTime;
+
+	/** The score of the track at the time of the event */
+	private double score;
+
+	/**
+	 * Constructs a match event.
+	 * @param trackID The track that was identified.
+	 * @param start True if the track started playing, false if it stopped.
+	 * @param streamTime The time of the event on the stream, in seconds.
+	 * @param trackTime The position inside the track at the time of the event, in seconds.
+	 * @param score The score of the track.
+	 */
+	public MatchEvent(TrackID trackID, boolean start, double streamTime, double trackTime, double score)
+	{
+		this.trackID = trackID;
+		this.start = start;
+		this.streamTime = streamTime;
+		this.trackTime = trackTime;
+		this.score = score;
+	}
+
+	/**
+	 * Gets the track that was identified.
+	 * @return The TrackID.
+	 */
+	public TrackID getTrackID()
+	{
+		return trackID;
+	}
+
+	/**
+	 * Checks whether the track started or stopped playing.
+	 * @return True for the start of a match, false for its end.
+	 */
+	public boolean isStart()
+	{
+		return start;
+	}
+
+	/**
+	 * Gets the time of the event on the stream.
+	 * @return Seconds from the start of the stream.
+	 */
+	public double getStreamTime()
+	{
+		return streamTime;
+	}
+
+	/**
+	 * Gets the position inside the track at the time of the event.
+	 * @return Seconds from the start of the track.
+	 */
+	public double getTrackTime()
+	{
+		return trackTime;
+	}
+
+	/**
+	 * Gets the decayed score of the track at the time of the event.
+	 * @return The score.
+	 */
+	public double getScore()
+	{
+		return score;
+	}
+
+	/**
+	 * Describes the event as one JSON line.
+	 * @param trackMap Gives the path of the track.
+	 * @return The event, with its times in seconds.
+	 */
+	public Json toJson(TrackMap trackMap)
+	{
+		int trackNo = trackID.getIntID();
+		return new Json().put("event", start ? "matchStart" : "matchEnd").put("trackId", trackNo)
+				.put("path", trackMap.getPath(trackNo)).put("streamSeconds", streamTime).put("trackSeconds", trackTime)
+				.put("score", score);
+	}
+
+	/**
+	 * Gets a string representation of the event.
+	 */
+	public String toString()
+	{
+		return ((start ? "Start " : "End ") + trackID + " / Stream time: " + streamTime + "s / Track time: " + trackTime
+				+ "s / Score: " + score);
+	}
+}
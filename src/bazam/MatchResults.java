@@ -7,12 +7,51 @@ import java.util.*;
  */
 public class MatchResults
 {
+	/** The lowest score at which the leading track counts as identified. Clips of tracks that were never indexed
+	 * score up to about 13 against 200 tracks at the canonical rate. Excerpts of indexed tracks score above it when
+	 * they last 8 seconds, or 4 seconds and are clean, but about 3% of 4 second excerpts with noise, gain changes and
+	 * low-bitrate filtering score less and go unidentified (the shortCombined condition of RegressionHarness) */
+	public static int MIN_SCORE = 15;
+	
 	/** The file matched for this MatchResults */
 	private String fileMatched;
 	
-	/** The results of the matching process. The key is the id of the song that matches, the histogram is the count at particular time
-	 * intervals */
-	private Map <TrackID,Histogram> matchResults;
+	/** The results of the matching process. Indexed by the id of the song that matches, the histogram is the count at particular time
+	 * intervals. Null for the songs that have no match */
+	private Histogram[] matchResults;
+	
+	/** The ids of the songs that have a histogram, in the order they were first matched */
+	private int[] matchedTracks;
+	
+	/** The number of songs that have a histogram */
+	private int numberMatched;
+	
+	/** The id of the song with the highest score, or -1 if nothing matched */
+	private int leader = -1;
+	
+	/** The score of the leading song: its number of matches at its best time offset */
+	private int leaderScore = 0;
+	
+	/** The highest score of any song other than the leader */
+	private int runnerUpScore = 0;
+	
+	/** The number of query hashes that were looked up in the index */
+	private int hashesProcessed = 0;
+	
+	/** The number of query hashes that were found in the index */
+	private int hashesTotal = 0;
+	
+	/** Whether the query stopped before processing all of its hashes */
+	private boolean terminatedEarly = false;
+	
+	/** Whether some hashes were skipped to meet the query's deadline, so the scores may be lower than in full */
+	private boolean partial = false;
+	
+	/** The work done by the query */
+	private QueryStatistics statistics = new QueryStatistics();
+	
+	/** The tracks that were removed from the index, whose data points are not counted. May be null */
+	private BitSet deletedTracks;
 	
 	/**
 	 * Constructs a new Match Results object for a file that is to be matched.
@@ -20,8 +59,43 @@ public class MatchResults
 	 */
 	public MatchResults(String fileMatched)
 	{
-		matchResults = new HashMap<TrackID,Histogram>();
+		this(fileMatched, null);
+	}
+	
+	/**
+	 * Constructs a new Match Results object that ignores the data points of removed tracks.
+	 * @param fileMatched The file that was matched.
+	 * @param deletedTracks The removed tracks, indexed by track ID, or null if none were removed.
+	 */
+	public MatchResults(String fileMatched, BitSet deletedTracks)
+	{
+		matchResults = new Histogram[16];
+		matchedTracks = new int[16];
 		this.fileMatched = fileMatched;			
+		this.deletedTracks = deletedTracks;
+	}
+	
+	/**
+	 * Copies the results of a query for another query with identical hash points. The copy shares the 
+	 * histograms of the original, which must no longer be tallied.
+	 * @param fileMatched The file that was matched.
+	 * @return The results under the new name.
+	 */
+	public MatchResults copyFor(String fileMatched)
+	{
+		MatchResults copy = new MatchResults(fileMatched, deletedTracks);
+		copy.matchResults = matchResults;
+		copy.matchedTracks = matchedTracks;
+		copy.numberMatched = numberMatched;
+		copy.leader = leader;
+		copy.leaderScore = leaderScore;
+		copy.runnerUpScore = runnerUpScore;
+		copy.hashesProcessed = hashesProcessed;
+		copy.hashesTotal = hashesTotal;
+		copy.terminatedEarly = terminatedEarly;
+		copy.partial = partial;
+		copy.statistics = statistics;
+		return copy;
 	}
 	
 	/**
@@ -31,21 +105,184 @@ public class MatchResults
 	 */
 	public void matchTally(int index, ArrayList<ProbeDataPoint> dataPoints)
 	{
-		for(ProbeDataPoint dataPoint : dataPoints){
-			TrackID id = dataPoint.getTrackID();
+		statistics.postingsScanned += dataPoints.size();
+		for(int i = 0, n = dataPoints.size(); i < n; i++){
+			ProbeDataPoint dataPoint = dataPoints.get(i);
+			int id = dataPoint.getTrackID().getIntID();
+			if(deletedTracks != null && deletedTracks.get(id))continue;//removed from the index
 			int indexOfMatch = dataPoint.getIndex();
 			int diff = index - indexOfMatch;//the index difference between the probe to match and the matching probe.
-			if(!matchResults.containsKey(id)){//matching song not yet in map
-				Histogram h = new Histogram();
-				h.matchAt(diff);
-				matchResults.put(id, h);
-			} else {//the specific song already has a match
-				Histogram h = matchResults.get(id);
-				h.matchAt(diff);
-				matchResults.put(id, h);				
-			}
+			matchAt(id, diff);
 		}		
 	}
+	
+	/**
+	 * Counts a single match of a song at a time difference. The caller is responsible for skipping removed songs.
+	 * @param id The id of the song.
+	 * @param diff The index difference between the probe to match and the matching probe.
+	 */
+	void matchAt(int id, int diff)
+	{
+		Histogram h = histogramFor(id);
+		h.matchAt(diff);
+		updateLeader(id, h.getBestCount());
+	}
+	
+	/**
+	 * Keeps track of the leading song and the best score of all other songs. Scores only ever grow,
+	 * so a song that overtakes the leader turns the old leader's score into the runner-up score.
+	 * @param id The id of the song whose histogram changed.
+	 * @param score The new score of the song.
+	 */
+	private void updateLeader(int id, int score)
+	{
+		if(id == leader){
+			leaderScore = score;
+		} else if(score > leaderScore){
+			runnerUpScore = leaderScore;
+			leader = id;
+			leaderScore = score;
+		} else if(score > runnerUpScore){
+			runnerUpScore = score;
+		}
+	}
+	
+	/**
+	 * Gets the histogram of a song, creating it when the song is matched for the first time.
+	 * @param id The id of the song.
+	 * @return The histogram of the song.
+	 */
+	private Histogram histogramFor(int id)
+	{
+		if(id >= matchResults.length){
+			matchResults = Arrays.copyOf(matchResults, Math.max(id+1, matchResults.length*2));
+		}
+		Histogram h = matchResults[id];
+		if(h == null){//matching song not yet in results
+			h = new Histogram();
+			matchResults[id] = h;
+			if(numberMatched == matchedTracks.length){
+				matchedTracks = Arrays.copyOf(matchedTracks, numberMatched*2);
+			}
+			matchedTracks[numberMatched++] = id;
+		}
+		return h;
+	}
+	
+	/**
+	 * Gets the statistics of the work done by the query.
+	 * @return The query statistics.
+	 */
+	public QueryStatistics getStatistics()
+	{
+		return statistics;
+	}
+	
+	/**
+	 * Gets the score of the leading song.
+	 * @return The number of matches of the leading song at its best time offset.
+	 */
+	public int getLeaderScore()
+	{
+		return leaderScore;
+	}
+	
+	/**
+	 * Gets the highest score of any song other than the leading song.
+	 * @return The score of the runner-up.
+	 */
+	public int getRunnerUpScore()
+	{
+		return runnerUpScore;
+	}
+	
+	/**
+	 * Gets the confidence margin of the leading song: the number of matches by which it leads the runner-up.
+	 * @return The difference between the leader's and the runner-up's scores.
+	 */
+	public int getConfidenceMargin()
+	{
+		return leaderScore - runnerUpScore;
+	}
+	
+	/**
+	 * Records how many of the query's hashes were processed.
+	 * @param processed The number of hashes looked up in the index.
+	 * @param total The number of hashes of the query found in the index.
+	 */
+	public void setHashesProcessed(int processed, int total)
+	{
+		hashesProcessed = processed;
+		hashesTotal = total;
+		terminatedEarly = processed < total;
+	}
+	
+	/**
+	 * Gets the number of query hashes that were looked up in the index.
+	 * @return The number of hashes processed.
+	 */
+	public int getHashesProcessed()
+	{
+		return hashesProcessed;
+	}
+	
+	/**
+	 * Gets the number of query hashes that were found in the index.
+	 * @return The number of hashes.
+	 */
+	public int getHashesTotal()
+	{
+		return hashesTotal;
+	}
+	
+	/**
+	 * Checks whether the query stopped early because the leading song could no longer be overtaken.
+	 * @return True if some hashes were not processed.
+	 */
+	public boolean isTerminatedEarly()
+	{
+		return terminatedEarly;
+	}
+	
+	/**
+	 * Marks the results as partial: hashes were skipped to meet the query's deadline.
+	 * @param partial True if hashes were skipped.
+	 */
+	public void setPartial(boolean partial)
+	{
+		this.partial = partial;
+	}
+	
+	/**
+	 * Checks whether hashes were skipped to meet the query's deadline. Unlike early termination, skipping
+	 * hashes may change the ranking.
+	 * @return True if the results are partial.
+	 */
+	public boolean isPartial()
+	{
+		return partial;
+	}
+	
+	/**
+	 * Ranks the matched songs and returns the best of them, from the best to the worst.
+	 * @param k The number of songs to return.
+	 * @return Up to k ranked matches.
+	 */
+	public ArrayList<RankedMatch> getTopMatches(int k)
+	{
+		PriorityQueue<RankedMatch> worstFirst = new PriorityQueue<RankedMatch>(Math.max(k, 1), Collections.reverseOrder());
+		for(int i = 0; i < numberMatched && k > 0; i++){
+			int id = matchedTracks[i];
+			Histogram h = matchResults[id];
+			if(worstFirst.size() == k && h.getBestCount() < worstFirst.peek().getScore())continue;
+			worstFirst.add(new RankedMatch(new TrackID(id), h.getBestCount(), h.getBestDelta(), h.getTotalMatches()));
+			if(worstFirst.size() > k)worstFirst.poll();
+		}
+		ArrayList<RankedMatch> ranking = new ArrayList<RankedMatch>(worstFirst);
+		Collections.sort(ranking);
+		return ranking;
+	}
+	
 	/**
 	 * Gets the name of the file queried to be matched. 
 	 * @return The name of the file queried.
@@ -61,16 +298,40 @@ public class MatchResults
 	 */
 	public Iterator<TrackID> getContentsIterator()
 	{
-		return matchResults.keySet().iterator();
+		return new Iterator<TrackID>(){
+			private int next = 0;
+			
+			public boolean hasNext(){
+				return next < numberMatched;
+			}
+			
+			public TrackID next(){
+				if(next >= numberMatched)throw new NoSuchElementException();
+				return new TrackID(matchedTracks[next++]);
+			}
+			
+			public void remove(){
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	/**
+	 * Gets the number of songs that have at least one match.
+	 * @return The number of songs matched.
+	 */
+	public int getNumberMatched()
+	{
+		return numberMatched;
 	}
 	/**
 	 * Prints out contents in matchResults
 	 */
 	public void print()
 	{
-		for(TrackID id : matchResults.keySet()){
-			int ID = id.getIntID();
-			Histogram h = matchResults.get(id);
+		for(int i = 0; i < numberMatched; i++){
+			int ID = matchedTracks[i];
+			Histogram h = matchResults[ID];
 			System.out.print("TrackID: " + ID + " ");
 			h.print();			
 		}		
@@ -83,6 +344,8 @@ public class MatchResults
 	 */
 	public Histogram getHistogramAt(TrackID id)
 	{
-		return matchResults.get(id);
+		int ID = id.getIntID();
+		if(ID < 0 || ID >= matchResults.length)return null;
+		return matchResults[ID];
 	}
 }
@@ -65,33 +65,22 @@ public class MatchResultsFrame extends JFrame
 	 */
 	public void getMatch()
 	{
-		int maxNumberOfMatches = Integer.MIN_VALUE;
-		double matchRate = 0;//this is the one we use - the percentage of matches at the max match must be the highest percentage
-		TrackID matchID = null;
-		int timeOffset = 0;
-		for(Iterator<TrackID>it = matchResults.getContentsIterator();it.hasNext();){
-			TrackID id = it.next();
-			Histogram h = matchResults.getHistogramAt(id);
-			MaxMatch thisMatch = h.getMaxMatch();
-			int totalMatches = h.getTotalMatches();
-			int thisNumberOfMatches = thisMatch.numberOfMatches;//at a particular delta
-			/*if(thisNumberOfMatches > maxNumberOfMatches){
-				maxNumberOfMatches = thisNumberOfMatches;
-				matchID = id;
-				timeOffset = thisMatch.delta;
-			}*/
-			double thisMatchRate = (double)((double)thisNumberOfMatches/(double)totalMatches);
-			if(thisMatchRate > matchRate){
-				maxNumberOfMatches = thisNumberOfMatches;
-				matchID = id;
-				timeOffset = thisMatch.delta;
-				matchRate = thisMatchRate;				
-			}
+		ArrayList<RankedMatch> ranking = matchResults.getTopMatches(1);
+		if(ranking.isEmpty()){
+			JOptionPane.showMessageDialog(null, "No track in the index matches.", "Best Match Results", JOptionPane.PLAIN_MESSAGE);
+			return;
+		}
+		RankedMatch best = ranking.get(0);
+		TrackInfo matchInfo = trackMap.getTrackInfo(best.getTrackID());
+		String stopped = "";
+		if(matchResults.isTerminatedEarly()){
+			stopped = "\nStopped early after " + matchResults.getHashesProcessed() + " of " + matchResults.getHashesTotal() + " hashes";
 		}
-		TrackInfo matchInfo = trackMap.getTrackInfo(matchID);
 		JOptionPane.showMessageDialog(null, new String("The matching track is [" + matchInfo.toString() + 
-				"]\nIndex offset: " + timeOffset/Spectrogram.SAMPLE_SIZE + " / Total matching hashes: " + maxNumberOfMatches
-				+ "\nPercent of matches at offset: " + matchRate*100 + "%"), "Best Match Results", JOptionPane.PLAIN_MESSAGE);
+				"]\nIndex offset: " + best.getDelta()/Spectrogram.SAMPLE_SIZE + " / Total matching hashes: " + best.getScore()
+				+ "\nPercent of matches at offset: " + best.getMatchRate()*100 + "%"
+				+ "\nLead over the next track: " + matchResults.getConfidenceMargin() + " hashes" + stopped), 
+				"Best Match Results", JOptionPane.PLAIN_MESSAGE);
 		
 	}
 }
@@ -0,0 +1,438 @@
+package bazam;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+/**
+ * Times and counts the work of each stage of the pipeline, from decoding to matching, and publishes it
+ * through the platform MBean server under bazam:type=Stage,name=... so it can be watched with jconsole or
+ * any JMX agent. The index the process serves is published as bazam:type=Index.
+ * <p>
+ * A stage records the latency of every call in a LatencyHistogram and adds to its counters, such as the
+ * bytes decoded or the postings scanned; the rates are the counters divided by the time spent in the stage.
+ * Recording costs a few atomic additions per call of a stage, and a call of a stage does at least one FFT
+ * or one index lookup, so the cost is well under 1%. Set ENABLED to false, or run with
+ * -Dbazam.metrics=false, to skip the recording altogether.
+ * @author Brook
+ *
+ */
+public class Metrics
+{
+	/** Whether the stages record their work */
+	public static volatile boolean ENABLED = !"false".equals(System.getProperty("bazam.metrics"));
+
+	/** Reading audio streams into samples */
+	public static final Stage DECODE = new Stage("decode", "Bytes", "Frames");
+
+	/** Converting samples to the rate they are fingerprinted at */
+	public static final Stage RESAMPLE = new Stage("resample", "Frames");
+
+	/** Transforming frames into power spectra */
+	public static final Stage SPECTRUM = new Stage("spectrum", "Frames");
+
+	/** Picking the peaks of spectrograms */
+	public static final Stage PEAKS = new Stage("peaks", "Peaks");
+
+	/** Pairing peaks into hash points */
+	public static final Stage HASHING = new Stage("hashing", "Hashes");
+
+	/** Adding the hash points of tracks to an index */
+	public static final Stage INDEX = new Stage("index", "Hashes");
+
+	/** Matching queries against an index */
+	public static final Stage QUERY = new Stage("query", "Hashes", "PostingsScanned", "Partial");
+
+	/** Every stage, in pipeline order */
+	private static final Stage[] STAGES = {DECODE, RESAMPLE, SPECTRUM, PEAKS, HASHING, INDEX, QUERY};
+
+	/** The index whose size is published */
+	private static final IndexGauges INDEX_GAUGES = new IndexGauges();
+
+	static{
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for(Stage stage : STAGES){
+				register(server, new ObjectName("bazam:type=Stage,name=" + stage.name), stage);
+			}
+			register(server, new ObjectName("bazam:type=Index"), INDEX_GAUGES);
+		} catch(Exception e){
+			//no JMX, such as under a security manager; the stages still record for getStages
+		}
+	}
+
+	/**
+	 * Registers an MBean, replacing one left by an earlier copy of these classes, such as in a servlet container.
+	 * @param server The MBean server.
+	 * @param name The name of the MBean.
+	 * @param bean The MBean.
+	 * @throws JMException If the MBean cannot be registered.
+	 */
+	private static void register(MBeanServer server, ObjectName name, Object bean) throws JMException
+	{
+		if(server.isRegistered(name))server.unregisterMBean(name);
+		server.registerMBean(bean, name);
+	}
+
+	/**
+	 * Publishes the size of an index as bazam:type=Index, in place of the index published before. The index
+	 * is only weakly held, so publishing it never keeps it in memory.
+	 * @param index The index.
+	 */
+	public static void watchIndex(CachedIndexMap index)
+	{
+		INDEX_GAUGES.index = new WeakReference<CachedIndexMap>(index);
+	}
+
+	/**
+	 * Gets every stage, in pipeline order.
+	 * @return The stages.
+	 */
+	public static List<Stage> getStages()
+	{
+		return Collections.unmodifiableList(Arrays.asList(STAGES));
+	}
+
+	/**
+	 * Summarizes every stage.
+	 * @return A JSON object with one member per stage.
+	 */
+	public static Json toJson()
+	{
+		Json json = new Json();
+		for(Stage stage : STAGES){
+			json.put(stage.name, stage.toJson());
+		}
+		return json;
+	}
+
+	/**
+	 * An MBean whose attributes are read-only numbers, listed once when it is constructed.
+	 */
+	private static abstract class NumbersBean implements DynamicMBean
+	{
+		/** The names of the attributes */
+		private String[] attributes;
+
+		/** The description of the MBean */
+		private String description;
+
+		/**
+		 * Constructs an MBean.
+		 * @param description The description of the MBean.
+		 * @param attributes The names of the attributes.
+		 */
+		NumbersBean(String description, String[] attributes)
+		{
+			this.description = description;
+			this.attributes = attributes;
+		}
+
+		/**
+		 * Reads an attribute.
+		 * @param attribute The name of the attribute.
+		 * @return The value, or null if there is no such attribute.
+		 */
+		abstract Number read(String attribute);
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException
+		{
+			Number value = read(attribute);
+			if(value == null)throw new AttributeNotFoundException(attribute);
+			return value;
+		}
+
+		public AttributeList getAttributes(String[] names)
+		{
+			AttributeList list = new AttributeList();
+			for(String name : names){
+				Number value = read(name);
+				if(value != null)list.add(new Attribute(name, value));
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException
+		{
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		/**
+		 * Lists the operations of the MBean.
+		 * @return The operations.
+		 */
+		MBeanOperationInfo[] getOperations()
+		{
+			return new MBeanOperationInfo[0];
+		}
+
+		public MBeanInfo getMBeanInfo()
+		{
+			MBeanAttributeInfo[] infos = new MBeanAttributeInfo[attributes.length];
+			for(int i = 0; i < attributes.length; i++){
+				String type = read(attributes[i]) instanceof Double ? "double" : "long";
+				infos[i] = new MBeanAttributeInfo(attributes[i], type, attributes[i], true, false, false);
+			}
+			return new MBeanInfo(getClass().getName(), description, infos, null, getOperations(), null);
+		}
+	}
+
+	/**
+	 * The latency and counters of one stage of the pipeline.
+	 */
+	public static class Stage extends NumbersBean
+	{
+		/** The percentiles of the latency that are published */
+		private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+		/** The name of the stage */
+		private final String name;
+
+		/** The latency of each call, in nanoseconds */
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		/** The time spent in the stage, in nanoseconds */
+		private final AtomicLong nanos = new AtomicLong();
+
+		/** The names of the counters */
+		private final String[] counterNames;
+
+		/** The counters */
+		private final AtomicLongArray counters;
+
+		/**
+		 * Constructs a stage.
+		 * @param name The name of the stage.
+		 * @param counterNames The names of the counters, which are numbered in this order.
+		 */
+		Stage(String name, String... counterNames)
+		{
+			super("Bazam " + name + " stage", attributeNames(counterNames));
+			this.name = name;
+			this.counterNames = counterNames;
+			counters = new AtomicLongArray(counterNames.length);
+		}
+
+		/**
+		 * Lists the attributes of a stage with the given counters.
+		 * @param counterNames The names of the counters.
+		 * @return The names of the attributes.
+		 */
+		private static String[] attributeNames(String[] counterNames)
+		{
+			ArrayList<String> names = new ArrayList<String>();
+			names.add("Calls");
+			names.add("TotalMillis");
+			names.add("LatencyMeanMicros");
+			for(double percentile : PERCENTILES){
+				names.add(percentileName(percentile));
+			}
+			names.add("LatencyMaxMicros");
+			for(String counter : counterNames){
+				names.add(counter);
+				names.add(counter + "PerSecond");
+				names.add(counter + "PerCall");
+			}
+			return names.toArray(new String[names.size()]);
+		}
+
+		/**
+		 * Names the attribute of a percentile of the latency.
+		 * @param percentile The percentile.
+		 * @return The name, such as LatencyP99Micros or LatencyP999Micros.
+		 */
+		private static String percentileName(double percentile)
+		{
+			String digits = percentile == Math.rint(percentile) ? Long.toString((long)percentile)
+					: Double.toString(percentile).replace(".", "");
+			return "LatencyP" + digits + "Micros";
+		}
+
+		/**
+		 * Records a call of the stage.
+		 * @param startNanos When the call started, from System.nanoTime.
+		 */
+		public void record(long startNanos)
+		{
+			if(!ENABLED)return;
+			long elapsed = System.nanoTime() - startNanos;
+			latency.record(elapsed);
+			nanos.addAndGet(elapsed);
+		}
+
+		/**
+		 * Records a call of the stage and adds to its first counter.
+		 * @param startNanos When the call started, from System.nanoTime.
+		 * @param first The amount added to the first counter.
+		 */
+		public void record(long startNanos, long first)
+		{
+			if(!ENABLED)return;
+			counters.addAndGet(0, first);
+			record(startNanos);
+		}
+
+		/**
+		 * Records a call of the stage and adds to its first two counters.
+		 * @param startNanos When the call started, from System.nanoTime.
+		 * @param first The amount added to the first counter.
+		 * @param second The amount added to the second counter.
+		 */
+		public void record(long startNanos, long first, long second)
+		{
+			if(!ENABLED)return;
+			counters.addAndGet(1, second);
+			record(startNanos, first);
+		}
+
+		/**
+		 * Records a call of the stage and adds to its first three counters.
+		 * @param startNanos When the call started, from System.nanoTime.
+		 * @param first The amount added to the first counter.
+		 * @param second The amount added to the second counter.
+		 * @param third The amount added to the third counter.
+		 */
+		public void record(long startNanos, long first, long second, long third)
+		{
+			if(!ENABLED)return;
+			counters.addAndGet(2, third);
+			record(startNanos, first, second);
+		}
+
+		/**
+		 * Gets the name of the stage.
+		 * @return The name.
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Gets the latency of the calls of the stage.
+		 * @return The histogram, in nanoseconds.
+		 */
+		public LatencyHistogram getLatency()
+		{
+			return latency;
+		}
+
+		/**
+		 * Gets a counter.
+		 * @param counter The name of the counter.
+		 * @return The value of the counter.
+		 */
+		public long getCounter(String counter)
+		{
+			int i = Arrays.asList(counterNames).indexOf(counter);
+			if(i < 0)throw new IllegalArgumentException("No counter " + counter + " in stage " + name);
+			return counters.get(i);
+		}
+
+		Number read(String attribute)
+		{
+			long calls = latency.getCount();
+			if(attribute.equals("Calls"))return calls;
+			if(attribute.equals("TotalMillis"))return nanos.get()/1000000;
+			if(attribute.equals("LatencyMeanMicros"))return latency.getMean()/1000;
+			if(attribute.equals("LatencyMaxMicros"))return latency.getMax()/1000.0;
+			for(double percentile : PERCENTILES){
+				if(attribute.equals(percentileName(percentile)))return latency.getPercentile(percentile)/1000.0;
+			}
+			for(int i = 0; i < counterNames.length; i++){
+				if(!attribute.startsWith(counterNames[i]))continue;
+				String suffix = attribute.substring(counterNames[i].length());
+				long value = counters.get(i);
+				if(suffix.equals(""))return value;
+				if(suffix.equals("PerSecond"))return nanos.get() == 0 ? 0.0 : value/(nanos.get()/1e9);
+				if(suffix.equals("PerCall"))return calls == 0 ? 0.0 : (double)value/calls;
+			}
+			return null;
+		}
+
+		/**
+		 * Forgets every call and count.
+		 */
+		public void reset()
+		{
+			latency.reset();
+			nanos.set(0);
+			for(int i = 0; i < counterNames.length; i++){
+				counters.set(i, 0);
+			}
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException
+		{
+			if(actionName.equals("reset") && (params == null || params.length == 0)){
+				reset();
+				return null;
+			}
+			return super.invoke(actionName, params, signature);
+		}
+
+		MBeanOperationInfo[] getOperations()
+		{
+			return new MBeanOperationInfo[]{new MBeanOperationInfo("reset", "Forgets every call and count",
+					new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)};
+		}
+
+		/**
+		 * Summarizes the stage.
+		 * @return The attributes of the stage in a JSON object.
+		 */
+		public Json toJson()
+		{
+			Json json = new Json();
+			for(MBeanAttributeInfo info : getMBeanInfo().getAttributes()){
+				Number value = read(info.getName());
+				if(value instanceof Double){
+					json.put(info.getName(), value.doubleValue());
+				} else {
+					json.put(info.getName(), value.longValue());
+				}
+			}
+			return json;
+		}
+	}
+
+	/**
+	 * The size of the index published by watchIndex.
+	 */
+	private static class IndexGauges extends NumbersBean
+	{
+		/** The index, or null if none was published */
+		volatile WeakReference<CachedIndexMap> index;
+
+		/**
+		 * Constructs the gauges.
+		 */
+		IndexGauges()
+		{
+			super("Bazam index", new String[]{"Probes", "DataPoints", "DeletedFraction", "Generation"});
+		}
+
+		Number read(String attribute)
+		{
+			WeakReference<CachedIndexMap> reference = index;
+			CachedIndexMap map = reference == null ? null : reference.get();
+			if(attribute.equals("Probes"))return map == null ? 0L : (long)map.getNumberOfProbes();
+			if(attribute.equals("DataPoints"))return map == null ? 0L : map.getNumberOfDataPoints();
+			if(attribute.equals("DeletedFraction"))return map == null ? 0.0 : map.getDeletedFraction();
+			if(attribute.equals("Generation"))return map == null ? 0L : map.getGeneration();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package bazam;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Holds one partition of a large index: the tracks whose IDs fall in one range, so an index too big for a
+ * single JVM can be split across processes. A Coordinator sends each query's hash points to every worker
+ * and merges the top matches they return.
+ * <p>
+ * Inside the worker, tracks are numbered from the start of its range, so the per-track arrays of the index
+ * and of every query stay as small as the partition. The worker speaks a compact binary protocol over HTTP:
+ * <ul>
+ * <li>POST /partition/query: the hash points of a query in, the top matches of the partition out.</li>
+ * <li>POST /partition/index: indexes an audio file that the worker can read under a global track ID.</li>
+ * <li>POST /partition/save: writes the partition to its index file.</li>
+ * <li>GET /health: reports that the worker is up.</li>
+ * </ul>
+ * @author Brook
+ *
+ */
+public class PartitionWorker
+{
+	/** Identifies a saved partition */
+	private static final int MAGIC = 0x42505732;//"BPW2"
+
+	/** Identifies a partition saved before signals were resampled, which fingerprinted every file at its own rate */
+	private static final int MAGIC_NATIVE_RATE = 0x42505731;//"BPW1"
+
+	/** The most hash points a query may send */
+	public static int MAX_QUERY_HASHES = 1 << 20;
+
+	/** The bytes of a query before its hash points: the number of matches, the time budget and the number of hash points */
+	private static final int QUERY_HEADER_BYTES = 16;
+
+	/** The bytes of each hash point of a query */
+	private static final int HASH_POINT_BYTES = 10;
+
+	/** The partition of the index, with track IDs counted from firstTrack */
+	private CachedIndexMap index;
+
+	/** The global ID of the first track of the partition */
+	private int firstTrack;
+
+	/** The file the partition is saved to */
+	private File indexFile;
+
+	/** The HTTP server */
+	private HttpServer server;
+
+	/**
+	 * Constructs a worker over a partition, loading it from its index file if the file exists.
+	 * @param indexFile The file the partition is saved to.
+	 * @param firstTrack The global ID of the first track of the partition.
+	 * @param address The address and port to listen on.
+	 * @throws IOException If the index file cannot be read or the address cannot be bound.
+	 */
+	public PartitionWorker(File indexFile, int firstTrack, InetSocketAddress address) throws IOException
+	{
+		this.indexFile = indexFile;
+		this.firstTrack = firstTrack;
+		index = indexFile.exists() ? load(indexFile) : new CachedIndexMap();
+		Metrics.watchIndex(index);
+		server = HttpServer.create(address, 1024);
+		server.createContext("/partition/query", new QueryHandler());
+		server.createContext("/partition/index", new IndexHandler());
+		server.createContext("/partition/save", new SaveHandler());
+		server.createContext("/health", new HealthHandler());
+		server.setExecutor(Executors.newCachedThreadPool());
+	}
+
+	/**
+	 * Starts accepting requests.
+	 */
+	public void start()
+	{
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests.
+	 * @param delaySeconds The longest time to wait for the requests being handled.
+	 */
+	public void stop(int delaySeconds)
+	{
+		server.stop(delaySeconds);
+	}
+
+	/**
+	 * Gets the address the worker listens on.
+	 * @return The address.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return server.getAddress();
+	}
+
+	/**
+	 * Matches the hash points of a query against the partition.
+	 * @param hashPoints The hash points of the query.
+	 * @param deadline The deadline of the query.
+	 * @return The results; the track IDs inside are local to the partition.
+	 */
+	MatchResults query(ArrayList<HashPoint> hashPoints, Deadline deadline)
+	{
+		//every hash is looked up: a score cut short by early termination could not be compared across partitions
+		return index.query(hashPoints, "partition", false, deadline);
+	}
+
+	/**
+	 * Reads a partition that was written by save.
+	 * @param file The file to read from.
+	 * @return The partition.
+	 * @throws IOException If the file cannot be read or does not hold a partition.
+	 */
+	private static CachedIndexMap load(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try{
+			int magic = in.readInt();
+			if(magic != MAGIC && magic != MAGIC_NATIVE_RATE)throw new IOException("Not a partition: " + file);
+			Probe.TIME_OFFSET = in.readInt();
+			Probe.FREQ_OFFSET = in.readInt();
+			Resampler.CANONICAL_RATE = magic == MAGIC ? in.readInt() : 0;
+			return CachedIndexMap.readFrom(in);
+		} finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the partition to its index file, through a temporary file so a crash never leaves half a partition.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void save() throws IOException
+	{
+		File temp = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(Probe.TIME_OFFSET);
+			out.writeInt(Probe.FREQ_OFFSET);
+			out.writeInt((int)Math.round(Resampler.CANONICAL_RATE));
+			index.writeTo(out);
+		} finally{
+			out.close();
+		}
+		if(!temp.renameTo(indexFile)){
+			if(!indexFile.delete() || !temp.renameTo(indexFile))throw new IOException("Cannot replace " + indexFile);
+		}
+	}
+
+	/**
+	 * Writes the top matches of a query in the wire format read by Coordinator.
+	 * @param out The stream to write to.
+	 * @param results The results of the query against the partition.
+	 * @param topK The number of matches to write.
+	 * @param firstTrack The global ID of the first track of the partition.
+	 * @throws IOException If the stream cannot be written.
+	 */
+	static void writeMatches(DataOutputStream out, MatchResults results, int topK, int firstTrack) throws IOException
+	{
+		ArrayList<RankedMatch> matches = results.getTopMatches(topK);
+		out.writeBoolean(results.isPartial());
+		out.writeInt(matches.size());
+		for(RankedMatch match : matches){
+			out.writeInt(match.getTrackID().getIntID() + firstTrack);
+			out.writeInt(match.getScore());
+			out.writeInt(match.getDelta());
+			out.writeInt(match.getTotalMatches());
+		}
+	}
+
+	/**
+	 * Writes the hash points of a query in the wire format read by the worker.
+	 * @param out The stream to write to.
+	 * @param hashPoints The hash points.
+	 * @param topK The number of matches wanted.
+	 * @param timeoutMillis The time left to answer, in milliseconds.
+	 * @throws IOException If the stream cannot be written.
+	 */
+	static void writeQuery(DataOutputStream out, ArrayList<HashPoint> hashPoints, int topK, long timeoutMillis)
+			throws IOException
+	{
+		out.writeInt(topK);
+		out.writeLong(timeoutMillis);
+		out.writeInt(hashPoints.size());
+		for(HashPoint hash : hashPoints){//the probe values fit in 16 bits: dt is at most TIME_OFFSET spectra
+			out.writeShort(hash.probe.getDt());
+			out.writeShort(hash.probe.getFirstFrequency());
+			out.writeShort(hash.probe.getSecondFrequency());
+			out.writeInt(hash.index);
+		}
+	}
+
+	/**
+	 * Answers a request and closes the exchange.
+	 * @param exchange The exchange.
+	 * @param status The HTTP status code.
+	 * @param body The body of the response.
+	 * @throws IOException If the response cannot be sent.
+	 */
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException
+	{
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try{
+			out.write(body);
+		} finally{
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Matches the hash points of a query against the partition. A body that is cut short or holds a different
+	 * number of hash points than it says is answered with 400, so the coordinator can tell a bad query from a
+	 * worker that failed.
+	 */
+	private class QueryHandler implements HttpHandler
+	{
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			try{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(exchange.getRequestBody()));
+				int topK = in.readInt();
+				Deadline deadline = Deadline.after(in.readLong());
+				int size = in.readInt();
+				long length = contentLength(exchange);
+				if(size < 0 || size > MAX_QUERY_HASHES 
+						|| (length >= 0 && length != QUERY_HEADER_BYTES + (long)size*HASH_POINT_BYTES)){
+					send(exchange, 400, ("The query does not hold " + size + " hash points.").getBytes("UTF-8"));
+					return;
+				}
+				ArrayList<HashPoint> hashPoints = new ArrayList<HashPoint>(size);
+				for(int i = 0; i < size; i++){
+					Probe probe = new Probe(in.readShort(), in.readShort(), in.readShort());
+					hashPoints.add(new HashPoint(probe, in.readInt()));
+				}
+				MatchResults results = query(hashPoints, deadline);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				writeMatches(new DataOutputStream(bytes), results, topK, firstTrack);
+				send(exchange, 200, bytes.toByteArray());
+			} catch(IOException e){
+				send(exchange, 400, ("Malformed query: " + e).getBytes("UTF-8"));
+			} catch(RuntimeException e){
+				send(exchange, 500, e.toString().getBytes("UTF-8"));
+			}
+		}
+	}
+
+	/**
+	 * Reads the length of the body of a request from its headers.
+	 * @param exchange The exchange.
+	 * @return The length in bytes, or -1 if the request does not give one.
+	 */
+	private static long contentLength(HttpExchange exchange)
+	{
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		if(length == null)return -1;
+		try{
+			return Long.parseLong(length.trim());
+		} catch(NumberFormatException e){
+			return -1;
+		}
+	}
+
+	/**
+	 * Indexes an audio file under a global track ID.
+	 */
+	private class IndexHandler implements HttpHandler
+	{
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			try{
+				DataInputStream in = new DataInputStream(exchange.getRequestBody());
+				int trackNo = in.readInt() - firstTrack;
+				File file = new File(in.readUTF());
+				if(trackNo < 0){
+					send(exchange, 400, "Track outside the partition.".getBytes("UTF-8"));
+					return;
+				}
+				int hashes = index.indexFile(file, new TrackID(trackNo));
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				new DataOutputStream(bytes).writeInt(hashes);
+				send(exchange, 200, bytes.toByteArray());
+			} catch(Exception e){
+				send(exchange, 500, e.toString().getBytes("UTF-8"));
+			}
+		}
+	}
+
+	/**
+	 * Writes the partition to its index file.
+	 */
+	private class SaveHandler implements HttpHandler
+	{
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			try{
+				save();
+				send(exchange, 200, new byte[0]);
+			} catch(IOException e){
+				send(exchange, 500, e.toString().getBytes("UTF-8"));
+			}
+		}
+	}
+
+	/**
+	 * Reports that the worker is up.
+	 */
+	private class HealthHandler implements HttpHandler
+	{
+		public void handle(HttpExchange exchange) throws IOException
+		{
+			byte[] body = (new Json().put("status", "ok").put("firstTrack", firstTrack)
+					.put("dataPoints", index.getNumberOfDataPoints()).toString() + "\n").getBytes("UTF-8");
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			send(exchange, 200, body);
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package bazam;
+import java.io.*;
+import java.nio.*;
+
+import javax.sound.sampled.*;
+
+/**
+ * Decodes PCM audio into mono samples between -1 and 1: 8, 16, 24 and 32-bit integer samples, signed or
+ * unsigned, and 32 and 64-bit float samples, in either byte order and with any number of channels. The
+ * channels are averaged in the same pass that converts the samples, and streams are read in blocks of
+ * BLOCK_FRAMES frames, so decoding costs little next to the spectrum of the same audio.
+ * @author Brook
+ *
+ */
+public class PcmDecoder
+{
+	/** The number of frames read from a stream at a time */
+	public static int BLOCK_FRAMES = 4096;
+
+	/** The number of channels of a frame */
+	private final int channels;
+
+	/** The size of a sample of one channel */
+	private final int bytesPerSample;
+
+	/** The size of a frame of all channels */
+	private final int frameSize;
+
+	/** Whether the samples are floating point */
+	private final boolean floating;
+
+	/** Whether integer samples are unsigned, offset by half of full scale */
+	private final boolean unsigned;
+
+	/** The byte order of the samples */
+	private final ByteOrder order;
+
+	/** Scales the sum of the channels of a frame to a mono sample between -1 and 1 */
+	private final double scale;
+
+	/**
+	 * Constructs a decoder for a format.
+	 * @param format The format of the audio.
+	 * @throws IllegalArgumentException If the format is not one the decoder supports.
+	 */
+	public PcmDecoder(AudioFormat format)
+	{
+		AudioFormat.Encoding encoding = format.getEncoding();
+		floating = encoding.equals(AudioFormat.Encoding.PCM_FLOAT);
+		unsigned = encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED);
+		if(!floating && !unsigned && !encoding.equals(AudioFormat.Encoding.PCM_SIGNED))
+			throw new IllegalArgumentException("PCM format required, not " + encoding + ".");
+		channels = format.getChannels();
+		if(channels < 1)
+			throw new IllegalArgumentException("The number of channels must be stated.");
+		int bits = format.getSampleSizeInBits();
+		bytesPerSample = (bits + 7)/8;
+		if(floating ? bits != 32 && bits != 64 : bits < 1 || bits > 32)
+			throw new IllegalArgumentException(bits + "-bit " + encoding + " samples are not supported.");
+		frameSize = format.getFrameSize();
+		if(frameSize != bytesPerSample*channels)
+			throw new IllegalArgumentException("Frames of " + frameSize + " bytes do not hold " + channels + " "
+					+ bits + "-bit samples.");
+		order = format.isBigEndian() || bytesPerSample == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		double fullScale = floating ? 1 : Math.pow(2, 8*bytesPerSample - 1);
+		scale = 1/(fullScale*channels);
+	}
+
+	/**
+	 * Tells whether the decoder supports a format.
+	 * @param format The format.
+	 * @return True if a decoder can be constructed for the format.
+	 */
+	public static boolean isSupported(AudioFormat format)
+	{
+		try{
+			new PcmDecoder(format);
+			return true;
+		} catch(IllegalArgumentException e){
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the size of a frame.
+	 * @return The number of bytes of a frame of all channels.
+	 */
+	public int getFrameSize()
+	{
+		return frameSize;
+	}
+
+	/**
+	 * Decodes whole frames from a buffer, averaging the channels of each frame. The byte order of the
+	 * buffer is set to that of the format; its position and limit are left alone.
+	 * @param bytes The buffer, such as the wrapped block of a stream or a mapped file.
+	 * @param position The position of the first frame inside the buffer.
+	 * @param frames The number of frames.
+	 * @param samples Receives one mono sample per frame.
+	 * @param offset The position of the first sample inside the array.
+	 */
+	public void decode(ByteBuffer bytes, int position, int frames, double[] samples, int offset)
+	{
+		bytes.order(order);
+		int end = offset + frames;
+		if(channels == 1){
+			decodeMono(bytes, position, samples, offset, end);
+			return;
+		}
+		int p = position;
+		if(channels == 2 && bytesPerSample == 2 && !unsigned){
+			for(int i = offset; i < end; i++, p += 4){
+				samples[i] = (bytes.getShort(p) + bytes.getShort(p+2))*scale;
+			}
+			return;
+		}
+		for(int i = offset; i < end; i++){
+			double sum = 0;
+			for(int j = 0; j < channels; j++, p += bytesPerSample){
+				sum += sampleAt(bytes, p);
+			}
+			samples[i] = sum*scale;
+		}
+	}
+
+	/**
+	 * Decodes frames of a single channel, with one loop for each sample size.
+	 * @param bytes The buffer, in the byte order of the format.
+	 * @param position The position of the first frame inside the buffer.
+	 * @param samples Receives the samples.
+	 * @param offset The position of the first sample inside the array.
+	 * @param end The position after the last sample inside the array.
+	 */
+	private void decodeMono(ByteBuffer bytes, int position, double[] samples, int offset, int end)
+	{
+		int p = position;
+		if(floating && bytesPerSample == 4){
+			for(int i = offset; i < end; i++, p += 4){
+				samples[i] = bytes.getFloat(p);
+			}
+		} else if(floating){
+			for(int i = offset; i < end; i++, p += 8){
+				samples[i] = bytes.getDouble(p);
+			}
+		} else if(bytesPerSample == 2 && !unsigned){
+			for(int i = offset; i < end; i++, p += 2){
+				samples[i] = bytes.getShort(p)*scale;
+			}
+		} else if(bytesPerSample == 4 && !unsigned){
+			for(int i = offset; i < end; i++, p += 4){
+				samples[i] = bytes.getInt(p)*scale;
+			}
+		} else {
+			for(int i = offset; i < end; i++, p += bytesPerSample){
+				samples[i] = sampleAt(bytes, p)*scale;
+			}
+		}
+	}
+
+	/**
+	 * Reads the sample of one channel.
+	 * @param bytes The buffer, in the byte order of the format.
+	 * @param p The position of the sample inside the buffer.
+	 * @return The sample, as a signed integer or as the float itself.
+	 */
+	private double sampleAt(ByteBuffer bytes, int p)
+	{
+		if(floating)return bytesPerSample == 4 ? bytes.getFloat(p) : bytes.getDouble(p);
+		long s;
+		switch(bytesPerSample){
+			case 1: s = bytes.get(p); break;
+			case 2: s = bytes.getShort(p); break;
+			case 3:
+				if(order == ByteOrder.BIG_ENDIAN){
+					s = (bytes.get(p) << 16) | ((bytes.get(p+1) & 0xff) << 8) | (bytes.get(p+2) & 0xff);
+				} else {
+					s = (bytes.get(p+2) << 16) | ((bytes.get(p+1) & 0xff) << 8) | (bytes.get(p) & 0xff);
+				}
+				break;
+			default: s = bytes.getInt(p); break;
+		}
+		if(unsigned){//offset binary: the raw value less half of full scale
+			int bits = 8*bytesPerSample;
+			s = (s & ((1L << bits) - 1)) - (1L << (bits - 1));
+		}
+		return s;
+	}
+
+	/**
+	 * Decodes a stream block by block until it ends. A block is handed to the sink once it is full or the
+	 * stream has nothing more ready, so a live stream is not held back to fill a block; a frame split
+	 * between two reads is kept for the next block.
+	 * @param in The stream.
+	 * @param sink Receives the samples.
+	 * @return The number of frames decoded.
+	 * @throws IOException If the stream cannot be read.
+	 */
+	public long decode(InputStream in, SampleSink sink) throws IOException
+	{
+		byte[] block = new byte[BLOCK_FRAMES*frameSize];
+		ByteBuffer bytes = ByteBuffer.wrap(block);
+		double[] samples = new double[BLOCK_FRAMES];
+		long decoded = 0;
+		int filled = 0;
+		boolean ended = false;
+		while(!ended){
+			long start = System.nanoTime();
+			do{
+				int n = in.read(block, filled, block.length - filled);
+				if(n == -1){
+					ended = true;
+					break;
+				}
+				filled += n;
+			} while(filled < block.length && in.available() > 0);
+			int frames = filled/frameSize;
+			if(frames == 0)continue;
+			decode(bytes, 0, frames, samples, 0);
+			Metrics.DECODE.record(start, frames*frameSize, frames);
+			sink.process(samples, 0, frames);
+			decoded += frames;
+			int rest = filled - frames*frameSize;
+			System.arraycopy(block, frames*frameSize, block, 0, rest);
+			filled = rest;
+		}
+		return decoded;
+	}
+}
@@ -0,0 +1,253 @@
+package bazam;
+import javax.sound.sampled.*;
+
+/**
+ * Plays audio clips through a SourceDataLine from one thread of its own, started on the first play and kept
+ * for every play after it. The clip is converted to PCM a chunk at a time as the line takes it, so playing
+ * never copies the whole clip, and the line buffers only a few chunks.
+ * <p>
+ * Pause, stop and seek may be called from any thread, such as the event dispatch thread, and return at once:
+ * they stop and flush the line, so the sound stops immediately, and the playback thread carries on from the
+ * new position. Every change of what is to be played starts a new generation; the playback thread restarts
+ * the line whenever the generation it is playing is no longer the current one.
+ * @author Brook
+ *
+ */
+public class Player implements Runnable
+{
+	/** The number of frames converted and written to the line at a time */
+	public static int CHUNK_FRAMES = 2048;
+
+	/** The length of the buffer of the line, in chunks */
+	private static final int BUFFERED_CHUNKS = 4;
+
+	/** The clip played, or null before the first play */
+	private AudioClip clip;
+
+	/** The frame the next chunk is converted from */
+	private int next = 0;
+
+	/** Whether the clip is playing */
+	private boolean playing = false;
+
+	/** Whether the player is closed */
+	private boolean closed = false;
+
+	/** Counts the changes of the clip, its position and its state */
+	private long generation = 0;
+
+	/** The line, or null while no clip is loaded into it */
+	private SourceDataLine line;
+
+	/** The generation the line was last started for */
+	private long lineGeneration = -1;
+
+	/** The frame of the clip the line was last started at */
+	private int lineStart;
+
+	/** The frame position of the line when it was last started */
+	private long lineBase;
+
+	/** The playback thread, or null until the first play */
+	private Thread thread;
+
+	/** The error that stopped the last play, or null */
+	private Exception error;
+
+	/**
+	 * Plays a clip, from where it was paused or sought to if it is the clip already loaded, or from its
+	 * start otherwise.
+	 * @param audioClip The clip.
+	 * @throws IllegalStateException If the player is closed.
+	 */
+	public synchronized void play(AudioClip audioClip)
+	{
+		if(closed)throw new IllegalStateException("The player is closed.");
+		if(audioClip != clip){
+			clip = audioClip;
+			next = 0;
+			interrupt();
+		}
+		if(playing)return;
+		playing = true;
+		error = null;
+		generation++;
+		if(thread == null){
+			thread = new Thread(this, "playback");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Pauses the clip where it is; play carries on from there.
+	 */
+	public synchronized void pause()
+	{
+		if(!playing)return;
+		next = getPosition();
+		playing = false;
+		interrupt();
+	}
+
+	/**
+	 * Stops the clip and goes back to its start, releasing the line.
+	 */
+	public synchronized void stop()
+	{
+		next = 0;
+		playing = false;
+		interrupt();
+		closeLine();
+	}
+
+	/**
+	 * Moves to another frame of the clip, carrying on playing from there if the clip is playing.
+	 * @param frame The frame, which is kept inside the clip.
+	 */
+	public synchronized void seek(int frame)
+	{
+		int length = clip == null ? 0 : clip.getFrameLength();
+		next = Math.max(0, Math.min(frame, length));
+		interrupt();
+	}
+
+	/**
+	 * Stops the clip and ends the playback thread.
+	 */
+	public synchronized void close()
+	{
+		stop();
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Gets the frame being heard.
+	 * @return The frame, or the frame playing carries on from while the clip is not playing.
+	 */
+	public synchronized int getPosition()
+	{
+		if(!playing || line == null || lineGeneration != generation)return next;
+		long played = lineStart + line.getLongFramePosition() - lineBase;
+		return (int)Math.min(played, clip.getFrameLength());
+	}
+
+	/**
+	 * Tells whether the clip is playing.
+	 * @return True while it plays, false once it is paused, stopped or over.
+	 */
+	public synchronized boolean isPlaying()
+	{
+		return playing;
+	}
+
+	/**
+	 * Gets the error that stopped the last play, such as an audio line that could not be opened.
+	 * @return The error, or null.
+	 */
+	public synchronized Exception getError()
+	{
+		return error;
+	}
+
+	/**
+	 * Starts a new generation, and silences the line at once so that no more of the previous one is heard.
+	 */
+	private void interrupt()
+	{
+		generation++;
+		if(line != null){
+			line.stop();
+			line.flush();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Releases the line.
+	 */
+	private void closeLine()
+	{
+		if(line != null){
+			line.close();
+			line = null;
+		}
+	}
+
+	/**
+	 * Makes the line ready to play the current generation from the next frame.
+	 * @throws LineUnavailableException If no line can be opened for the format of the clip.
+	 */
+	private void startLine() throws LineUnavailableException
+	{
+		AudioFormat format = clip.getAudioFormat();
+		if(line != null && !line.getFormat().matches(format))closeLine();
+		if(line == null){
+			line = AudioSystem.getSourceDataLine(format);
+			line.open(format, BUFFERED_CHUNKS*CHUNK_FRAMES*format.getFrameSize());
+		}
+		line.stop();
+		line.flush();
+		lineStart = next;
+		lineBase = line.getLongFramePosition();
+		lineGeneration = generation;
+		line.start();
+	}
+
+	/**
+	 * Writes the clip to the line, chunk by chunk, whenever it is playing.
+	 */
+	public void run()
+	{
+		byte[] chunk = new byte[0];
+		while(true){
+			AudioClip current;
+			SourceDataLine out;
+			int first;
+			long playingGeneration;
+			synchronized(this){
+				try{
+					while(!playing && !closed){
+						wait();
+					}
+				} catch(InterruptedException e){
+					return;
+				}
+				if(closed)return;
+				try{
+					if(lineGeneration != generation || line == null)startLine();
+				} catch(LineUnavailableException e){
+					error = e;
+					playing = false;
+					continue;
+				} catch(IllegalArgumentException e){
+					error = e;
+					playing = false;
+					continue;
+				}
+				current = clip;
+				out = line;
+				first = next;
+				playingGeneration = generation;
+				next = Math.min(first + CHUNK_FRAMES, current.getFrameLength());
+			}
+			if(first == current.getFrameLength()){
+				out.drain();
+				synchronized(this){
+					if(generation == playingGeneration){//nothing changed while the end was playing
+						playing = false;
+						next = 0;
+						closeLine();
+					}
+				}
+				continue;
+			}
+			int bytes = current.getAudioFormat().getFrameSize()*CHUNK_FRAMES;
+			if(chunk.length < bytes)chunk = new byte[bytes];
+			int frames = current.read(first, chunk, 0, CHUNK_FRAMES);
+			out.write(chunk, 0, frames*current.getAudioFormat().getFrameSize());//returns early once the line is stopped or closed
+		}
+	}
+}
@@ -5,16 +5,19 @@ import edu.emory.mathcs.jtransforms.fft.*;
 /** 
  * A spectrum represents a Fourier transformed sample of bytes through a particular time interval.
  * It contains the power of each spectra at the particular time domain
+ * <p>
+ * The transform, the powers and the thresholds are all single precision: peak picking only compares
+ * powers with each other, and floats halve the memory of every spectrum and the bandwidth of every pass.
  * @author Brook
  *
  */
 public class PowerSpectrum 
 {
 	/** The samples after calling Fast Fourier Transform, which are now in frequency domain instead of time domain */
-	private double[] transformedSamples;
+	private float[] transformedSamples;
 		
 	/** The average power of all the spectrum in this spectrum */
-	private double averagePower;
+	private float averagePower;
 	
 	/** The frequencies where the power is greater than the average power. Inserted into sequentially based on frequency */
 	private ArrayList<Integer>validFrequencies;
@@ -23,10 +26,17 @@ public class PowerSpectrum
 	private int spectrumNumber;
 	
 	/** List of all the powers for the given spectrum. It is half the size of the sampled segment. Indexed by frequency, contains power values */
-	private double[] freqPower = new double[Spectrogram.SAMPLE_SIZE/2];
+	private float[] freqPower = new float[Spectrogram.SAMPLE_SIZE/2];
 	
 	/** This constant ensures that peaks must be a certain amount greater than neighboring values in order to be considered a peak. */
-	public static double PEAK_THRESHOLD = 1.25;
+	public static float PEAK_THRESHOLD = 1.25f;
+	
+	/** FFT plans, whose twiddle factors are computed once rather than for every spectrum or every upload */
+	private static final ScratchPool<FloatFFT_1D> plans = new ScratchPool<FloatFFT_1D>(2*Runtime.getRuntime().availableProcessors()){
+		protected FloatFFT_1D create(){
+			return new FloatFFT_1D(Spectrogram.SAMPLE_SIZE);
+		}
+	};
 	
 	/** A list of all the peaks in the spectrogram */
 	private ArrayList<Peak> peaks = new ArrayList<Peak>();
@@ -36,12 +46,16 @@ public class PowerSpectrum
 	 * @param samplesToBeTransformed The selected sample to be transformed. Depends on the SPECTRUM_SIZE 
 	 * @param spectrumNumber The sample location at which the spectrum was generated. 
 	 */
-	public PowerSpectrum(double[] samplesToBeTransformed, int spectrumNumber) 
+	public PowerSpectrum(float[] samplesToBeTransformed, int spectrumNumber) 
 	{
 		this.spectrumNumber = spectrumNumber;		
-		DoubleFFT_1D d = new DoubleFFT_1D(Spectrogram.SAMPLE_SIZE);
 		transformedSamples = samplesToBeTransformed;
-		d.complexForward(transformedSamples);
+		FloatFFT_1D plan = plans.borrow();
+		try{
+			plan.complexForward(transformedSamples);
+		} finally{
+			plans.giveBack(plan);
+		}
 		computePower();
 		calculateAveragePower();
 		filterPeaks();				
@@ -55,7 +69,7 @@ public class PowerSpectrum
 	{
 		validFrequencies = new ArrayList<Integer>();//list of frequencies with power > average power
 		for(int frequency = 0; frequency < freqPower.length; frequency++){
-			double thisPower = freqPower[frequency];
+			float thisPower = freqPower[frequency];
 			if(thisPower > averagePower){
 				validFrequencies.add(frequency);//add to the list of valid frequencies if greater than average power				
 			}
@@ -88,11 +102,9 @@ public class PowerSpectrum
 	private void computePower() 
 	{
 		for(int i = 0; i < Spectrogram.SAMPLE_SIZE; i+= 2){
-			double ai = Math.pow(transformedSamples[i], 2);
-			double bi = Math.pow(transformedSamples[i+1], 2);
-			double power = ai + bi;
-			power = Math.sqrt(power);
-			freqPower[i/2] = power;
+			float ai = transformedSamples[i]*transformedSamples[i];
+			float bi = transformedSamples[i+1]*transformedSamples[i+1];
+			freqPower[i/2] = (float)Math.sqrt(ai + bi);
 		}
 	}
 	
@@ -105,13 +117,13 @@ public class PowerSpectrum
 	private boolean isPeakAt(int index) throws IndexOutOfBoundsException
 	{		
 		int frequency = validFrequencies.get(index);//get the frequency at the point.
-		double power = freqPower[frequency];
+		float power = freqPower[frequency];
 		
 		for(int i=(-3+index); i<=(3+index);i++){
 			if(i>=0 && i< validFrequencies.size() && i!=index){
 				int oFrequency = validFrequencies.get(i);
-				double oPower = freqPower[oFrequency];
-				double dp = power - oPower;
+				float oPower = freqPower[oFrequency];
+				float dp = power - oPower;
 				if(dp < PEAK_THRESHOLD)return false;
 			}
 		}
@@ -122,11 +134,11 @@ public class PowerSpectrum
 	 * Gets the max power value of the entire spectrum.
 	 * @return The maximum power value.
 	 */
-	public double getMaxPower()
+	public float getMaxPower()
 	{
-		double max = Double.MIN_VALUE;//the minimum power value
+		float max = Float.MIN_VALUE;//the minimum power value
 		for(int i = 0; i < freqPower.length; i++){
-			double power = freqPower[i];
+			float power = freqPower[i];
 			if(power > max) max = power;
 		}
 		return max;
@@ -136,7 +148,7 @@ public class PowerSpectrum
 	 * Get the Fourier Transformed data of the spectrum.
 	 * @return The transformed samples.
 	 */
-	public double[] getSamples()
+	public float[] getSamples()
 	{
 		return transformedSamples;
 	}
@@ -155,7 +167,7 @@ public class PowerSpectrum
 	 * @param index The index for which we must find the power for.
 	 * @return The power at the selected point.
 	 */
-	public double getPowerAt(int index)
+	public float getPowerAt(int index)
 	{
 		return freqPower[index];
 	}
@@ -184,8 +196,8 @@ public class PowerSpectrum
 	 */
 	private void calculateAveragePower()
 	{
-		double totalPower = 0;
-		double totalSamples = freqPower.length;
+		float totalPower = 0;
+		int totalSamples = freqPower.length;
 		for(int i = 0; i < totalSamples; i++){
 			totalPower = totalPower + freqPower[i];			
 		}
@@ -196,7 +208,7 @@ public class PowerSpectrum
 	 * Gets the average power of the spectrum
 	 * @return The average power at this particular time.
 	 */
-	public double getAveragePower()
+	public float getAveragePower()
 	{
 		//System.out.println(averagePower);
 		return averagePower;
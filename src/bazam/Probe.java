@@ -1,7 +1,5 @@
 package bazam;
 import java.io.Serializable;
-
-import javax.swing.JOptionPane;
 /**
  * This class represents a probe that the program will collect for each audio file.
  * 
@@ -38,36 +36,49 @@ public class Probe implements Comparable<Probe>, Serializable
 		dt = Math.abs(secondPeak.getTime() - anchorPeak.getTime());		
 	}
 	
+	/**
+	 * Constructs a probe from its values, such as when reading a saved index.
+	 * @param dt Time difference between the two peaks.
+	 * @param firstFrequency Frequency of the first peak.
+	 * @param secondFrequency Frequency of the second peak.
+	 */
+	Probe(int dt, int firstFrequency, int secondFrequency)
+	{
+		this.dt = dt;
+		this.firstFrequency = firstFrequency;
+		this.secondFrequency = secondFrequency;
+	}
+	
 	/** 
 	 * Increases the selectivity of the probes. There will be less probes.
+	 * @return False if the maximum selectivity was already reached, true otherwise.
 	 */
-	public static void increaseSelectivity()
+	public static boolean increaseSelectivity()
 	{
 		TIME_OFFSET--;
 		FREQ_OFFSET--;
 		if(TIME_OFFSET <= 0 || FREQ_OFFSET <= 0){
 			TIME_OFFSET = 1;
 			FREQ_OFFSET = 1;
-			JOptionPane.showMessageDialog(null, "Reached maximum selectivity of probes.", "Warning", JOptionPane.WARNING_MESSAGE);
-		} else {
-			JOptionPane.showMessageDialog(null, "Increased the selectivity of probes.");
+			return false;
 		}
+		return true;
 	}
 	
 	/**
 	 * Decreases the selectivity of the probes. There will be more probes.
+	 * @return False if the minimum selectivity was already reached, true otherwise.
 	 */
-	public static void decreaseSelectivity()
+	public static boolean decreaseSelectivity()
 	{
 		TIME_OFFSET++;
 		FREQ_OFFSET++;
 		if(TIME_OFFSET > 10 || FREQ_OFFSET > 5){
 			TIME_OFFSET = 10; 
 			FREQ_OFFSET = 5;	
-			JOptionPane.showMessageDialog(null, "Reached minimum selectivity of probes.", "Warning", JOptionPane.WARNING_MESSAGE);
-		} else {
-			JOptionPane.showMessageDialog(null, "Decreased the selectivity of probes.");
+			return false;
 		}
+		return true;
 	}
 	
 	/**
@@ -0,0 +1,333 @@
+package bazam;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Caches the match results of queries, keyed by a signature of the query's hash points. Identical clips
+ * (jingles, ads) produce identical hash points, so they are matched against the index only once.
+ * <p>
+ * Entries are evicted when the cache holds more than its maximum number of entries (least recently used
+ * first) or when they are older than the time to live. Entries computed against an older generation of the
+ * index are never returned. Identical queries that arrive while the first one is still being matched wait
+ * for its result instead of matching again, though never past their own deadline.
+ * @author Brook
+ *
+ */
+public class QueryCache
+{
+	/** The cached results, from the least to the most recently used */
+	private LinkedHashMap<Signature, Entry> entries;
+
+	/** The queries being matched right now */
+	private ConcurrentHashMap<Signature, FutureTask<MatchResults>> inFlight = new ConcurrentHashMap<Signature, FutureTask<MatchResults>>();
+
+	/** The maximum number of cached results */
+	private int maxEntries;
+
+	/** The time a result stays in the cache, in nanoseconds */
+	private long timeToLiveNanos;
+
+	/** The number of queries answered from the cache */
+	private AtomicLong hits = new AtomicLong();
+
+	/** The number of queries that were matched against the index */
+	private AtomicLong misses = new AtomicLong();
+
+	/** The number of queries that waited for an identical query in flight */
+	private AtomicLong coalesced = new AtomicLong();
+
+	/** The number of coalesced queries that reached their deadline while waiting */
+	private AtomicLong timedOut = new AtomicLong();
+
+	/** The number of results evicted because the cache was full */
+	private AtomicLong evictions = new AtomicLong();
+
+	/** The number of results dropped because they expired or the index changed */
+	private AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Constructs a query cache.
+	 * @param maxEntries The maximum number of cached results.
+	 * @param timeToLiveMillis The time a result stays in the cache, in milliseconds.
+	 */
+	public QueryCache(final int maxEntries, long timeToLiveMillis)
+	{
+		this.maxEntries = maxEntries;
+		this.timeToLiveNanos = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+		entries = new LinkedHashMap<Signature, Entry>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<Signature, Entry> eldest){
+				if(size() > QueryCache.this.maxEntries){
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Gets the results of a query from the cache, or matches the query and caches its results.
+	 * @param hashPoints The hash points of the query.
+	 * @param generation The generation of the index the query runs against.
+	 * @param deadline The deadline of the query, which bounds the wait for an identical query in flight.
+	 * @param query Matches the query against the index.
+	 * @return The results of the query.
+	 * @throws ExecutionException If matching the query failed.
+	 * @throws TimeoutException If the deadline passed while waiting for an identical query in flight.
+	 */
+	public MatchResults get(ArrayList<HashPoint> hashPoints, long generation, Deadline deadline,
+			Callable<MatchResults> query) throws ExecutionException, TimeoutException
+	{
+		Signature signature = new Signature(hashPoints, generation);
+		MatchResults cached = lookup(signature);
+		if(cached != null){
+			hits.incrementAndGet();
+			return cached;
+		}
+		FutureTask<MatchResults> task = new FutureTask<MatchResults>(query);
+		FutureTask<MatchResults> running = inFlight.putIfAbsent(signature, task);
+		if(running != null){
+			coalesced.incrementAndGet();
+			task = running;
+		} else {
+			misses.incrementAndGet();
+			try{
+				task.run();
+				MatchResults results = task.get();
+				if(!results.isPartial()){//partial results depend on the load, not only on the query
+					synchronized(entries){
+						entries.put(signature, new Entry(results, System.nanoTime()));
+					}
+				}
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			} finally{
+				inFlight.remove(signature, task);
+			}
+		}
+		try{
+			return task.get(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS);
+		} catch(TimeoutException e){
+			timedOut.incrementAndGet();
+			throw e;
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new ExecutionException(e);
+		}
+	}
+
+	/**
+	 * Finds a result that is still valid for the signature.
+	 * @param signature The signature of the query.
+	 * @return The cached results, or null if there are none.
+	 */
+	private MatchResults lookup(Signature signature)
+	{
+		synchronized(entries){
+			Entry entry = entries.get(signature);
+			if(entry == null)return null;
+			if(System.nanoTime() - entry.created > timeToLiveNanos){
+				entries.remove(signature);
+				invalidations.incrementAndGet();
+				return null;
+			}
+			return entry.results;
+		}
+	}
+
+	/**
+	 * Drops the results computed against generations of the index older than the given one.
+	 * @param generation The current generation of the index.
+	 */
+	public void invalidate(long generation)
+	{
+		synchronized(entries){
+			for(Iterator<Signature> it = entries.keySet().iterator(); it.hasNext();){
+				if(it.next().generation != generation){
+					it.remove();
+					invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops every cached result.
+	 */
+	public void clear()
+	{
+		synchronized(entries){
+			invalidations.addAndGet(entries.size());
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Gets the number of results in the cache.
+	 * @return The number of cached results.
+	 */
+	public int size()
+	{
+		synchronized(entries){
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Gets the number of queries answered from the cache.
+	 * @return The number of hits.
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of queries that were matched against the index.
+	 * @return The number of misses.
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Gets the number of queries that waited for an identical query in flight.
+	 * @return The number of coalesced queries.
+	 */
+	public long getCoalesced()
+	{
+		return coalesced.get();
+	}
+
+	/**
+	 * Gets the number of coalesced queries that reached their deadline while waiting.
+	 * @return The number timed out.
+	 */
+	public long getTimedOut()
+	{
+		return timedOut.get();
+	}
+
+	/**
+	 * Gets the number of results evicted because the cache was full.
+	 * @return The number of evictions.
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * Gets the number of results dropped because they expired or the index changed.
+	 * @return The number of invalidations.
+	 */
+	public long getInvalidations()
+	{
+		return invalidations.get();
+	}
+
+	/**
+	 * Gets a string representation of the cache metrics.
+	 */
+	public String toString()
+	{
+		return ("Entries: " + size() + " / Hits: " + hits + " / Misses: " + misses + " / Coalesced: " + coalesced
+				+ " / Evictions: " + evictions + " / Invalidations: " + invalidations);
+	}
+
+	/**
+	 * A cached result and the time it was computed.
+	 */
+	private static class Entry
+	{
+		/** The results of the query */
+		MatchResults results;
+
+		/** When the results were computed, from System.nanoTime */
+		long created;
+
+		Entry(MatchResults results, long created)
+		{
+			this.results = results;
+			this.created = created;
+		}
+	}
+
+	/**
+	 * A compact signature of the set of hash points of a query: two independent 64-bit digests of the
+	 * sorted hash points, the number of hash points and the generation of the index.
+	 */
+	static class Signature
+	{
+		/** The first digest */
+		private long digest1;
+
+		/** The second digest */
+		private long digest2;
+
+		/** The number of hash points */
+		private int count;
+
+		/** The generation of the index */
+		private long generation;
+
+		/**
+		 * Computes the signature of a query's hash points.
+		 * @param hashPoints The hash points.
+		 * @param generation The generation of the index.
+		 */
+		Signature(ArrayList<HashPoint> hashPoints, long generation)
+		{
+			long[] packed = new long[hashPoints.size()];
+			for(int i = 0; i < packed.length; i++){
+				HashPoint hash = hashPoints.get(i);
+				Probe probe = hash.probe;
+				long value = ((long)probe.getDt() << 48) ^ ((long)probe.getFirstFrequency() << 32)
+						^ ((long)probe.getSecondFrequency() << 16) ^ ((long)hash.index * 0x9E3779B97F4A7C15L);
+				packed[i] = mix(value);
+			}
+			Arrays.sort(packed);
+			long h1 = 0xcbf29ce484222325L;
+			long h2 = 0x84222325cbf29ce4L;
+			for(int i = 0; i < packed.length; i++){
+				h1 = (h1 ^ packed[i]) * 0x100000001b3L;
+				h2 = mix(h2 + packed[i]);
+			}
+			this.digest1 = h1;
+			this.digest2 = h2;
+			this.count = packed.length;
+			this.generation = generation;
+		}
+
+		/**
+		 * Scrambles the bits of a value (the finalizer of MurmurHash3).
+		 * @param value The value.
+		 * @return The scrambled value.
+		 */
+		private static long mix(long value)
+		{
+			value ^= value >>> 33;
+			value *= 0xff51afd7ed558ccdL;
+			value ^= value >>> 33;
+			value *= 0xc4ceb9fe1a85ec53L;
+			value ^= value >>> 33;
+			return value;
+		}
+
+		public int hashCode()
+		{
+			return (int)(digest1 ^ (digest1 >>> 32));
+		}
+
+		public boolean equals(Object otherObject)
+		{
+			if(otherObject == null)return false;
+			if(otherObject.getClass() != this.getClass())return false;
+			Signature other = (Signature)otherObject;
+			return digest1 == other.digest1 && digest2 == other.digest2 && count == other.count
+					&& generation == other.generation;
+		}
+	}
+}
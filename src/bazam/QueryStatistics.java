@@ -0,0 +1,33 @@
+package bazam;
+
+/**
+ * Counts the work done by a single query against the index. Filled in by CachedIndexMap.query.
+ * @author Brook
+ *
+ */
+public class QueryStatistics
+{
+	/** The number of data points read from the index */
+	public long postingsScanned;
+
+	/** The number of tracks that shared at least one hash with the query */
+	public int tracksTouched;
+
+	/** The number of tracks whose time offsets were verified with a histogram */
+	public int candidates;
+
+	/** Time spent counting the hash matches of every track, in nanoseconds. Zero if the candidate filter is off */
+	public long filterNanos;
+
+	/** Time spent building histograms for the candidates, in nanoseconds */
+	public long verifyNanos;
+
+	/**
+	 * Gets a string representation of the statistics.
+	 */
+	public String toString()
+	{
+		return ("Postings scanned: " + postingsScanned + " / Tracks touched: " + tracksTouched + " / Candidates: " + candidates
+				+ " / Filter: " + filterNanos/1000 + "us / Verify: " + verifyNanos/1000 + "us");
+	}
+}
@@ -0,0 +1,116 @@
+package bazam;
+
+/**
+ * A track inside the ranking of a query's match results. The score of a track is the number of
+ * hashes that matched it at the best time offset.
+ * @author Brook
+ *
+ */
+public class RankedMatch implements Comparable<RankedMatch>
+{
+	/** The track that was matched */
+	private TrackID trackID;
+
+	/** Number of hashes matching at the best time offset */
+	private int score;
+
+	/** The best time offset, in samples */
+	private int delta;
+
+	/** Number of hashes matching at any time offset */
+	private int totalMatches;
+
+	/**
+	 * Constructs a ranked match.
+	 * @param trackID The track that was matched.
+	 * @param score Number of hashes matching at the best time offset.
+	 * @param delta The best time offset.
+	 * @param totalMatches Number of hashes matching at any time offset.
+	 */
+	public RankedMatch(TrackID trackID, int score, int delta, int totalMatches)
+	{
+		this.trackID = trackID;
+		this.score = score;
+		this.delta = delta;
+		this.totalMatches = totalMatches;
+	}
+
+	/**
+	 * Gets the track that was matched.
+	 * @return The TrackID.
+	 */
+	public TrackID getTrackID()
+	{
+		return trackID;
+	}
+
+	/**
+	 * Gets the number of hashes matching at the best time offset.
+	 * @return The score.
+	 */
+	public int getScore()
+	{
+		return score;
+	}
+
+	/**
+	 * Gets the best time offset between the query and the track.
+	 * @return The offset in samples.
+	 */
+	public int getDelta()
+	{
+		return delta;
+	}
+
+	/**
+	 * Gets the number of hashes matching at any time offset.
+	 * @return The total matches.
+	 */
+	public int getTotalMatches()
+	{
+		return totalMatches;
+	}
+
+	/**
+	 * Gets the fraction of the matches of the track that are at the best time offset.
+	 * @return The match rate, between 0 and 1.
+	 */
+	public double getMatchRate()
+	{
+		if(totalMatches == 0)return 0;
+		return (double)score/(double)totalMatches;
+	}
+
+	/**
+	 * Orders matches from the best to the worst: by score, then by match rate.
+	 * @param o The match to be compared
+	 * @return A negative value if this match ranks before o.
+	 */
+	public int compareTo(RankedMatch o)
+	{
+		if(this.score > o.score)return -1;
+		if(this.score < o.score)return 1;
+		return Double.compare(o.getMatchRate(), this.getMatchRate());
+	}
+
+	/**
+	 * Describes the match in JSON.
+	 * @param trackMap The map holding the path of the track.
+	 * @param frameRate The frame rate the query was fingerprinted at, to convert the time offset to seconds.
+	 * @return The match as a JSON object.
+	 */
+	public Json toJson(TrackMap trackMap, double frameRate)
+	{
+		int trackNo = trackID.getIntID();
+		return new Json().put("trackId", trackNo).put("path", trackMap.getPath(trackNo)).put("score", score)
+				.put("matchRate", getMatchRate()).put("trackOffsetSeconds", -delta/frameRate);
+	}
+
+	/**
+	 * Gets a string representation of the match.
+	 */
+	public String toString()
+	{
+		return (trackID + " / Score: " + score + " / Offset: " + delta/Spectrogram.SAMPLE_SIZE + " / Total matches: " + totalMatches);
+	}
+}
@@ -0,0 +1,428 @@
+package bazam;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks end to end that the engine still recognizes what it should, so a change that makes it faster
+ * cannot silently make it worse. The harness indexes a corpus of synthetic tracks, then queries excerpts
+ * of them at random offsets, degraded by noise, gain changes and low-bitrate filtering or cut shorter, along
+ * with excerpts of tracks that were never indexed. It reports recall at rank 1, the false-positive rate, the
+ * size of the index and the query rate in one JSON report, along with the median score of the right tracks
+ * and the best score of a track that was never indexed, which show how much room the threshold has.
+ * <p>
+ * Recall means little while clips of unknown tracks match too, so the report also gives the recall at the
+ * lowest threshold that no unknown clip reaches. The run fails when recall@1 is below the minimum recall,
+ * MIN_RECALL unless setMinRecall changes it, or the false-positive rate at the threshold used is above
+ * MAX_FALSE_POSITIVE_RATE: the report then says why, and hasPassed is false.
+ * <p>
+ * With setPartitions, the tracks are also split across PartitionWorker processes started on this machine,
+ * and every query is sent through a Coordinator as well: the run fails unless the merged top matches of the
+ * partitions are those of the single index.
+ * <p>
+ * The corpus and the queries come from the seed alone, so the accuracy figures of two runs with the same
+ * settings are identical on any machine unless the engine changed; only the rates depend on the machine.
+ * Nothing is read from or written to disk, except the tracks and the partitions of the workers.
+ * @author Brook
+ *
+ */
+public class RegressionHarness
+{
+	/** The length of a track, in seconds */
+	public static double TRACK_SECONDS = 30;
+
+	/** The length of a query, in seconds */
+	public static double EXCERPT_SECONDS = 8;
+
+	/** The length of the queries of the short conditions, in seconds */
+	public static double SHORT_EXCERPT_SECONDS = 4;
+
+	/** The share of the queries taken from tracks that are not in the index */
+	public static double UNKNOWN_FRACTION = 0.2;
+
+	/** The ratio of the power of the music to the power of the added noise, in decibels */
+	public static double NOISE_SNR = 10;
+
+	/** The quietest and the loudest gain changes, in decibels; loud ones clip */
+	public static double MIN_GAIN = -20, MAX_GAIN = 10;
+
+	/** The highest frequency kept by the low-bitrate filter */
+	public static double LOW_BITRATE_CUTOFF = 3000;
+
+	/** The number of bits the low-bitrate filter requantizes to */
+	public static int LOW_BITRATE_BITS = 8;
+
+	/** The highest false-positive rate at which the engine still passes */
+	public static double MAX_FALSE_POSITIVE_RATE = 0.05;
+
+	/** The lowest recall@1 at which the engine still passes, unless the harness is given another */
+	public static double MIN_RECALL = 0.95;
+
+	/** The number of top matches compared between the partitions and the single index */
+	public static int PARTITION_TOP_K = 5;
+
+	/** The ways the queries are degraded, taken in turn; the short ones are excerpts of SHORT_EXCERPT_SECONDS, clean
+	 * or degraded as in combined */
+	public static final String[] CONDITIONS = {"clean", "noise", "gain", "lowBitrate", "combined", "short", "shortCombined"};
+
+	/** The number of tracks indexed */
+	private int tracks;
+
+	/** The number of queries */
+	private int queries;
+
+	/** Picks the tracks and the queries */
+	private long seed;
+
+	/** The lowest score at which a query counts as matched */
+	private int minScore;
+
+	/** The number of workers the tracks are split across, or 0 to use the single index only */
+	private int partitions = 0;
+
+	/** The port of the first worker */
+	private int firstPort;
+
+	/** The lowest recall@1 at which the engine still passes */
+	private double minRecall = MIN_RECALL;
+
+	/** Whether the last run kept recall@1 at or above minRecall and the false-positive rate within MAX_FALSE_POSITIVE_RATE */
+	private boolean withinBounds = true;
+
+	/** The number of queries of the last run whose top matches differed between the partitions and the index */
+	private int partitionMismatches = 0;
+
+	/**
+	 * Constructs a harness.
+	 * @param tracks The number of tracks indexed.
+	 * @param queries The number of queries.
+	 * @param seed Picks the tracks and the queries.
+	 * @param minScore The lowest score at which a query counts as matched.
+	 */
+	public RegressionHarness(int tracks, int queries, long seed, int minScore)
+	{
+		this.tracks = tracks;
+		this.queries = queries;
+		this.seed = seed;
+		this.minScore = minScore;
+	}
+
+	/**
+	 * Sets the lowest recall@1 at which the run passes.
+	 * @param minRecall The recall, between 0 and 1.
+	 */
+	public void setMinRecall(double minRecall)
+	{
+		this.minRecall = minRecall;
+	}
+
+	/**
+	 * Also splits the tracks across workers, and checks every query against them.
+	 * @param partitions The number of workers, or 0 to use the single index only.
+	 * @param firstPort The port of the first worker; the others listen on the ports after it.
+	 */
+	public void setPartitions(int partitions, int firstPort)
+	{
+		this.partitions = partitions;
+		this.firstPort = firstPort;
+	}
+
+	/**
+	 * Builds the index, runs the queries and reports.
+	 * @return The report.
+	 * @throws IOException If the tracks cannot be written for the workers, or a worker fails.
+	 */
+	public Json run() throws IOException
+	{
+		CachedIndexMap index = new CachedIndexMap();
+		long indexNanos = 0;
+		for(int t = 0; t < tracks; t++){
+			Signal signal = SyntheticCorpus.toSignal(SyntheticCorpus.track(trackSeed(t), TRACK_SECONDS), "track-" + t);
+			long start = System.nanoTime();
+			index.indexHashPoints(fingerprint(signal), new TrackID(t));
+			indexNanos += System.nanoTime() - start;
+		}
+		File folder = null;
+		Coordinator coordinator = null;
+		try{
+			if(partitions > 0){
+				folder = File.createTempFile("bazam-partitions", "");
+				if(!folder.delete() || !folder.mkdir())throw new IOException("Cannot create " + folder);
+				coordinator = startPartitions(folder);
+			}
+			return run(index, indexNanos, coordinator);
+		} finally{
+			if(coordinator != null)coordinator.close();
+			if(folder != null){
+				File[] files = folder.listFiles();
+				if(files != null){
+					for(File file : files)file.delete();
+				}
+				folder.delete();
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the last run kept recall@1 at or above the minimum recall and the false-positive rate within
+	 * MAX_FALSE_POSITIVE_RATE, and the partitions, if any, agreed with the single index.
+	 * @return False if too few clips of indexed tracks were identified, too many clips of unknown tracks matched,
+	 * or a partitioned query went wrong.
+	 */
+	public boolean hasPassed()
+	{
+		return withinBounds && partitionMismatches == 0;
+	}
+
+	/**
+	 * Writes the tracks to a folder, starts the workers and indexes the tracks through them, under the same
+	 * track IDs as in the single index.
+	 * @param folder The folder holding the tracks and the partitions.
+	 * @return The coordinator of the workers.
+	 * @throws IOException If a track cannot be written, or a worker cannot be started or fails.
+	 */
+	private Coordinator startPartitions(File folder) throws IOException
+	{
+		int tracksPerPartition = (tracks + partitions - 1)/partitions;
+		Coordinator coordinator = Coordinator.startLocal(new TrackMap(), folder, partitions, tracksPerPartition, firstPort);
+		try{
+			for(int t = 0; t < tracks; t++){
+				File file = new File(folder, "track-" + t + ".wav");
+				SyntheticCorpus.writeWav(SyntheticCorpus.track(trackSeed(t), TRACK_SECONDS), file);
+				TrackID id = coordinator.addTrack(file);
+				if(id.getIntID() != t)throw new IOException("Track " + t + " was added as " + id.getIntID());
+			}
+		} catch(IOException e){
+			coordinator.close();
+			throw e;
+		}
+		return coordinator;
+	}
+
+	/**
+	 * Runs the queries against the index that was built, and against the partitions if there are any.
+	 * @param index The index.
+	 * @param indexNanos The time it took to index the tracks.
+	 * @param coordinator The coordinator of the partitions, or null.
+	 * @return The report.
+	 * @throws IOException If a worker fails.
+	 */
+	private Json run(CachedIndexMap index, long indexNanos, Coordinator coordinator) throws IOException
+	{
+		int[] known = new int[CONDITIONS.length];
+		int[] correct = new int[CONDITIONS.length];
+		int[] misidentified = new int[CONDITIONS.length];
+		int[] unknown = new int[CONDITIONS.length];
+		int[] falsePositives = new int[CONDITIONS.length];
+		ArrayList<Integer> knownScores = new ArrayList<Integer>();//the score of the right track, or 0
+		int maxUnknownScore = 0;
+		long queryNanos = 0;
+		long partitionNanos = 0;
+		partitionMismatches = 0;
+		int trackLength = (int)(TRACK_SECONDS*SyntheticCorpus.FRAME_RATE);
+		Random random = new Random(seed);
+		for(int q = 0; q < queries; q++){
+			int condition = q % CONDITIONS.length;
+			double excerptSeconds = CONDITIONS[condition].startsWith("short") ? SHORT_EXCERPT_SECONDS : EXCERPT_SECONDS;
+			int excerptLength = (int)(excerptSeconds*SyntheticCorpus.FRAME_RATE);
+			boolean isKnown = random.nextDouble() >= UNKNOWN_FRACTION;
+			int source = isKnown ? random.nextInt(tracks) : tracks + q;//unknown tracks are never indexed
+			double[] track = SyntheticCorpus.track(trackSeed(source), TRACK_SECONDS);
+			double[] excerpt = SyntheticCorpus.excerpt(track, random.nextInt(trackLength - excerptLength + 1), excerptLength);
+			Signal signal = SyntheticCorpus.toSignal(degrade(excerpt, condition, random), "query-" + q);
+
+			ArrayList<HashPoint> hashPoints = fingerprint(signal);
+			long start = System.nanoTime();
+			MatchResults results = index.query(hashPoints, signal.getName());
+			ArrayList<RankedMatch> top = results.getTopMatches(1);
+			queryNanos += System.nanoTime() - start;
+			if(coordinator != null){
+				start = System.nanoTime();
+				Coordinator.Answer answer = coordinator.query(hashPoints, PARTITION_TOP_K, Deadline.NONE);
+				partitionNanos += System.nanoTime() - start;
+				if(!sameMatches(results.getTopMatches(PARTITION_TOP_K), answer.getMatches()))partitionMismatches++;
+			}
+
+			boolean matched = !top.isEmpty() && top.get(0).getScore() >= minScore;
+			int score = top.isEmpty() ? 0 : top.get(0).getScore();
+			if(isKnown){
+				known[condition]++;
+				boolean right = !top.isEmpty() && top.get(0).getTrackID().getIntID() == source;
+				knownScores.add(right ? score : 0);
+				if(matched && right){
+					correct[condition]++;
+				} else if(matched){
+					misidentified[condition]++;
+				}
+			} else {
+				unknown[condition]++;
+				maxUnknownScore = Math.max(maxUnknownScore, score);
+				if(matched)falsePositives[condition]++;
+			}
+		}
+
+		//the lowest threshold no unknown clip reaches, and the recall there
+		int safeMinScore = Math.max(minScore, maxUnknownScore + 1);
+		int safelyCorrect = 0;
+		for(int score : knownScores){
+			if(score >= safeMinScore)safelyCorrect++;
+		}
+		double recall = ratio(sum(correct), sum(known));
+		double falsePositiveRate = ratio(sum(falsePositives), sum(unknown));
+		boolean recallMet = !(recall < minRecall);//no known clips pass too
+		boolean falsePositivesMet = !(falsePositiveRate > MAX_FALSE_POSITIVE_RATE);//no unknown clips pass too
+		withinBounds = recallMet && falsePositivesMet;
+
+		ArrayList<Json> conditions = new ArrayList<Json>();
+		for(int c = 0; c < CONDITIONS.length; c++){
+			double excerptSeconds = CONDITIONS[c].startsWith("short") ? SHORT_EXCERPT_SECONDS : EXCERPT_SECONDS;
+			conditions.add(new Json().put("condition", CONDITIONS[c]).put("excerptSeconds", excerptSeconds).put("known", known[c])
+					.put("recallAt1", ratio(correct[c], known[c])).put("misidentified", misidentified[c])
+					.put("unknown", unknown[c]).put("falsePositiveRate", ratio(falsePositives[c], unknown[c])));
+		}
+		Json report = new Json().put("event", "report").put("tracks", tracks).put("queries", queries).put("seed", seed)
+				.put("trackSeconds", TRACK_SECONDS).put("excerptSeconds", EXCERPT_SECONDS).put("minScore", minScore)
+				.put("recallAt1", recall).put("minRecall", minRecall).put("misidentified", sum(misidentified))
+				.put("falsePositiveRate", falsePositiveRate)
+				.put("safeMinScore", safeMinScore).put("recallAtSafeMinScore", ratio(safelyCorrect, sum(known)))
+				.put("withinBounds", withinBounds);
+		if(!recallMet){
+			report.put("warning", "Recall@1 is below " + minRecall + " at --min-score " + minScore);
+		} else if(!falsePositivesMet){
+			report.put("warning", "The false-positive rate is above " + MAX_FALSE_POSITIVE_RATE + " at --min-score "
+					+ minScore + "; recall@1 counts clips that any track would have matched");
+		}
+		report.put("medianKnownScore", median(knownScores)).put("maxUnknownScore", maxUnknownScore)
+				.put("probes", index.getNumberOfProbes()).put("dataPoints", index.getNumberOfDataPoints())
+				.put("indexBytes", serializedSize(index))
+				.put("indexTracksPerSecond", tracks/Math.max(1e-9, indexNanos/1e9))
+				.put("queriesPerSecond", queries/Math.max(1e-9, queryNanos/1e9));
+		if(coordinator != null){
+			report.put("partitions", partitions).put("partitionTopK", PARTITION_TOP_K)
+					.put("partitionMismatches", partitionMismatches)
+					.put("partitionQueriesPerSecond", queries/Math.max(1e-9, partitionNanos/1e9));
+		}
+		return report.put("conditions", conditions);
+	}
+
+	/**
+	 * Compares the top matches of the partitions with those of the single index. Tracks with the same
+	 * score may come in either order, and the last one may be any of the tracks with its score.
+	 * @param expected The top matches of the single index.
+	 * @param actual The merged top matches of the partitions.
+	 * @return True if the matches have the same scores, and the same tracks above the lowest score.
+	 */
+	private static boolean sameMatches(ArrayList<RankedMatch> expected, ArrayList<RankedMatch> actual)
+	{
+		if(expected.size() != actual.size())return false;
+		if(expected.isEmpty())return true;
+		HashSet<Integer> expectedTracks = new HashSet<Integer>();
+		HashSet<Integer> actualTracks = new HashSet<Integer>();
+		int lowest = expected.get(expected.size()-1).getScore();
+		for(int i = 0; i < expected.size(); i++){
+			if(expected.get(i).getScore() != actual.get(i).getScore())return false;
+			if(expected.get(i).getScore() > lowest){
+				expectedTracks.add(Integer.valueOf(expected.get(i).getTrackID().getIntID()));
+				actualTracks.add(Integer.valueOf(actual.get(i).getTrackID().getIntID()));
+			}
+		}
+		return expectedTracks.equals(actualTracks);
+	}
+
+	/**
+	 * Degrades an excerpt.
+	 * @param excerpt The excerpt, which may be changed.
+	 * @param condition The number of the condition in CONDITIONS.
+	 * @param random Picks the gain and the noise.
+	 * @return The degraded excerpt.
+	 */
+	private static double[] degrade(double[] excerpt, int condition, Random random)
+	{
+		String name = CONDITIONS[condition];
+		boolean combined = name.equals("combined") || name.equals("shortCombined");
+		if(name.equals("gain") || combined){
+			SyntheticCorpus.applyGain(excerpt, MIN_GAIN + random.nextDouble()*(MAX_GAIN-MIN_GAIN));
+		}
+		if(name.equals("lowBitrate") || combined){
+			excerpt = SyntheticCorpus.lowBitrate(excerpt, LOW_BITRATE_CUTOFF, LOW_BITRATE_BITS);
+		}
+		if(name.equals("noise") || combined){
+			SyntheticCorpus.addNoise(excerpt, NOISE_SNR, random);
+		}
+		return excerpt;
+	}
+
+	/**
+	 * Extracts the hash points of a signal, as indexing and matching do.
+	 * @param signal The signal.
+	 * @return The hash points.
+	 */
+	private static ArrayList<HashPoint> fingerprint(Signal signal)
+	{
+		return new SpectrogramProbesExtractor(new Spectrogram(signal)).getHashPoints();
+	}
+
+	/**
+	 * Gets the seed of a track.
+	 * @param trackNo The track.
+	 * @return The seed the track is synthesized from.
+	 */
+	private long trackSeed(int trackNo)
+	{
+		return (seed*1000003 + trackNo)*0x9E3779B97F4A7C15L;//spread out, since nearby seeds start alike
+	}
+
+	/**
+	 * Measures the index as it would be saved.
+	 * @param index The index.
+	 * @return The number of bytes.
+	 */
+	private static long serializedSize(CachedIndexMap index)
+	{
+		DataOutputStream out = new DataOutputStream(new OutputStream(){
+			public void write(int b){}
+			public void write(byte[] b, int off, int len){}
+		});
+		try{
+			index.writeTo(out);
+		} catch(IOException e){
+			throw new IllegalStateException(e);//nothing is written
+		}
+		return out.size();
+	}
+
+	/**
+	 * Divides, or gives NaN when there is nothing to divide.
+	 * @param count The numerator.
+	 * @param total The denominator.
+	 * @return The ratio.
+	 */
+	private static double ratio(int count, int total)
+	{
+		return total == 0 ? Double.NaN : (double)count/total;
+	}
+
+	/**
+	 * Gets the median of scores, which shows how far the right tracks score above the threshold.
+	 * @param scores The scores.
+	 * @return The median, or 0 if there are none.
+	 */
+	private static int median(ArrayList<Integer> scores)
+	{
+		if(scores.isEmpty())return 0;
+		ArrayList<Integer> sorted = new ArrayList<Integer>(scores);
+		Collections.sort(sorted);
+		return sorted.get(sorted.size()/2);
+	}
+
+	/**
+	 * Adds up counts.
+	 * @param counts The counts.
+	 * @return The sum.
+	 */
+	private static int sum(int[] counts)
+	{
+		int total = 0;
+		for(int count : counts)total += count;
+		return total;
+	}
+}
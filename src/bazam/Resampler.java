@@ -0,0 +1,329 @@
+package bazam;
+import java.util.Arrays;
+
+/**
+ * Converts mono samples from one frame rate to another with a polyphase FIR filter, so every signal is
+ * fingerprinted at CANONICAL_RATE whatever the rate it was recorded at. The frequency bins of the spectra
+ * then mean the same frequencies for every track and query, and the work of the spectrum and the peaks per
+ * second of audio is that of CANONICAL_RATE: a quarter of it for 44.1 kHz audio at the default rate.
+ * <p>
+ * The ratio of the rates is reduced to up/down, and the filter is a windowed sinc at the rate of up times the
+ * input, split into up phases; an output sample is the dot product of one phase with the input samples
+ * around it, so no sample of the upsampled signal is ever computed. The filter keeps PASSBAND of the lower
+ * of the two Nyquist frequencies and spans ZERO_CROSSINGS zero crossings of the sinc on each side. Output
+ * sample k is centered on input time k*down/up, so the resampled signal is not delayed.
+ * <p>
+ * Samples are taken in blocks of any length and passed on as they are ready; flush ends the signal.
+ * @author Brook
+ *
+ */
+public class Resampler implements SampleSink
+{
+	/** The frame rate signals are fingerprinted at, or 0 to fingerprint every signal at its own rate */
+	public static double CANONICAL_RATE = 11025;
+
+	/** The number of zero crossings of the sinc kept on each side of its center */
+	public static int ZERO_CROSSINGS = 6;
+
+	/** The fraction of the lower Nyquist frequency that is kept */
+	private static final double PASSBAND = 0.9;
+
+	/** Receives the resampled samples */
+	private SampleSink sink;
+
+	/** The factor the input is upsampled by */
+	private final int up;
+
+	/** The factor the upsampled input is decimated by */
+	private final int down;
+
+	/** The number of input samples an output sample is computed from */
+	private final int taps;
+
+	/** The number of those input samples that come after the output sample */
+	private final int half;
+
+	/** The filter of each phase, with its taps in order of time */
+	private final double[][] phases;
+
+	/** The input samples still needed, from input sample first on */
+	private double[] history;
+
+	/** The input sample held at the start of the history */
+	private long first;
+
+	/** The number of samples inside the history */
+	private int filled;
+
+	/** The number of input samples received */
+	private long received = 0;
+
+	/** The number of output samples produced */
+	private long produced = 0;
+
+	/** The input sample at or before the next output sample */
+	private long nextInput = 0;
+
+	/** The phase of the next output sample: how far it is past nextInput, in upsampled samples */
+	private int phase = 0;
+
+	/** The output samples not yet passed on */
+	private double[] output = new double[PcmDecoder.BLOCK_FRAMES];
+
+	/** The number of samples inside the output */
+	private int outputFill = 0;
+
+	/** Whether the signal has ended */
+	private boolean flushed = false;
+
+	/**
+	 * Constructs a resampler.
+	 * @param inputRate The frame rate of the samples given to process, in whole hertz.
+	 * @param outputRate The frame rate of the samples passed on, in whole hertz.
+	 * @param sink Receives the resampled samples.
+	 * @throws IllegalArgumentException If either rate is not positive.
+	 */
+	public Resampler(double inputRate, double outputRate, SampleSink sink)
+	{
+		long in = Math.round(inputRate);
+		long out = Math.round(outputRate);
+		if(in <= 0 || out <= 0)
+			throw new IllegalArgumentException("Cannot resample from " + inputRate + " Hz to " + outputRate + " Hz.");
+		long divisor = gcd(in, out);
+		if(out/divisor > Integer.MAX_VALUE || in/divisor > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Cannot resample from " + inputRate + " Hz to " + outputRate + " Hz.");
+		this.sink = sink;
+		up = (int)(out/divisor);
+		down = (int)(in/divisor);
+		double cutoff = 0.5*PASSBAND/Math.max(up, down);//in cycles per upsampled sample
+		half = (int)Math.ceil(ZERO_CROSSINGS/(2*cutoff*up));
+		taps = 2*half;
+		phases = design(cutoff);
+		history = new double[taps + 2*PcmDecoder.BLOCK_FRAMES];
+		first = -taps;//the signal is preceded by silence
+		filled = taps;
+	}
+
+	/**
+	 * Designs the filter, splits it into its phases and scales each phase to a gain of one.
+	 * @param cutoff The cutoff frequency, in cycles per upsampled sample.
+	 * @return The taps of each phase; tap i weighs the input sample i-half+1 after the input sample at or
+	 * before the output sample.
+	 */
+	private double[][] design(double cutoff)
+	{
+		double[][] filter = new double[up][taps];
+		double reach = (double)half*up;//the window ends this far on either side, in upsampled samples
+		for(int p = 0; p < up; p++){
+			double sum = 0;
+			for(int j = 0; j < taps; j++){
+				double n = (half - 1 - j)*up + p;//the distance from the output sample, in upsampled samples
+				double sinc = n == 0 ? 2*cutoff : Math.sin(2*Math.PI*cutoff*n)/(Math.PI*n);
+				double x = n/reach;
+				double window = Math.abs(x) < 1 ? 0.54 + 0.46*Math.cos(Math.PI*x) : 0;//Hamming, 0 where it ends
+				filter[p][j] = sinc*window;
+				sum += filter[p][j];
+			}
+			for(int j = 0; j < taps; j++){
+				filter[p][j] /= sum;
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Gets the greatest common divisor of two numbers.
+	 * @param a A positive number.
+	 * @param b A positive number.
+	 * @return The divisor.
+	 */
+	private static long gcd(long a, long b)
+	{
+		while(b != 0){
+			long r = a % b;
+			a = b;
+			b = r;
+		}
+		return a;
+	}
+
+	/**
+	 * Gets the frame rate a signal is fingerprinted at.
+	 * @param frameRate The frame rate of the signal.
+	 * @return CANONICAL_RATE, or the frame rate itself if signals are fingerprinted at their own rate.
+	 */
+	public static double fingerprintRate(double frameRate)
+	{
+		return CANONICAL_RATE > 0 ? CANONICAL_RATE : frameRate;
+	}
+
+	/**
+	 * Tells whether a signal must be resampled before it is fingerprinted.
+	 * @param frameRate The frame rate of the signal.
+	 * @return True if the rate is not the one signals are fingerprinted at.
+	 */
+	public static boolean needsResampling(double frameRate)
+	{
+		return Math.round(fingerprintRate(frameRate)) != Math.round(frameRate);
+	}
+
+	/**
+	 * Resamples a whole signal to the rate it is fingerprinted at.
+	 * @param samples The samples.
+	 * @param frameRate The frame rate of the samples.
+	 * @return The resampled samples, or the samples themselves if they are at that rate already.
+	 */
+	public static double[] toFingerprintRate(double[] samples, double frameRate)
+	{
+		if(!needsResampling(frameRate))return samples;
+		return resample(samples, frameRate, fingerprintRate(frameRate));
+	}
+
+	/**
+	 * Resamples a whole signal.
+	 * @param samples The samples.
+	 * @param inputRate The frame rate of the samples.
+	 * @param outputRate The frame rate to convert to.
+	 * @return The resampled samples, one for every output sample whose time falls inside the signal.
+	 */
+	public static double[] resample(double[] samples, double inputRate, double outputRate)
+	{
+		Gather gather = new Gather();
+		Resampler resampler = new Resampler(inputRate, outputRate, gather);
+		gather.samples = new double[(int)resampler.outputLength(samples.length)];
+		for(int i = 0; i < samples.length; i += PcmDecoder.BLOCK_FRAMES){
+			resampler.process(samples, i, Math.min(PcmDecoder.BLOCK_FRAMES, samples.length - i));
+		}
+		resampler.flush();
+		return gather.samples;
+	}
+
+	/**
+	 * Gets the number of output samples whose time falls inside a signal.
+	 * @param inputLength The number of input samples of the signal.
+	 * @return The number of output samples flush leaves passed on.
+	 */
+	public long outputLength(long inputLength)
+	{
+		return (inputLength*up + down - 1)/down;
+	}
+
+	/**
+	 * Adds input samples, and passes on every output sample whose input samples have all arrived.
+	 * @param samples The samples.
+	 * @param offset The position of the first sample inside the array.
+	 * @param length The number of samples.
+	 */
+	public void process(double[] samples, int offset, int length)
+	{
+		if(flushed)throw new IllegalStateException("The signal has ended.");
+		long start = System.nanoTime();
+		long before = produced;
+		append(samples, offset, length);
+		received += length;
+		resample(received);
+		Metrics.RESAMPLE.record(start, produced - before);
+		passOn();
+	}
+
+	/**
+	 * Ends the signal: passes on the output samples up to its end, taking the input after it as silence.
+	 */
+	public void flush()
+	{
+		if(flushed)return;
+		flushed = true;
+		long start = System.nanoTime();
+		long before = produced;
+		append(new double[half], 0, half);
+		resample(received + half);
+		Metrics.RESAMPLE.record(start, produced - before);
+		passOn();
+	}
+
+	/**
+	 * Adds samples to the history, dropping the samples no output sample needs any more.
+	 * @param samples The samples.
+	 * @param offset The position of the first sample inside the array.
+	 * @param length The number of samples.
+	 */
+	private void append(double[] samples, int offset, int length)
+	{
+		if(filled + length > history.length){
+			long needed = nextInput - half + 1;//the oldest input of the next output sample
+			int drop = (int)Math.max(0, Math.min(filled, needed - first));
+			System.arraycopy(history, drop, history, 0, filled - drop);
+			filled -= drop;
+			first += drop;
+			if(filled + length > history.length){
+				history = Arrays.copyOf(history, Math.max(2*history.length, filled + length));
+			}
+		}
+		System.arraycopy(samples, offset, history, filled, length);
+		filled += length;
+	}
+
+	/**
+	 * Computes the output samples whose input samples are all inside the history, up to the end of the signal.
+	 * @param available The number of input samples, real or silent, that the history reaches to.
+	 */
+	private void resample(long available)
+	{
+		double[] history = this.history;
+		int step = down/up;
+		int stepPhase = down % up;
+		while(nextInput < received && nextInput + half < available){
+			double[] filter = phases[phase];
+			int from = (int)(nextInput - half + 1 - first);
+			double value = 0;
+			if(up == 1){//a plain decimation: the filter is symmetric about tap half-1, and its last tap is 0
+				int mirror = from + taps - 2;
+				for(int j = 0; j < half - 1; j++){
+					value += (history[from + j] + history[mirror - j])*filter[j];
+				}
+				value += history[from + half - 1]*filter[half - 1];
+			} else {
+				for(int j = 0; j < taps; j++){
+					value += history[from + j]*filter[j];
+				}
+			}
+			if(outputFill == output.length)output = Arrays.copyOf(output, 2*output.length);
+			output[outputFill++] = value;
+			produced++;
+			nextInput += step;
+			phase += stepPhase;
+			if(phase >= up){
+				phase -= up;
+				nextInput++;
+			}
+		}
+	}
+
+	/**
+	 * Passes the output samples on to the sink.
+	 */
+	private void passOn()
+	{
+		if(outputFill == 0)return;
+		sink.process(output, 0, outputFill);
+		outputFill = 0;
+	}
+
+	/**
+	 * Gathers the output of a resampler into an array of the right length.
+	 */
+	private static class Gather implements SampleSink
+	{
+		/** The samples, with room for the whole output */
+		double[] samples;
+
+		/** The number of samples gathered */
+		int length;
+
+		public void process(double[] block, int offset, int count)
+		{
+			System.arraycopy(block, offset, samples, length, count);
+			length += count;
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package bazam;
+
+/**
+ * Receives mono samples block by block as they are decoded, such as from a stream that is still arriving.
+ * @author Brook
+ *
+ */
+public interface SampleSink
+{
+	/**
+	 * Called for every block of decoded samples.
+	 * @param samples The samples.
+	 * @param offset The position of the first sample inside the array.
+	 * @param length The number of samples.
+	 */
+	void process(double[] samples, int offset, int length);
+}
@@ -0,0 +1,184 @@
+package bazam;
+import java.util.Arrays;
+
+import javax.sound.sampled.*;
+
+/**
+ * The mono samples of a clip, kept as compactly as the source allows: integer PCM of 16 bits or fewer as
+ * short values, two bytes a sample, and wider or floating-point PCM as float values, four bytes a sample,
+ * instead of the eight of a double. A 16-bit mono source is held exactly; a mix of several 16-bit channels
+ * is rounded to 16 bits, the precision of its source.
+ * <p>
+ * Samples are appended as they are decoded, since the store is a SampleSink, and are read back as doubles
+ * between -1 and 1 in bulk, a frame buffer at a time, so no part of the program needs a whole clip as doubles.
+ * @author Brook
+ *
+ */
+public class SampleStore implements SampleSink
+{
+	/** The value of a short sample at full scale */
+	private static final double SHORT_SCALE = 32768;
+
+	/** The samples as short values, or null if they are kept as floats */
+	private short[] shorts;
+
+	/** The samples as float values, or null if they are kept as shorts */
+	private float[] floats;
+
+	/** The number of samples stored */
+	private int length = 0;
+
+	/**
+	 * Constructs an empty store.
+	 * @param capacity The number of samples the store has room for before it grows.
+	 * @param wide Whether to keep float samples, for sources of more than 16 bits.
+	 */
+	public SampleStore(int capacity, boolean wide)
+	{
+		if(wide){
+			floats = new float[Math.max(capacity, 1)];
+		} else {
+			shorts = new short[Math.max(capacity, 1)];
+		}
+	}
+
+	/**
+	 * Constructs an empty store for the samples decoded from audio of some format.
+	 * @param format The format of the audio.
+	 * @param frames The number of frames of the audio, or AudioSystem.NOT_SPECIFIED if it is not known.
+	 * @return Short samples for integer samples of up to 16 bits, float samples otherwise.
+	 * @throws IllegalArgumentException If the audio is too long for one store.
+	 */
+	public static SampleStore forFormat(AudioFormat format, long frames)
+	{
+		if(frames > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Clip too long");
+		boolean wide = format.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT) || format.getSampleSizeInBits() > 16;
+		return new SampleStore(frames >= 0 ? (int)frames : PcmDecoder.BLOCK_FRAMES, wide);
+	}
+
+	/**
+	 * Appends samples.
+	 * @param samples The samples, between -1 and 1.
+	 * @param offset The position of the first sample inside the array.
+	 * @param count The number of samples.
+	 * @throws IllegalArgumentException If the store would hold more samples than an array can.
+	 */
+	public void process(double[] samples, int offset, int count)
+	{
+		int capacity = shorts != null ? shorts.length : floats.length;
+		if(length + count > capacity){
+			long grown = Math.max(2L*capacity, (long)length + count);
+			if(grown > Integer.MAX_VALUE)throw new IllegalArgumentException("Clip too long");
+			resize((int)grown);
+		}
+		int end = offset + count;
+		if(shorts != null){
+			for(int i = offset, j = length; i < end; i++, j++){
+				long s = Math.round(samples[i]*SHORT_SCALE);
+				shorts[j] = (short)(s > Short.MAX_VALUE ? Short.MAX_VALUE : s < Short.MIN_VALUE ? Short.MIN_VALUE : s);
+			}
+		} else {
+			for(int i = offset, j = length; i < end; i++, j++){
+				floats[j] = (float)samples[i];
+			}
+		}
+		length += count;
+	}
+
+	/**
+	 * Releases the room left after the last sample, once the store is complete.
+	 */
+	public void trim()
+	{
+		int capacity = shorts != null ? shorts.length : floats.length;
+		if(capacity > Math.max(length, 1))resize(Math.max(length, 1));
+	}
+
+	/**
+	 * Moves the samples into arrays of another capacity.
+	 * @param capacity The new capacity, at least the number of samples.
+	 */
+	private void resize(int capacity)
+	{
+		if(shorts != null){
+			shorts = Arrays.copyOf(shorts, capacity);
+		} else {
+			floats = Arrays.copyOf(floats, capacity);
+		}
+	}
+
+	/**
+	 * Gets the number of samples.
+	 * @return The number of samples stored.
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+	/**
+	 * Tells whether the samples are kept as floats.
+	 * @return True for float samples, false for short samples.
+	 */
+	public boolean isWide()
+	{
+		return floats != null;
+	}
+
+	/**
+	 * Gets the number of bytes the samples take on the heap.
+	 * @return The size of the sample array.
+	 */
+	public long getMemoryBytes()
+	{
+		return shorts != null ? TrackMap.arrayBytes(shorts.length, 2) : TrackMap.arrayBytes(floats.length, 4);
+	}
+
+	/**
+	 * Gets one sample.
+	 * @param index The position of the sample.
+	 * @return The sample, between -1 and 1.
+	 */
+	public double get(int index)
+	{
+		if(index >= length)throw new ArrayIndexOutOfBoundsException(index);
+		return shorts != null ? shorts[index]/SHORT_SCALE : floats[index];
+	}
+
+	/**
+	 * Converts consecutive samples into a buffer.
+	 * @param first The position of the first sample.
+	 * @param buffer Receives the samples, between -1 and 1.
+	 * @param offset The position inside the buffer of the first sample.
+	 * @param count The largest number of samples.
+	 * @return The number of samples converted, fewer than count at the end of the store.
+	 */
+	public int read(int first, double[] buffer, int offset, int count)
+	{
+		int n = Math.max(0, Math.min(count, length - first));
+		if(shorts != null){
+			for(int i = 0; i < n; i++){
+				buffer[offset + i] = shorts[first + i]/SHORT_SCALE;
+			}
+		} else {
+			for(int i = 0; i < n; i++){
+				buffer[offset + i] = floats[first + i];
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Passes every sample to a sink, converted a block at a time.
+	 * @param sink Receives the samples.
+	 */
+	public void read(SampleSink sink)
+	{
+		double[] block = new double[Math.min(length, PcmDecoder.BLOCK_FRAMES)];
+		for(int first = 0; first < length; first += block.length){
+			int n = read(first, block, 0, block.length);
+			sink.process(block, 0, n);
+		}
+	}
+}
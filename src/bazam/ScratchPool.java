@@ -0,0 +1,60 @@
+package bazam;
+import java.util.concurrent.*;
+
+/**
+ * Keeps scratch objects that are costly to create, such as large arrays or FFT plans, for reuse by whichever
+ * thread needs one next. Unlike a ThreadLocal, the objects outlive the threads that used them, so they are
+ * reused even when every request runs on a new thread. At most a fixed number are kept; the ones given back
+ * beyond that are left to the garbage collector.
+ * @author Brook
+ *
+ * @param <T> The type of the scratch objects.
+ */
+public abstract class ScratchPool<T>
+{
+	/** The objects that are free to borrow */
+	private ArrayBlockingQueue<T> free;
+	
+	/**
+	 * Constructs a pool.
+	 * @param capacity The most free objects kept.
+	 */
+	public ScratchPool(int capacity)
+	{
+		free = new ArrayBlockingQueue<T>(capacity);
+	}
+	
+	/**
+	 * Creates an object when none is free.
+	 * @return The new object.
+	 */
+	protected abstract T create();
+	
+	/**
+	 * Borrows an object, which must be given back once it is no longer used.
+	 * @return A free object, or a new one if none is free.
+	 */
+	public T borrow()
+	{
+		T object = free.poll();
+		return object != null ? object : create();
+	}
+	
+	/**
+	 * Gives back a borrowed object for the next borrower.
+	 * @param object The object, which the caller must no longer use.
+	 */
+	public void giveBack(T object)
+	{
+		free.offer(object);
+	}
+	
+	/**
+	 * Gets the number of objects that are free to borrow.
+	 * @return The number of free objects.
+	 */
+	public int getFree()
+	{
+		return free.size();
+	}
+}
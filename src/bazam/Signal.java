@@ -8,7 +8,7 @@ package bazam;
 public class Signal implements Runnable
 {
 	/** The samples of this signal object */
-	private double[] samples;
+	private SampleStore samples;
 	
 	/** The frame rate (frames per second). Also known as frequency */
 	private double frameRate;
@@ -25,7 +25,7 @@ public class Signal implements Runnable
 	/** The static frame rate */
 	public static double FRAMERATE;
 	
-	/** The frequency in hertz per frequency bin */
+	/** The frequency in hertz per frequency bin of the spectrogram of the latest signal */
 	public static double HZ_PER_FREQ_BIN;
 	
 	/**
@@ -39,15 +39,15 @@ public class Signal implements Runnable
 		this.name = name;
 		samples = audioClip.getSamples();
 		frameRate = audioClip.getFrameRate();
-		HZ_PER_FREQ_BIN = frameRate/Spectrogram.SAMPLE_SIZE;	
-		length = samples.length/frameRate;	 
+		HZ_PER_FREQ_BIN = Resampler.fingerprintRate(frameRate)/Spectrogram.SAMPLE_SIZE;
+		length = samples.length()/frameRate;	 
 	}
 
 	/**
 	 * Gets the samples contained inside the signal
-	 * @return The samples of the signal.
+	 * @return The store of the samples of the signal.
 	 */
-	public double[] getSamples()
+	public SampleStore getSamples()
 	{
 		return samples;
 	}	
@@ -70,6 +70,15 @@ public class Signal implements Runnable
 		return frameRate;
 	}
 
+	/**
+	 * Gets the audio clip underlying the signal.
+	 * @return The clip.
+	 */
+	public AudioClip getAudioClip()
+	{
+		return audioClip;
+	}
+
 	/**
 	 * Plays the audio file.
 	 */
@@ -97,7 +106,7 @@ public class Signal implements Runnable
 	 */
 	public long getSamplesLength()
 	{
-		return samples.length;
+		return samples.length();
 	}
 	
 }
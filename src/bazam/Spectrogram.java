@@ -1,16 +1,13 @@
 package bazam;
 import java.util.*;
 /**
- * A spectra object contains a collection of PowerSpectrum objects. It will extract the peaks only 
- * when the method is called.
+ * A spectra object contains a collection of PowerSpectrum objects. Its peaks are extracted once it is
+ * constructed.
  * @author Brook
  *
  */
 public class Spectrogram 
 {
-	/** The initial samples obtained from the signal */
-	private double[] initialSamples;
-	
 	/** The collection of PowerSpectrum objects, which each represent a particular time domain */
 	private PowerSpectrum[] spectrums;
 	
@@ -26,62 +23,98 @@ public class Spectrogram
 	/** The total number of PowerSpectrum objects inside the spectrogram */
 	private int numberOfSpectra;
 	
+	/** A peak must stand out from the spectra up to this many spectra before and after it */
+	static final int NEIGHBOR_SPECTRA = 3;
+	
 	/** The size of the power spectrum array is half the number of samples per interval. */
 	public static int POWER_SIZE = SAMPLE_SIZE/2;	
 	
 	/**
-	 * Constructs a spectrogram using the array of samples from the audio clip. 
+	 * Constructs a spectrogram using the samples from the audio clip, resampled to the rate signals are
+	 * fingerprinted at. The samples are read out of the clip's store a block at a time, so the signal is
+	 * never held as doubles. Peak times are counted in samples at that rate.
 	 * @param signal The signal from which to construct spectrogram from.
 	 */
 	public Spectrogram(Signal signal)
 	{
-		initialSamples = signal.getSamples();
 		this.signal = signal;
-		double[] testSample = new double[2*SAMPLE_SIZE];
-		numberOfSpectra = (int)(initialSamples.length/SAMPLE_SIZE);//this will prevent access out of bounds				
-		spectrums = new PowerSpectrum[numberOfSpectra];		
-		//Initialize the samples to be transformed
-		int spectrumNumber = 0;
-		for(int i = 0; spectrumNumber < numberOfSpectra; i += SAMPLE_SIZE){			
-			for(int j = 0; j < SAMPLE_SIZE; j++){	
-				testSample[j*2] = initialSamples[spectrumNumber*SAMPLE_SIZE+j];
-				testSample[j*2+1] = 0;
-			}
-			PowerSpectrum aPowerSpectrum = new PowerSpectrum(testSample, i); //TODO: TO REFLECT INDEX, use spectrumNumber?
-			//Spectrogram.getSignalID(spectrumNumber);
-			spectrums[spectrumNumber] = aPowerSpectrum;
-			spectrumNumber++;			
-		}			
+		Transform transform = new Transform();
+		double frameRate = signal.getFrameRate();
+		if(Resampler.needsResampling(frameRate)){
+			Resampler resampler = new Resampler(frameRate, Resampler.fingerprintRate(frameRate), transform);
+			signal.getSamples().read(resampler);
+			resampler.flush();
+		} else {
+			signal.getSamples().read(transform);
+		}
+		//samples that do not fill a whole spectrum are dropped
+		spectrums = transform.spectra.toArray(new PowerSpectrum[transform.spectra.size()]);
+		numberOfSpectra = spectrums.length;
+		Metrics.SPECTRUM.record(System.nanoTime() - transform.nanos, numberOfSpectra);
 		extractPeaks();
 	}	
 	
 	/**
-	 * Gets the average power at the specified index
-	 * @param index The spectra number.
-	 * @return The average power at that location.
+	 * Computes a power spectrum for every SAMPLE_SIZE samples it receives.
 	 */
-	private double getAveragePowerAt(int index)
+	private static class Transform implements SampleSink
 	{
-		return spectrums[index].getAveragePower();
+		/** The samples to be transformed, interleaved with their imaginary parts */
+		private float[] testSample = new float[2*SAMPLE_SIZE];
+		
+		/** The number of samples inside testSample */
+		private int fill = 0;
+		
+		/** The spectra computed */
+		ArrayList<PowerSpectrum> spectra = new ArrayList<PowerSpectrum>();
+		
+		/** The time spent computing them, in nanoseconds */
+		long nanos = 0;
+		
+		public void process(double[] samples, int offset, int length)
+		{
+			int end = offset + length;
+			while(offset < end){
+				int n = Math.min(end - offset, SAMPLE_SIZE - fill);
+				for(int j = 0; j < n; j++){
+					testSample[(fill + j)*2] = (float)samples[offset + j];
+					testSample[(fill + j)*2+1] = 0;
+				}
+				fill += n;
+				offset += n;
+				if(fill == SAMPLE_SIZE){
+					long start = System.nanoTime();
+					spectra.add(new PowerSpectrum(testSample, spectra.size()*SAMPLE_SIZE));
+					nanos += System.nanoTime() - start;
+					fill = 0;
+				}
+			}
+		}
 	}
 	
 	/**
 	 * Extracts the peaks inside the spectrogram from each frequency bin by filtering
 	 * the values that are less than the corresponding values in neighboring spectra.
+	 * The peaks found replace those of any earlier call, so calling it again changes nothing;
+	 * lists already returned by getAllPeaks are left as they were.
 	 */
 	public void extractPeaks()
 	{
+		long start = System.nanoTime();
+		ArrayList<Peak> found = new ArrayList<Peak>();
 		for(int index = 0; index < numberOfSpectra-1; index++){//loop through each spectrum.
 			PowerSpectrum s = spectrums[index];
 			ArrayList<Peak>localPeaks = s.getPeaks();//each spectrum's local peaks
 			for(int j = 0; j < localPeaks.size(); j++){//loop through each peak of each spectrum.
 				Peak peak = localPeaks.get(j);
 				int frequency = peak.getFrequency();
-				double power = s.getPowerAt(frequency);
+				float power = s.getPowerAt(frequency);
 				if(checkAdjacentSpectra(index, frequency, power))
-					globalPeaks.add(peak);
+					found.add(peak);
 			}			
 		}	
+		globalPeaks = found;
+		Metrics.PEAKS.record(start, found.size());
 		/*for(Peak peak :globalPeaks){
 			System.out.println(peak.getTime() + " " + peak.getFrequency() + " ");
 		}*/
@@ -94,15 +127,30 @@ public class Spectrogram
 	 * @param power The power value
 	 * @return Whether the local peak is still considered a global peak. True if it still is, false otherwise.
 	 */
-	private boolean checkAdjacentSpectra(int index, int frequency, double power)
+	private boolean checkAdjacentSpectra(int index, int frequency, float power)
+	{
+		return checkAdjacentSpectra(spectrums, 0, numberOfSpectra, index, frequency, power);
+	}
+	
+	/**
+	 * Checks the given power value with those of the spectra up to NEIGHBOR_SPECTRA before and after it.
+	 * @param spectra Consecutive spectra.
+	 * @param start The first spectrum in the array that exists.
+	 * @param end One past the last spectrum in the array that exists.
+	 * @param index The location of the spectrum holding the peak inside the array.
+	 * @param frequency The frequency.
+	 * @param power The power value
+	 * @return Whether the local peak is still considered a global peak. True if it still is, false otherwise.
+	 */
+	static boolean checkAdjacentSpectra(PowerSpectrum[] spectra, int start, int end, int index, int frequency, float power)
 	{
 		//Check the power at the spectrum one sample length ahead
-		for(int i = (-3+index); i <= (3+index); i++){
-			if(i >=0 && i < numberOfSpectra && i!=index){
-				PowerSpectrum oPowerSpectrum = spectrums[i];
-				double oPower = oPowerSpectrum.getPowerAt(frequency);
+		for(int i = (-NEIGHBOR_SPECTRA+index); i <= (NEIGHBOR_SPECTRA+index); i++){
+			if(i >=start && i < end && i!=index){
+				PowerSpectrum oPowerSpectrum = spectra[i];
+				float oPower = oPowerSpectrum.getPowerAt(frequency);
 				if( (power - oPower) < PowerSpectrum.PEAK_THRESHOLD)return false;
-				if( (power - getAveragePowerAt(i)) < PowerSpectrum.PEAK_THRESHOLD)return false;	
+				if( (power - oPowerSpectrum.getAveragePower()) < PowerSpectrum.PEAK_THRESHOLD)return false;	
 			}
 		}
 		return true;	
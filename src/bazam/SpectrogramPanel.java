@@ -2,28 +2,46 @@ package bazam;
 
 
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
 import java.io.*;
 import javax.swing.*;
 
 
 import java.awt.*;
+import java.awt.image.*;
 /**
  * Displays the spectrogram that the user selects to play.
  * It is separated from the actual object that contains all the 
  * spectra details.
+ * <p>
+ * The spectrogram is computed and its spectra are rendered once, off the event dispatch thread, into tiles
+ * of TILE_SPECTRA spectra with one pixel per spectrum and frequency bin; each pixel is the level of its power
+ * relative to the strongest power of its spectrum, and the levels are turned into colours by a lookup table.
+ * Painting only scales the tiles in view onto the panel, so zooming never renders them again, and draws the
+ * peaks in view over them. Until the spectrogram is computed, the panel only says that it is being computed.
  * @author Brook
  *
  */
 public class SpectrogramPanel extends JPanel
 {	
-	/** The spectrogram contains the spectrum objects */
+	/** The number of spectra inside each tile of the rendered spectrogram */
+	public static int TILE_SPECTRA = 256;
+	
+	/** The number of levels of power drawn */
+	private static final int LEVELS = 256;
+	
+	/** The colour of each level of power, darkest for none, lightest for the strongest power of a spectrum */
+	private static final IndexColorModel COLOURS = greyScale();
+	
+	/** The spectrogram contains the spectrum objects; null until it is computed */
 	private Spectrogram spectrogram;
 	
 	/** The Signal selected by the user */
 	private Signal signal;
 	
 	/** Original set of complete samples of audio */
-	private double[] samples;
+	private SampleStore samples;
 	
 	/** The scale of the waveform	 */
 	protected double hscale = 0.1;
@@ -37,8 +55,17 @@ public class SpectrogramPanel extends JPanel
 	/** The frequency at which the signal was sampled */
 	private double frameRate;
 	
-	/** List of all the peaks inside the spectrogram */
-	private ArrayList<Peak>peaks;
+	/** The tiles of the rendered spectrogram, in order of time; null until a tile is rendered */
+	private BufferedImage[] tiles = new BufferedImage[0];
+	
+	/** The time of each peak inside the spectrogram, in order */
+	private int[] peakTimes = new int[0];
+	
+	/** The frequency of each peak inside the spectrogram */
+	private int[] peakFrequencies = new int[0];
+	
+	/** What the panel says instead of showing the spectrogram, or null once the spectrogram is computed */
+	private String status = "Computing the spectrogram...";
 	
 	/** Name of the clip - used for creating TrackInfo objects */
 	private String name;
@@ -55,75 +82,141 @@ public class SpectrogramPanel extends JPanel
 		frameRate = signal.getFrameRate();
 		
 		samples = signal.getSamples();		
-		spectrogram = new Spectrogram(signal);
-		numberOfSpectra = spectrogram.size();	
+		new TileRenderer().execute();
 		
-		double width = samples.length*hscale;
-		setPreferredSize(new Dimension((int)width,WaveformPanel.HEIGHT));
 		setBackground(Color.WHITE);	
-		revalidate();
-		repaint();		
+		resize();
+	}
+	
+	/**
+	 * Builds the colour lookup table: a grey for each level.
+	 * @return The colours.
+	 */
+	private static IndexColorModel greyScale()
+	{
+		byte[] grey = new byte[LEVELS];
+		for(int i = 0; i < LEVELS; i++){
+			grey[i] = (byte)(i*255/(LEVELS - 1));
+		}
+		return new IndexColorModel(8, LEVELS, grey, grey, grey);
 	}
 	
 	/**
-	 * Paints the panel.
+	 * Renders consecutive spectra into a tile.
+	 * @param spectrogram The spectrogram.
+	 * @param first The first spectrum of the tile.
+	 * @param count The number of spectra of the tile.
+	 * @return An image of one column per spectrum and one row per frequency bin, the first bin at the bottom.
+	 */
+	static BufferedImage renderTile(Spectrogram spectrogram, int first, int count)
+	{
+		int bins = Spectrogram.POWER_SIZE;
+		byte[] levels = new byte[count*bins];
+		for(int i = 0; i < count; i++){
+			PowerSpectrum s = spectrogram.getPowerSpectrumAt(first + i);
+			float maxPower = s.getMaxPower();//gets the max power for the entire time interval
+			for(int j = 0; j < bins; j++){
+				float ratio = s.getPowerAt(j)/maxPower;
+				levels[(bins - 1 - j)*count + i] = (byte)(int)(ratio*(LEVELS - 1) + 0.5f);
+			}
+		}
+		BufferedImage tile = new BufferedImage(count, bins, BufferedImage.TYPE_BYTE_INDEXED, COLOURS);
+		tile.getRaster().setDataElements(0, 0, count, bins, levels);
+		return tile;
+	}
+	
+	/**
+	 * Gets the horizontal position of the start of a spectrum.
+	 * @param spectrum The index of the spectrum, up to the number of spectra for the end of the last one.
+	 * @return The position, in pixels.
+	 */
+	private int spectrumX(int spectrum)
+	{
+		return (int)((double)spectrum/(double)numberOfSpectra*samples.length()*hscale);
+	}
+	
+	/**
+	 * Paints the tiles and the peaks in view.
 	 * @param g
 	 */
 	public void paintComponent(Graphics g)
 	{
 		super.paintComponent(g);	
-		double totalWidth = samples.length*hscale;
-		setPreferredSize(new Dimension((int) totalWidth, WaveformPanel.HEIGHT));
-		for(int i = 0; i < spectrogram.size(); i++){
-			PowerSpectrum s = spectrogram.getPowerSpectrumAt(i); 				
-			double maxPower = s.getMaxPower();//gets the max power for the entire time interval
-			for(int j = 0; j < Spectrogram.SAMPLE_SIZE/2; j++){				
-				double x = ((double)i/(double)numberOfSpectra);
-				//double x1 = (x*getWidth());
-				double x1 = (x*totalWidth);
-				x = ((double)(i+1)/(double)numberOfSpectra);//the next value
-				//double x2 = x*getWidth();
-				double x2 = x*totalWidth;
-				int width = (int)(x2 - x1);
-				if (width == 0)//error check to see if the width turned out to be zero
-					width = 1;
-				double dy = ((double)getHeight()/(Spectrogram.SAMPLE_SIZE/2.0));
-				double y = j*dy;
-				y = getHeight() - y - dy;	//because the first frequency starts at the bottom		
-				double power = s.getPowerAt(j); // the intensity at the index
-				float ratio = (float) (power/maxPower); //to be used for setting the color;				
-				g.setColor(new Color(ratio, ratio, ratio));
-				g.drawRect((int)x1, (int) y, width, (int)dy );
-				g.fillRect((int)x1, (int) y, width, (int)dy );						
-			}
-		}		
-		
-		spectrogram.extractPeaks();
-		peaks = spectrogram.getAllPeaks();
+		if(status != null){
+			g.setColor(Color.GRAY);
+			g.drawString(status, 10, 20);
+			return;
+		}
+		Rectangle view = g.getClipBounds();
+		if(view == null)view = new Rectangle(0, 0, getWidth(), getHeight());
+		int height = getHeight();
+		for(int t = 0; t < tiles.length; t++){
+			int first = t*TILE_SPECTRA;
+			int last = Math.min(first + TILE_SPECTRA, numberOfSpectra);
+			int x1 = spectrumX(first);
+			int x2 = Math.max(spectrumX(last), x1 + 1);
+			if(tiles[t] == null || x2 <= view.x || x1 >= view.x + view.width)continue;
+			g.drawImage(tiles[t], x1, 0, x2, height, 0, 0, last - first, Spectrogram.POWER_SIZE, null);
+		}
 		
-		//now draw dots for the peaks in the spectrogram
+		//now draw dots for the peaks in view; zoomed out, many peaks fall on the same pixel, which is drawn once
+		double totalWidth = samples.length()*hscale;
+		double scale = totalWidth/((double)numberOfSpectra*Spectrogram.SAMPLE_SIZE);
+		boolean[] drawn = new boolean[height + 1];//the rows drawn in the current column
+		int column = Integer.MIN_VALUE;
 		g.setColor(Color.yellow);
-		for(int i = 0; i < peaks.size(); i++){
-			//Peak peak = peaks.get(i);
-			Peak peak = peaks.get(i);
-			double x = peak.getTime();//TODO: check if multiply by sample_rate is ok
-			x = x * (double) totalWidth/ (double)(numberOfSpectra * Spectrogram.SAMPLE_SIZE);
-			double y = (double)peak.getFrequency()/((double)Spectrogram.SAMPLE_SIZE/2.0); 
-			y = y * (double)getHeight();
-			y = (double)getHeight() - y;
-			g.drawOval((int)x,(int)y,2,2);
-			g.fillOval((int)x,(int)y,2,2);			
+		for(int i = firstPeakAfter((view.x - 2)/scale); i < peakTimes.length; i++){
+			double x = peakTimes[i]*scale;
+			if(x > view.x + view.width)break;
+			double y = (double)peakFrequencies[i]/((double)Spectrogram.SAMPLE_SIZE/2.0); 
+			y = y * (double)height;
+			y = (double)height - y;
+			if((int)x != column){
+				column = (int)x;
+				Arrays.fill(drawn, false);
+			}
+			int row = Math.max(0, Math.min(height, (int)y));
+			if(drawn[row])continue;
+			drawn[row] = true;
+			g.fillRect((int)x, (int)y + 1, 3, 1);//the small plus drawOval and fillOval of size 2 make, but much faster
+			g.fillRect((int)x + 1, (int)y, 1, 3);
 		}		
 	}
 	
+	/**
+	 * Finds the first peak at or after a time.
+	 * @param time The time, in samples.
+	 * @return The index of the peak, or the number of peaks if they are all earlier.
+	 */
+	private int firstPeakAfter(double time)
+	{
+		int low = 0;
+		int high = peakTimes.length;
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(peakTimes[middle] < time)low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+	
+	/**
+	 * Sizes the panel to the scale of the spectrogram.
+	 */
+	private void resize()
+	{
+		setPreferredSize(new Dimension((int)(samples.length()*hscale), WaveformPanel.HEIGHT));
+		revalidate();
+		repaint();
+	}
+	
 	/**
 	 * Zooms in to the spectrogram panel.
 	 */
 	public void zoomIn()
 	{
 		hscale *= 1.5;
-		revalidate();
-		repaint();
+		resize();
 	}
 	
 	/** 
@@ -132,8 +225,7 @@ public class SpectrogramPanel extends JPanel
 	public void zoomOut()
 	{
 		hscale /= 1.5;
-		revalidate();
-		repaint();
+		resize();
 	}
 	
 	/**
@@ -142,7 +234,81 @@ public class SpectrogramPanel extends JPanel
 	public void resetZoom()
 	{
 		hscale = WaveformPanel.HSCALE;
-		revalidate();
-		repaint();
+		resize();
+	}
+	
+	/**
+	 * Computes the spectrogram and its peaks in the background, then renders the tiles and shows each one as 
+	 * soon as it is ready.
+	 */
+	private class TileRenderer extends SwingWorker<Void, Integer>
+	{
+		/** Published once the spectrogram and its peaks are computed, before any tile */
+		private static final int COMPUTED = -1;
+		
+		/** The spectrogram, handed over to the event dispatch thread once it is computed */
+		private Spectrogram computed;
+		
+		/** The time of each peak, in order */
+		private int[] times;
+		
+		/** The frequency of each peak */
+		private int[] frequencies;
+		
+		/** The tiles rendered, handed over to the event dispatch thread as they are published */
+		private BufferedImage[] rendered;
+		
+		protected Void doInBackground()
+		{
+			computed = new Spectrogram(signal);
+			int spectra = computed.size();
+			ArrayList<Peak> peaks = computed.getAllPeaks();
+			times = new int[peaks.size()];
+			frequencies = new int[peaks.size()];
+			for(int i = 0; i < peaks.size(); i++){
+				times[i] = peaks.get(i).getTime();
+				frequencies[i] = peaks.get(i).getFrequency();
+			}
+			rendered = new BufferedImage[(spectra + TILE_SPECTRA - 1)/TILE_SPECTRA];
+			publish(COMPUTED);
+			for(int t = 0; t < rendered.length; t++){
+				int first = t*TILE_SPECTRA;
+				rendered[t] = renderTile(computed, first, Math.min(TILE_SPECTRA, spectra - first));
+				publish(t);
+			}
+			return null;
+		}
+		
+		protected void process(List<Integer> ready)
+		{
+			for(int t : ready){
+				if(t == COMPUTED){
+					spectrogram = computed;
+					numberOfSpectra = computed.size();
+					peakTimes = times;
+					peakFrequencies = frequencies;
+					tiles = new BufferedImage[rendered.length];
+					status = null;
+					repaint();
+					continue;
+				}
+				tiles[t] = rendered[t];
+				int x1 = spectrumX(t*TILE_SPECTRA);
+				int x2 = spectrumX(Math.min((t + 1)*TILE_SPECTRA, numberOfSpectra));
+				repaint(x1, 0, Math.max(x2 - x1, 1), getHeight());
+			}
+		}
+		
+		protected void done()
+		{
+			try{
+				get();
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			} catch(ExecutionException e){
+				status = "The spectrogram could not be computed.";
+				repaint();
+			}
+		}
 	}
 }
@@ -38,11 +38,13 @@ public class SpectrogramProbesExtractor
 	 */
 	public void generateProbes()
 	{
+		long start = System.nanoTime();
 		hashPoints = new ArrayList<HashPoint>();
 		for(int i = 0; i < p.size(); i++){
 			Peak peak = p.get(i);
 			createProbe(peak,i);
 		}
+		Metrics.HASHING.record(start, hashPoints.size());
 	}
 	
 	/**
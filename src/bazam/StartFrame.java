@@ -36,6 +36,9 @@ public class StartFrame extends JFrame{
 	/** Displays the index in a JFrame */
 	private JMenuItem displayIndex;
 	
+	/** Toggles linking duplicate tracks as aliases instead of indexing them again */
+	private JCheckBoxMenuItem detectDuplicates;
+	
 	/** Menu item to exit the main application */
 	private JMenuItem exit;
 	
@@ -178,6 +181,19 @@ public class StartFrame extends JFrame{
 //			}
 		);
 		
+		//LINK DUPLICATES instead of indexing them
+		detectDuplicates = new JCheckBoxMenuItem("Detect Duplicates");
+		file.add(detectDuplicates);
+		detectDuplicates.addActionListener(
+				new ActionListener(){
+					public void actionPerformed(ActionEvent e) {
+						if(trackIndex != null){
+							trackIndex.setDuplicateDetection(detectDuplicates.isSelected());
+						}
+					}				
+				}
+			);
+		
 		//DISPLAY THE INDEX
 		displayIndex = new JMenuItem("Show Index");
 		file.add(displayIndex);
@@ -268,6 +284,7 @@ public class StartFrame extends JFrame{
     	if(trackIndex==null){
     		JOptionPane.showMessageDialog(this, "Index is empty.");
     	} else {
+    		textArea.append(trackIndex.getStatistics(IndexStatistics.HOTTEST) + "\n");
     		Iterator<TrackID> it = trackIndex.getTrackIDIterator();
     		while(it.hasNext()){
     			TrackID id = it.next();
@@ -334,11 +351,22 @@ public class StartFrame extends JFrame{
 					if(ret == JFileChooser.APPROVE_OPTION) {
 						try{
 							File file = f.getSelectedFile();
+							TrackID id;
 							if(trackIndex==null){
-								trackIndex = new TrackIndex(file);
+								trackIndex = new TrackIndex(file, detectDuplicates.isSelected());
+								id = trackIndex.getTrackID(file);
+							} else {
+								id = trackIndex.addTrack(file);
+							}
+							TrackInfo info = (id == null) ? null : trackIndex.getTrackInfo(id);
+							if(info == null){
+								JOptionPane.showMessageDialog(null, "Error during indexing.");
+							} else if(info.isAlias()){
+								JOptionPane.showMessageDialog(null, "Linked " + file.getName() + " as a duplicate of " + 
+										trackIndex.getTrackInfo(info.getAliasOf()).getDescription(), "Duplicate", JOptionPane.PLAIN_MESSAGE);
 							} else {
-								trackIndex.addTrack(file);
-							}						
+								JOptionPane.showMessageDialog(null, "Indexed " + file.getName(), "Success", JOptionPane.PLAIN_MESSAGE);
+							}
 						} catch(Exception x){
 							JOptionPane.showMessageDialog(null, "Error during indexing.");
 						}
@@ -358,12 +386,19 @@ public class StartFrame extends JFrame{
 				if(ret == JFileChooser.APPROVE_OPTION) {
 					try{
 						File fileDir = f.getSelectedFile();
+						int indexed;
 						if(trackIndex==null){
-							trackIndex = new TrackIndex(fileDir);								
+							trackIndex = new TrackIndex(fileDir, detectDuplicates.isSelected());								
+							indexed = trackIndex.getNumberOfIndexedTracks();
+						} else {
+							indexed = trackIndex.addFolder(fileDir);
+						}
+						if(indexed == 0){
+							JOptionPane.showMessageDialog(null, "The folder -" + 
+									fileDir.getName() + "-\nhas no tracks.");
 						} else {
-							trackIndex.addFolder(fileDir);
-							//JOptionPane.showMessageDialog(startFrame, "The folder -" + 
-							//		fileDir.getName() + "-\nwas successfully indexed.");
+							JOptionPane.showMessageDialog(null, "The folder -" + 
+									fileDir.getName() + "-\nwas successfully indexed.");
 						}
 					} catch(Exception x){
 						JOptionPane.showMessageDialog(null, "Error during indexing.");
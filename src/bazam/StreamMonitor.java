@@ -0,0 +1,478 @@
+package bazam;
+import java.io.*;
+import java.util.*;
+
+import javax.sound.sampled.*;
+
+/**
+ * Identifies what is playing on a long or endless stream of audio, such as a broadcast capture.
+ * The stream is fingerprinted as it arrives. Each hash point votes for the time offsets of the tracks
+ * that share its probe, inside per-track histograms whose votes decay with a half life of HALF_LIFE
+ * seconds, so only the recent part of the stream counts. A track whose best offset reaches START_SCORE
+ * starts a match; the match ends when the score decays below END_SCORE or another track overtakes it.
+ * <p>
+ * The work per second of audio does not grow with the length of the stream.
+ * @author Brook
+ *
+ */
+public class StreamMonitor implements SampleSink, StreamingFingerprinter.HashPointListener,
+		CachedIndexMap.DataPointVisitor
+{
+	/**
+	 * Receives the matches found on the stream.
+	 */
+	public interface MatchListener
+	{
+		/**
+		 * Called when a track starts being identified.
+		 * @param event The start of the match.
+		 */
+		void matchStarted(MatchEvent event);
+
+		/**
+		 * Called when a track stops being identified.
+		 * @param event The end of the match.
+		 */
+		void matchEnded(MatchEvent event);
+	}
+
+	/** The number of seconds after which a vote counts for half */
+	public static double HALF_LIFE = 2.0;
+
+	/** The decayed score at which a track starts a match */
+	public static double START_SCORE = 10;
+
+	/** The decayed score below which a match ends */
+	public static double END_SCORE = 2;
+
+	/** Tracks whose score decays below this value are forgotten */
+	private static final double FORGET_SCORE = 0.25;
+
+	/** The fingerprinter is restarted after this many samples, before the sample indexes overflow */
+	private static final int RESTART_SAMPLES = 1 << 30;
+
+	/** The index to match against */
+	private CachedIndexMap index;
+
+	/** Receives the matches */
+	private MatchListener listener;
+
+	/** The frames per second the stream is fingerprinted at */
+	private double frameRate;
+
+	/** Extracts the hash points of the stream */
+	private StreamingFingerprinter fingerprinter;
+
+	/** The number of samples processed by fingerprinters before the current one */
+	private long baseSample = 0;
+
+	/** The number of samples given to the current fingerprinter */
+	private int fingerprinterSamples = 0;
+
+	/** The decay factors of a vote by its age in spectra. Votes older than the table no longer count */
+	private double[] decay;
+
+	/** The histogram of each track, indexed by track ID. Null for tracks without recent votes */
+	private TrackHistogram[] tracks = new TrackHistogram[64];
+
+	/** The track IDs that have a histogram */
+	private int[] liveTracks = new int[64];
+
+	/** The number of tracks that have a histogram */
+	private int numberLive = 0;
+
+	/** The spectrum of the stream holding the anchor of the hash point being matched */
+	private long currentSpectrum = 0;
+
+	/** The spectrum at which tracks were last forgotten */
+	private long lastForget = 0;
+
+	/** The track of the current match, or -1 if no track is playing */
+	private int active = -1;
+
+	/**
+	 * Constructs a monitor.
+	 * @param index The index to match the stream against.
+	 * @param frameRate The frames per second of the stream.
+	 * @param listener Receives the matches.
+	 */
+	public StreamMonitor(CachedIndexMap index, double frameRate, MatchListener listener)
+	{
+		this.index = index;
+		this.frameRate = Resampler.fingerprintRate(frameRate);
+		this.listener = listener;
+		fingerprinter = new StreamingFingerprinter(this);
+		double spectraPerHalfLife = HALF_LIFE*this.frameRate/Spectrogram.SAMPLE_SIZE;
+		double factor = Math.pow(0.5, 1.0/spectraPerHalfLife);
+		decay = new double[(int)Math.ceil(spectraPerHalfLife*16)+1];
+		decay[0] = 1;
+		for(int age = 1; age < decay.length; age++){
+			decay[age] = decay[age-1]*factor;
+		}
+	}
+
+	/**
+	 * Reads a stream of PCM audio until it ends and reports the tracks playing on it.
+	 * @param in The stream, in any PCM format PcmDecoder supports.
+	 * @throws IOException If the stream cannot be read.
+	 */
+	public void monitor(AudioInputStream in) throws IOException
+	{
+		StreamingFingerprinter.readSamples(in, this);
+		finish();
+	}
+
+	/**
+	 * Adds mono samples of the stream, at the rate it is fingerprinted at, as StreamingFingerprinter.readSamples
+	 * delivers them.
+	 * @param samples The samples.
+	 * @param offset The position of the first sample inside the array.
+	 * @param length The number of samples.
+	 */
+	public void process(double[] samples, int offset, int length)
+	{
+		while(length > 0){
+			int n = Math.min(length, RESTART_SAMPLES - fingerprinterSamples);
+			fingerprinter.process(samples, offset, n);
+			fingerprinterSamples += n;
+			offset += n;
+			length -= n;
+			if(fingerprinterSamples == RESTART_SAMPLES){
+				fingerprinter.finish();
+				baseSample += fingerprinterSamples;
+				fingerprinterSamples = 0;
+				fingerprinter = new StreamingFingerprinter(this);
+			}
+		}
+		long latestSpectrum = (baseSample + fingerprinterSamples)/Spectrogram.SAMPLE_SIZE;
+		if(active >= 0 && tracks[active].getBestScore(latestSpectrum) < END_SCORE){
+			endMatch();
+		}
+	}
+
+	/**
+	 * Ends the stream, reporting the end of the current match.
+	 */
+	public void finish()
+	{
+		fingerprinter.finish();
+		if(active >= 0)endMatch();
+	}
+
+	/**
+	 * Looks up a hash point of the stream in the index.
+	 * @param hash The hash point.
+	 */
+	public void hashPoint(HashPoint hash)
+	{
+		currentSpectrum = (baseSample + hash.index)/Spectrogram.SAMPLE_SIZE;
+		index.visitDataPoints(hash.probe, this);
+		long forgetInterval = (long)(frameRate/Spectrogram.SAMPLE_SIZE)+1;
+		if(currentSpectrum - lastForget > forgetInterval){
+			forgetTracks();
+			lastForget = currentSpectrum;
+		}
+	}
+
+	/**
+	 * Votes for the time offset of a data point that shares its probe with the stream.
+	 * @param trackNo The track ID of the data point.
+	 * @param trackIndex The index location of the probe inside the track.
+	 */
+	public void visit(int trackNo, int trackIndex)
+	{
+		int bin = (int)(currentSpectrum - trackIndex/Spectrogram.SAMPLE_SIZE);
+		TrackHistogram h = histogramFor(trackNo);
+		h.vote(bin, currentSpectrum);
+		double score = h.getBestScore(currentSpectrum);
+		if(score < START_SCORE || trackNo == active)return;
+		if(active < 0){
+			startMatch(trackNo);
+		} else if(score > tracks[active].getBestScore(currentSpectrum)){
+			endMatch();
+			startMatch(trackNo);
+		}
+	}
+
+	/**
+	 * Gets the histogram of a track, creating it if the track has no recent votes.
+	 * @param trackNo The track ID.
+	 * @return The histogram.
+	 */
+	private TrackHistogram histogramFor(int trackNo)
+	{
+		if(trackNo >= tracks.length){
+			tracks = Arrays.copyOf(tracks, Math.max(trackNo+1, tracks.length*2));
+		}
+		TrackHistogram h = tracks[trackNo];
+		if(h == null){
+			h = new TrackHistogram();
+			tracks[trackNo] = h;
+			if(numberLive == liveTracks.length)liveTracks = Arrays.copyOf(liveTracks, numberLive*2);
+			liveTracks[numberLive++] = trackNo;
+		}
+		return h;
+	}
+
+	/**
+	 * Drops the histograms of the tracks whose votes have all but decayed.
+	 */
+	private void forgetTracks()
+	{
+		int kept = 0;
+		for(int i = 0; i < numberLive; i++){
+			int trackNo = liveTracks[i];
+			if(trackNo == active || tracks[trackNo].getBestScore(currentSpectrum) >= FORGET_SCORE){
+				liveTracks[kept++] = trackNo;
+			} else {
+				tracks[trackNo] = null;
+			}
+		}
+		numberLive = kept;
+	}
+
+	/**
+	 * Reports that a track started playing.
+	 * @param trackNo The track ID.
+	 */
+	private void startMatch(int trackNo)
+	{
+		active = trackNo;
+		TrackHistogram h = tracks[trackNo];
+		listener.matchStarted(new MatchEvent(new TrackID(trackNo), true, toSeconds(currentSpectrum),
+				toSeconds(currentSpectrum - h.getBestBin()), h.getBestScore(currentSpectrum)));
+	}
+
+	/**
+	 * Reports that the current track stopped playing, at the last vote for its offset.
+	 */
+	private void endMatch()
+	{
+		TrackHistogram h = tracks[active];
+		long lastVote = h.getBestLastVote();
+		listener.matchEnded(new MatchEvent(new TrackID(active), false, toSeconds(lastVote),
+				toSeconds(lastVote - h.getBestBin()), h.getBestScore(lastVote)));
+		active = -1;
+	}
+
+	/**
+	 * Converts a number of spectra to seconds.
+	 * @param spectra The number of spectra.
+	 * @return The number of seconds.
+	 */
+	private double toSeconds(long spectra)
+	{
+		return spectra*Spectrogram.SAMPLE_SIZE/frameRate;
+	}
+
+	/**
+	 * Gets the decay factor of a vote.
+	 * @param age The age of the vote in spectra.
+	 * @return The weight of the vote now.
+	 */
+	private double decayOf(long age)
+	{
+		if(age >= decay.length)return 0;
+		return decay[(int)age];
+	}
+
+	/**
+	 * The decaying offset histogram of one track. Each bin holds its score as of its last vote. All bins
+	 * decay at the same rate, so the bin with the best score stays the best until another bin overtakes it
+	 * with a new vote.
+	 */
+	private class TrackHistogram
+	{
+		/** The offset bins of the table. Empty slots hold EMPTY */
+		private int[] bins = new int[8];
+
+		/** The score of each bin as of its last vote */
+		private double[] scores = new double[8];
+
+		/** The spectrum of the last vote for each bin */
+		private long[] lastVotes = new long[8];
+
+		/** The number of bins in use */
+		private int size = 0;
+
+		/** The bin with the best score */
+		private int bestBin;
+
+		/** The score of the best bin as of its last vote */
+		private double bestScore = 0;
+
+		/** The spectrum of the last vote for the best bin */
+		private long bestLastVote;
+
+		/** Marks an empty slot in the table */
+		private static final int EMPTY = Integer.MIN_VALUE;
+
+		TrackHistogram()
+		{
+			Arrays.fill(bins, EMPTY);
+		}
+
+		/**
+		 * Adds a vote for an offset bin.
+		 * @param bin The offset bin.
+		 * @param now The spectrum of the vote.
+		 */
+		void vote(int bin, long now)
+		{
+			int slot = findSlot(bin);
+			if(bins[slot] == EMPTY){
+				if((size+1)*2 > bins.length){
+					rebuild(now);
+					slot = findSlot(bin);
+				}
+				bins[slot] = bin;
+				scores[slot] = 0;
+				lastVotes[slot] = now;
+				size++;
+			}
+			double score = scores[slot]*decayOf(now - lastVotes[slot]) + 1;
+			scores[slot] = score;
+			lastVotes[slot] = now;
+			if(bin == bestBin || score >= getBestScore(now)){
+				bestBin = bin;
+				bestScore = score;
+				bestLastVote = now;
+			}
+		}
+
+		/**
+		 * Gets the score of the best bin.
+		 * @param now The current spectrum.
+		 * @return The decayed score.
+		 */
+		double getBestScore(long now)
+		{
+			return bestScore*decayOf(now - bestLastVote);
+		}
+
+		/**
+		 * Gets the offset bin with the best score.
+		 * @return The offset between the stream and the track, in spectra.
+		 */
+		int getBestBin()
+		{
+			return bestBin;
+		}
+
+		/**
+		 * Gets the spectrum of the last vote for the best bin.
+		 * @return The spectrum.
+		 */
+		long getBestLastVote()
+		{
+			return bestLastVote;
+		}
+
+		/**
+		 * Finds the slot of the table that holds the bin, or the empty slot where it belongs.
+		 * @param bin The offset bin.
+		 * @return The slot.
+		 */
+		private int findSlot(int bin)
+		{
+			int mask = bins.length-1;
+			int slot = (bin * 0x9E3779B9) >>> 16 & mask;
+			while(bins[slot] != EMPTY && bins[slot] != bin){
+				slot = (slot+1) & mask;
+			}
+			return slot;
+		}
+
+		/**
+		 * Drops the bins whose votes have decayed, and doubles the table if it is still more than a quarter full.
+		 * @param now The current spectrum.
+		 */
+		private void rebuild(long now)
+		{
+			int[] oldBins = bins;
+			double[] oldScores = scores;
+			long[] oldLastVotes = lastVotes;
+			int live = 0;
+			for(int i = 0; i < oldBins.length; i++){
+				if(oldBins[i] != EMPTY && oldScores[i]*decayOf(now - oldLastVotes[i]) >= FORGET_SCORE)live++;
+			}
+			int length = oldBins.length;
+			if(live*4 > length)length *= 2;
+			bins = new int[length];
+			scores = new double[length];
+			lastVotes = new long[length];
+			Arrays.fill(bins, EMPTY);
+			size = 0;
+			for(int i = 0; i < oldBins.length; i++){
+				if(oldBins[i] == EMPTY || oldScores[i]*decayOf(now - oldLastVotes[i]) < FORGET_SCORE)continue;
+				int slot = findSlot(oldBins[i]);
+				bins[slot] = oldBins[i];
+				scores[slot] = oldScores[i];
+				lastVotes[slot] = oldLastVotes[i];
+				size++;
+			}
+		}
+	}
+
+	/**
+	 * Reads a file that is still being written, such as a capture in progress. At the end of the file it waits
+	 * for more data instead of ending, until it is closed.
+	 */
+	public static class FollowingInputStream extends InputStream
+	{
+		/** The file being followed */
+		private RandomAccessFile file;
+
+		/** How long to wait for more data, in milliseconds */
+		private long pollMillis;
+
+		/** Whether the stream was closed */
+		private volatile boolean closed = false;
+
+		/**
+		 * Follows a file from its start.
+		 * @param file The file.
+		 * @param pollMillis How long to wait for more data at the end of the file, in milliseconds.
+		 * @throws IOException If the file cannot be opened.
+		 */
+		public FollowingInputStream(File file, long pollMillis) throws IOException
+		{
+			this.file = new RandomAccessFile(file, "r");
+			this.pollMillis = pollMillis;
+		}
+
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n < 0 ? -1 : (b[0] & 0xff);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			while(!closed){
+				int n;
+				try{
+					n = file.read(b, off, len);
+				} catch(IOException e){
+					if(closed)return -1;//closed while reading
+					throw e;
+				}
+				if(n > 0)return n;
+				try{
+					Thread.sleep(pollMillis);
+				} catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					return -1;
+				}
+			}
+			return -1;
+		}
+
+		public void close() throws IOException
+		{
+			closed = true;
+			file.close();
+		}
+	}
+}
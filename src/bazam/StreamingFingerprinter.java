@@ -0,0 +1,289 @@
+package bazam;
+import java.io.*;
+import java.util.*;
+
+import javax.sound.sampled.*;
+
+/**
+ * Extracts hash points from samples as they arrive, without holding the whole signal or spectrogram.
+ * It produces the same hash points as a Spectrogram and a SpectrogramProbesExtractor over the same samples,
+ * but only keeps the last few spectra and the peaks that can still take part in a probe. The samples must be
+ * at the rate signals are fingerprinted at, as readSamples delivers them.
+ * <p>
+ * A spectrum's peaks are known once the NEIGHBOR_SPECTRA spectra after it have been computed, and the probes
+ * of an anchor peak are known once the peaks Probe.TIME_OFFSET spectra after it are known.
+ * @author Brook
+ *
+ */
+public class StreamingFingerprinter implements SampleSink
+{
+	/**
+	 * Receives the hash points extracted by the fingerprinter.
+	 */
+	public interface HashPointListener
+	{
+		/**
+		 * Called for every hash point, in the order of the anchor peaks.
+		 * @param hash The hash point.
+		 */
+		void hashPoint(HashPoint hash);
+	}
+
+	/** Receives the hash points */
+	private HashPointListener listener;
+
+	/** The samples of the spectrum being filled */
+	private double[] frame = new double[Spectrogram.SAMPLE_SIZE];
+
+	/** The number of samples inside the frame */
+	private int frameFill = 0;
+
+	/** The samples of a frame, interleaved with zeroes as the complex input of the transform */
+	private float[] transformInput = new float[2*Spectrogram.SAMPLE_SIZE];
+
+	/** The most recent spectra, indexed by spectrum number modulo the length */
+	private PowerSpectrum[] window = new PowerSpectrum[2*Spectrogram.NEIGHBOR_SPECTRA+1];
+
+	/** The spectra around the spectrum being finalized, in order */
+	private PowerSpectrum[] neighbors = new PowerSpectrum[2*Spectrogram.NEIGHBOR_SPECTRA+1];
+
+	/** The number of spectra computed so far */
+	private int spectraComputed = 0;
+
+	/** The number of spectra whose peaks have been extracted */
+	private int spectraFinalized = 0;
+
+	/** The peaks that can still be the anchor or the second peak of a probe, in order of time then frequency */
+	private ArrayList<Peak> peaks = new ArrayList<Peak>();
+
+	/** The position in the list of peaks of the first peak that has not been used as an anchor */
+	private int nextAnchor = 0;
+
+	/** Whether the end of the signal was reached */
+	private boolean finished = false;
+
+	/** The number of peaks kept so far */
+	private int peaksFound = 0;
+
+	/** The number of hash points extracted so far */
+	private int hashesFound = 0;
+
+	/** The time spent computing spectra, in nanoseconds */
+	private long spectrumNanos = 0;
+
+	/** The time spent picking peaks, in nanoseconds */
+	private long peaksNanos = 0;
+
+	/** The time spent pairing peaks into hash points, in nanoseconds */
+	private long hashingNanos = 0;
+
+	/**
+	 * Constructs a fingerprinter.
+	 * @param listener Receives the hash points.
+	 */
+	public StreamingFingerprinter(HashPointListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Adds samples to the signal.
+	 * @param samples The samples.
+	 * @param offset The position of the first sample inside the array.
+	 * @param length The number of samples.
+	 */
+	public void process(double[] samples, int offset, int length)
+	{
+		if(finished)throw new IllegalStateException("The signal has ended.");
+		int end = offset + length;
+		while(offset < end){
+			int n = Math.min(end - offset, frame.length - frameFill);
+			System.arraycopy(samples, offset, frame, frameFill, n);
+			frameFill += n;
+			offset += n;
+			if(frameFill == frame.length){
+				computeSpectrum();
+				frameFill = 0;
+			}
+		}
+	}
+
+	/**
+	 * Ends the signal: extracts the remaining peaks and hash points. Samples that do not fill a whole
+	 * spectrum are dropped, and so are the peaks of the last spectrum, as a Spectrogram does. The time
+	 * spent on each stage of the signal is then recorded, as one call of each stage.
+	 */
+	public void finish()
+	{
+		if(finished)return;
+		finished = true;
+		while(spectraFinalized < spectraComputed-1){
+			finalizeSpectrum(spectraFinalized);
+		}
+		generateProbes(Integer.MAX_VALUE);
+		long now = System.nanoTime();
+		Metrics.SPECTRUM.record(now - spectrumNanos, spectraComputed);
+		Metrics.PEAKS.record(now - peaksNanos, peaksFound);
+		Metrics.HASHING.record(now - hashingNanos, hashesFound);
+	}
+
+	/**
+	 * Decodes a stream of PCM audio block by block until it ends, at the rate it is fingerprinted at. Stereo
+	 * is reduced to mono by averaging the channel values, as AudioClip does.
+	 * @param in The stream, in any PCM format PcmDecoder supports.
+	 * @param sink Receives the samples, at Resampler.fingerprintRate of the rate of the stream.
+	 * @return The number of frames decoded.
+	 * @throws IOException If the stream cannot be read.
+	 */
+	public static long readSamples(AudioInputStream in, SampleSink sink) throws IOException
+	{
+		float frameRate = in.getFormat().getFrameRate();
+		if(!Resampler.needsResampling(frameRate))return new PcmDecoder(in.getFormat()).decode(in, sink);
+		Resampler resampler = new Resampler(frameRate, Resampler.fingerprintRate(frameRate), sink);
+		long frames = new PcmDecoder(in.getFormat()).decode(in, resampler);
+		resampler.flush();
+		return frames;
+	}
+
+	/**
+	 * Decodes an audio file block by block, at the rate it is fingerprinted at. WAV files are read from a
+	 * memory mapping, other files through Java Sound; either way only a block of the file is on the heap at
+	 * a time.
+	 * @param file The audio file.
+	 * @param sink Receives the samples, at Resampler.fingerprintRate of the rate of the file.
+	 * @return The number of frames decoded.
+	 * @throws IOException If the file cannot be read.
+	 * @throws UnsupportedAudioFileException If the file is not audio in a PCM format.
+	 */
+	public static long readSamples(File file, SampleSink sink) throws UnsupportedAudioFileException, IOException
+	{
+		WavFile wav;
+		try{
+			wav = WavFile.open(file);
+		} catch(UnsupportedAudioFileException e){
+			AudioInputStream in = AudioSystem.getAudioInputStream(file);
+			try{
+				return readSamples(in, sink);
+			} finally{
+				in.close();
+			}
+		}
+		float frameRate = wav.getFormat().getFrameRate();
+		if(!Resampler.needsResampling(frameRate))return wav.read(sink);
+		Resampler resampler = new Resampler(frameRate, Resampler.fingerprintRate(frameRate), sink);
+		long frames = wav.read(resampler);
+		resampler.flush();
+		return frames;
+	}
+
+	/**
+	 * Gets the number of peaks kept so far, which may take part in hash points.
+	 * @return The number of peaks.
+	 */
+	public int getPeaksFound()
+	{
+		return peaksFound;
+	}
+
+	/**
+	 * Gets the number of spectra computed so far.
+	 * @return The number of spectra.
+	 */
+	public int getSpectraComputed()
+	{
+		return spectraComputed;
+	}
+
+	/**
+	 * Computes the power spectrum of the full frame and extracts the peaks of the spectrum that now has all
+	 * of its neighbors.
+	 */
+	private void computeSpectrum()
+	{
+		long start = System.nanoTime();
+		for(int j = 0; j < frame.length; j++){
+			transformInput[j*2] = (float)frame[j];
+			transformInput[j*2+1] = 0;
+		}
+		int spectrumNumber = spectraComputed;
+		window[spectrumNumber % window.length] = new PowerSpectrum(transformInput, spectrumNumber*Spectrogram.SAMPLE_SIZE);
+		spectraComputed++;
+		spectrumNanos += System.nanoTime() - start;
+		int ready = spectrumNumber - Spectrogram.NEIGHBOR_SPECTRA;
+		if(ready >= 0){
+			finalizeSpectrum(ready);
+			generateProbes(ready - Probe.TIME_OFFSET);
+		}
+	}
+
+	/**
+	 * Keeps the local peaks of a spectrum that stand out from the neighboring spectra.
+	 * @param index The spectrum number.
+	 */
+	private void finalizeSpectrum(int index)
+	{
+		long begun = System.nanoTime();
+		int first = index - Spectrogram.NEIGHBOR_SPECTRA;
+		int start = Math.max(0, -first);
+		int end = Math.min(neighbors.length, spectraComputed - first);
+		for(int i = start; i < end; i++){
+			neighbors[i] = window[(first + i) % window.length];
+		}
+		PowerSpectrum s = neighbors[Spectrogram.NEIGHBOR_SPECTRA];
+		ArrayList<Peak> localPeaks = s.getPeaks();
+		for(int j = 0; j < localPeaks.size(); j++){
+			Peak peak = localPeaks.get(j);
+			int frequency = peak.getFrequency();
+			float power = s.getPowerAt(frequency);
+			if(Spectrogram.checkAdjacentSpectra(neighbors, start, end, Spectrogram.NEIGHBOR_SPECTRA, frequency, power)){
+				peaks.add(peak);
+				peaksFound++;
+			}
+		}
+		spectraFinalized = index+1;
+		peaksNanos += System.nanoTime() - begun;
+	}
+
+	/**
+	 * Creates the probes of every anchor peak up to the given spectrum, and forgets the peaks that can no
+	 * longer take part in a probe.
+	 * @param lastSpectrum The last spectrum whose anchor peaks are complete.
+	 */
+	private void generateProbes(int lastSpectrum)
+	{
+		long start = System.nanoTime();
+		long lastTime = (long)lastSpectrum*Spectrogram.SAMPLE_SIZE;
+		while(nextAnchor < peaks.size() && peaks.get(nextAnchor).getTime() <= lastTime){
+			createProbes(nextAnchor);
+			nextAnchor++;
+		}
+		if(nextAnchor > 1024){
+			peaks.subList(0, nextAnchor).clear();
+			nextAnchor = 0;
+		}
+		hashingNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Pairs an anchor peak with the peaks inside its target zone, as SpectrogramProbesExtractor does.
+	 * @param anchorIndex The position of the anchor peak inside the list of peaks.
+	 */
+	private void createProbes(int anchorIndex)
+	{
+		Peak anchorPeak = peaks.get(anchorIndex);
+		int anchorFrequency = anchorPeak.getFrequency();
+		int anchorTime = anchorPeak.getTime();
+		int targetTimeBound = anchorTime + Probe.TIME_OFFSET*Spectrogram.SAMPLE_SIZE;//upper bound of time
+		int targetFreqBound = anchorFrequency + Probe.FREQ_OFFSET;//upper bound of frequency
+		for(int i = anchorIndex; i < peaks.size(); i++){
+			Peak peak = peaks.get(i);
+			int otherTime = peak.getTime();
+			int otherFreq = peak.getFrequency();
+			if(otherTime > targetTimeBound)return;//we have jumped out of the target zone.
+			if(otherFreq < anchorFrequency || otherFreq > targetFreqBound || otherTime == anchorTime
+					|| otherFreq == anchorFrequency) continue;
+			hashesFound++;
+			listener.hashPoint(new HashPoint(new Probe(anchorPeak, peak), anchorTime));
+		}
+	}
+}
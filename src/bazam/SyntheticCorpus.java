@@ -0,0 +1,199 @@
+package bazam;
+import java.io.*;
+import java.util.*;
+
+import javax.sound.sampled.*;
+
+/**
+ * Generates audio that looks enough like music to be fingerprinted, and degrades excerpts of it the way a
+ * recording made through a phone would be degraded. Everything is generated from seeds, so the same seed
+ * always gives the same samples, on any machine and without any files.
+ * @author Brook
+ *
+ */
+public class SyntheticCorpus
+{
+	/** The frame rate of the synthetic audio */
+	public static final float FRAME_RATE = 22050;
+
+	/** The number of tones sounding at once */
+	private static final int VOICES = 6;
+
+	/** The length of a note, in seconds */
+	private static final double NOTE_SECONDS = 0.15;
+
+	/** The number of taps of the low-pass filter */
+	private static final int LOW_PASS_TAPS = 31;
+
+	/**
+	 * Synthesizes a track: a few tones that change pitch every note, each on its own beat, over a little noise.
+	 * @param seed Picks the notes.
+	 * @param seconds The length of the track.
+	 * @return The samples, between -1 and 1.
+	 */
+	public static double[] track(long seed, double seconds)
+	{
+		Random random = new Random(seed);
+		double[] samples = new double[(int)(seconds*FRAME_RATE)];
+		int noteLength = (int)(NOTE_SECONDS*FRAME_RATE);
+		double[] frequencies = new double[VOICES];
+		double[] phases = new double[VOICES];
+		for(int i = 0; i < samples.length; i++){
+			for(int v = 0; v < VOICES; v++){
+				if((i + v*noteLength/VOICES) % noteLength == 0 || i == 0){
+					frequencies[v] = 110*Math.pow(2, 4*random.nextDouble());//anywhere in the four octaves up from A2
+				}
+			}
+			double value = 0.02*random.nextGaussian();
+			for(int v = 0; v < VOICES; v++){
+				phases[v] += 2*Math.PI*frequencies[v]/FRAME_RATE;
+				value += Math.sin(phases[v])/(v+2);
+			}
+			samples[i] = clip(value);
+		}
+		return samples;
+	}
+
+	/**
+	 * Cuts an excerpt out of a track.
+	 * @param samples The track.
+	 * @param start The first sample of the excerpt.
+	 * @param length The number of samples of the excerpt.
+	 * @return The excerpt.
+	 */
+	public static double[] excerpt(double[] samples, int start, int length)
+	{
+		return Arrays.copyOfRange(samples, start, start+length);
+	}
+
+	/**
+	 * Adds white noise, in place.
+	 * @param samples The samples.
+	 * @param snrDecibels The ratio of the power of the samples to the power of the noise, in decibels.
+	 * @param random The source of the noise.
+	 */
+	public static void addNoise(double[] samples, double snrDecibels, Random random)
+	{
+		double power = 0;
+		for(int i = 0; i < samples.length; i++){
+			power += samples[i]*samples[i];
+		}
+		double rms = Math.sqrt(power/Math.max(1, samples.length));
+		double sigma = rms/Math.pow(10, snrDecibels/20);
+		for(int i = 0; i < samples.length; i++){
+			samples[i] = clip(samples[i] + sigma*random.nextGaussian());
+		}
+	}
+
+	/**
+	 * Changes the volume, in place. Samples pushed past full scale are clipped, as a recorder would.
+	 * @param samples The samples.
+	 * @param decibels The change of volume, in decibels.
+	 */
+	public static void applyGain(double[] samples, double decibels)
+	{
+		double gain = Math.pow(10, decibels/20);
+		for(int i = 0; i < samples.length; i++){
+			samples[i] = clip(samples[i]*gain);
+		}
+	}
+
+	/**
+	 * Imitates a low-bitrate codec: removes the frequencies above a cutoff with a windowed-sinc filter, then
+	 * requantizes the samples coarsely.
+	 * @param samples The samples.
+	 * @param cutoffHz The highest frequency kept.
+	 * @param bits The number of bits each sample is requantized to.
+	 * @return The filtered samples.
+	 */
+	public static double[] lowBitrate(double[] samples, double cutoffHz, int bits)
+	{
+		double[] taps = new double[LOW_PASS_TAPS];
+		int middle = LOW_PASS_TAPS/2;
+		double fc = cutoffHz/FRAME_RATE;
+		double sum = 0;
+		for(int k = 0; k < LOW_PASS_TAPS; k++){
+			int n = k - middle;
+			double sinc = n == 0 ? 2*fc : Math.sin(2*Math.PI*fc*n)/(Math.PI*n);
+			double window = 0.54 - 0.46*Math.cos(2*Math.PI*k/(LOW_PASS_TAPS-1));//Hamming
+			taps[k] = sinc*window;
+			sum += taps[k];
+		}
+		double levels = (1 << (bits-1)) - 1;
+		double[] filtered = new double[samples.length];
+		for(int i = 0; i < samples.length; i++){
+			double value = 0;
+			for(int k = 0; k < LOW_PASS_TAPS; k++){
+				int j = i + k - middle;
+				if(j >= 0 && j < samples.length)value += taps[k]*samples[j];
+			}
+			filtered[i] = clip(Math.round(value/sum*levels)/levels);
+		}
+		return filtered;
+	}
+
+	/**
+	 * Makes a signal out of samples, read the way the application reads a 16-bit mono file.
+	 * @param samples The samples, between -1 and 1.
+	 * @param name The name of the signal.
+	 * @return The signal.
+	 */
+	public static Signal toSignal(double[] samples, String name)
+	{
+		byte[] pcm = toPcm(samples);
+		AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(pcm), getFormat(), samples.length);
+		try{
+			return new Signal(AudioClip.fromStream(in, name), name);
+		} catch(IOException e){
+			throw new IllegalStateException(e);//the stream is in memory
+		}
+	}
+
+	/**
+	 * Writes samples to a WAV file.
+	 * @param samples The samples, between -1 and 1.
+	 * @param file The file to write.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public static void writeWav(double[] samples, File file) throws IOException
+	{
+		byte[] pcm = toPcm(samples);
+		AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(pcm), getFormat(), samples.length);
+		AudioSystem.write(in, AudioFileFormat.Type.WAVE, file);
+	}
+
+	/**
+	 * Encodes samples as 16-bit little-endian PCM.
+	 * @param samples The samples, between -1 and 1.
+	 * @return The PCM bytes.
+	 */
+	public static byte[] toPcm(double[] samples)
+	{
+		byte[] pcm = new byte[samples.length*2];
+		for(int i = 0; i < samples.length; i++){
+			int s = (int)Math.round(clip(samples[i])*32767);
+			pcm[2*i] = (byte)s;
+			pcm[2*i+1] = (byte)(s >> 8);
+		}
+		return pcm;
+	}
+
+	/**
+	 * Gets the format of the synthetic audio.
+	 * @return 16-bit signed little-endian mono PCM at FRAME_RATE.
+	 */
+	public static AudioFormat getFormat()
+	{
+		return new AudioFormat(FRAME_RATE, 16, 1, true, false);
+	}
+
+	/**
+	 * Keeps a sample inside full scale.
+	 * @param value The sample.
+	 * @return The sample, between -1 and 1.
+	 */
+	private static double clip(double value)
+	{
+		return Math.max(-1, Math.min(1, value));
+	}
+}
@@ -1,8 +1,8 @@
 package bazam;
-import java.awt.Dimension;
 import java.io.*;
 import java.util.*;
-import javax.swing.*;
+import java.util.concurrent.ExecutionException;
+import javax.sound.sampled.*;
 /**
  * Contains the underlying index of the tracks the user loads. Used when there is an attempt to match a track.
  * It contains both a TrackMap and CachedIndexMap.
@@ -22,12 +22,61 @@ public class TrackIndex
 	/** Iterates over all the track ID's */
 	private Iterator<TrackID>trackIDIterator;
 	
+	/** The default similarity above which a new track is linked as an alias of an existing track */
+	public static double DUPLICATE_SIMILARITY = 0.5;
+	
+	/** The fraction of removed data points in the index at which the index is compacted */
+	public static double COMPACTION_THRESHOLD = 0.25;
+	
+	/** Whether new tracks are checked against the index for duplicates before being indexed */
+	private boolean detectDuplicates = false;
+	
+	/** The similarity above which a new track is considered a duplicate */
+	private double duplicateSimilarity = DUPLICATE_SIMILARITY;
+	
+	/** Identifies a saved track index */
+	private static final int MAGIC = 0x42544932;//"BTI2"
+	
+	/** Identifies a track index saved before signals were resampled, which fingerprinted every file at its own rate */
+	private static final int MAGIC_NATIVE_RATE = 0x42544931;//"BTI1"
+	
+	/**
+	 * Constructs an empty trackIndex.
+	 */
+	public TrackIndex()
+	{
+		this(new TrackMap(), new CachedIndexMap());
+	}
+	
+	/**
+	 * Constructs a trackIndex from its maps.
+	 * @param trackMap The map of the track id's to their track data.
+	 * @param cachedIndexMap The map of probes to their data points.
+	 */
+	private TrackIndex(TrackMap trackMap, CachedIndexMap cachedIndexMap)
+	{
+		this.trackMap = trackMap;
+		this.cachedIndexMap = cachedIndexMap;
+		trackIDIterator = trackMap.getTrackIDIterator();
+	}
+	
 	/**
 	 * Constructs a trackIndex.
 	 * @param baseDir The file or folder name.
 	 */
 	public TrackIndex(File baseDir)
 	{		
+		this(baseDir, false);
+	}
+	
+	/**
+	 * Constructs a trackIndex, optionally linking duplicate tracks as aliases while indexing.
+	 * @param baseDir The file or folder name.
+	 * @param detectDuplicates True to check new tracks for duplicates of indexed tracks.
+	 */
+	public TrackIndex(File baseDir, boolean detectDuplicates)
+	{		
+		this.detectDuplicates = detectDuplicates;
 		baseDirectory = baseDir;		
 		trackMap = new TrackMap(baseDir);//create the map of ID to TrackInfo
 		trackIDIterator = trackMap.getTrackIDIterator();//get the iterator
@@ -53,55 +102,376 @@ public class TrackIndex
 		
 	}
 	/**
-	 * Adds a track to the trackIndex.
+	 * Adds a track to the trackIndex. If duplicate detection is turned on and the track is a near-duplicate
+	 * of a track already in the index, it is linked as an alias of that track instead of being indexed again.
 	 * @param file The file to be indexed.
+	 * @return The TrackID of the added track, or null if the track could not be indexed.
 	 */
-	public void addTrack(File file)
+	public TrackID addTrack(File file)
 	{
-		if(!trackMap.containsTrack(file)){//if track map does not have the current file.
-			trackMap.addTrack(file);
-		}
 		try{
-			TrackID id = new TrackID(TrackMap.trackNo-1);
-			//System.out.println(id.toString());
-			int numberIndexed = cachedIndexMap.indexFile(file,id);			
-			TrackInfo info = trackMap.getTrackInfo(id);
-			info.setNumberHashPoints(numberIndexed);
-			JOptionPane.showMessageDialog(null, "Indexed " + file.getName(), "Success", JOptionPane.PLAIN_MESSAGE);
+			return indexTrack(file);
 		} catch(Exception e){
 			e.printStackTrace();
 		}
+		return null;
+	}
+	
+	/**
+	 * Adds a track to the trackIndex as in addTrack, reporting why the track could not be indexed.
+	 * @param file The file to be indexed.
+	 * @return The TrackID of the added track.
+	 * @throws IOException Problem reading the audio file.
+	 * @throws UnsupportedAudioFileException The audio file type is not supported.
+	 */
+	public TrackID indexTrack(File file) throws UnsupportedAudioFileException, IOException
+	{
+		FlightEvents events = FlightEvents.get();
+		Object event = events.beginIndex();
+		long start = System.nanoTime();
+		Fingerprint fingerprint = new Fingerprint();
+		long samples = StreamingFingerprinter.readSamples(file, fingerprint);
+		fingerprint.finish();
+		ArrayList<HashPoint> hashPoints = fingerprint.hashPoints;
+		long fingerprinted = System.nanoTime();
+		long decodeNanos = fingerprinted - start - fingerprint.nanos;
+		TrackID id = trackMap.getTrackID(file);
+		if(id == null){//if track map does not have the current file.
+			id = trackMap.addTrack(file);
+		}
+		trackMap.setDuration(id, getDuration(file));
+		if(detectDuplicates){
+			TrackID original = findDuplicate(hashPoints, id);
+			if(original != null){
+				trackMap.setAliasOf(id, original);
+				trackMap.setNumberHashPoints(id, hashPoints.size());
+				events.commitIndex(event, file, id.getIntID(), samples, fingerprint.fingerprinter.getPeaksFound(),
+						hashPoints.size(), decodeNanos, fingerprint.nanos, System.nanoTime() - fingerprinted);
+				return id;
+			}
+		}
+		int numberIndexed = cachedIndexMap.indexHashPoints(hashPoints,id);			
+		trackMap.setNumberHashPoints(id, numberIndexed);
+		events.commitIndex(event, file, id.getIntID(), samples, fingerprint.fingerprinter.getPeaksFound(),
+				hashPoints.size(), decodeNanos, fingerprint.nanos, System.nanoTime() - fingerprinted);
+		return id;
+	}
+	
+	/**
+	 * Fingerprints the samples of a track as they are decoded, and keeps the time spent fingerprinting apart
+	 * from the time spent decoding.
+	 */
+	private static class Fingerprint implements SampleSink, StreamingFingerprinter.HashPointListener
+	{
+		/** The hash points of the track */
+		ArrayList<HashPoint> hashPoints = new ArrayList<HashPoint>();
+		
+		/** Extracts the hash points */
+		StreamingFingerprinter fingerprinter = new StreamingFingerprinter(this);
+		
+		/** The time spent fingerprinting, in nanoseconds */
+		long nanos = 0;
+		
+		public void process(double[] samples, int offset, int length)
+		{
+			long start = System.nanoTime();
+			fingerprinter.process(samples, offset, length);
+			nanos += System.nanoTime() - start;
+		}
+		
+		public void hashPoint(HashPoint hash)
+		{
+			hashPoints.add(hash);
+		}
+		
+		/**
+		 * Extracts the hash points of the end of the track.
+		 */
+		void finish()
+		{
+			long start = System.nanoTime();
+			fingerprinter.finish();
+			nanos += System.nanoTime() - start;
+		}
+	}
+	
+	/**
+	 * Reads the length of an audio file from its header.
+	 * @param file The audio file.
+	 * @return The length in seconds, or 0 if the file does not state its length.
+	 */
+	private static double getDuration(File file)
+	{
+		try{
+			AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(file);
+			long frames = fileFormat.getFrameLength();
+			float frameRate = fileFormat.getFormat().getFrameRate();
+			if(frames == AudioSystem.NOT_SPECIFIED || frameRate <= 0)return 0;
+			return frames/frameRate;
+		} catch(Exception e){
+			return 0;
+		}
+	}
+	
+	/**
+	 * Removes a track from the index. If tracks were linked to it as aliases, the first of them that can 
+	 * still be read is indexed in its place and the others are linked to that one, so removing a track 
+	 * never takes its duplicates with it.
+	 * The data points of the track are only marked as deleted; the index is compacted once the removed 
+	 * data points exceed the COMPACTION_THRESHOLD fraction of the index.
+	 * @param id The TrackID of the track to be removed.
+	 * @return True if the track was in the index, false otherwise.
+	 * @throws IllegalStateException If the track has aliases and none of them could be indexed in its place;
+	 * the index is left unchanged.
+	 */
+	public boolean removeTrack(TrackID id)
+	{
+		TrackInfo info = trackMap.getTrackInfo(id);
+		if(info == null)return false;
+		if(!info.isAlias()){
+			ArrayList<TrackID> aliases = trackMap.getAliasesOf(id);
+			if(!aliases.isEmpty())promoteAlias(id, aliases);
+			cachedIndexMap.removeTrack(id);
+		}
+		trackMap.removeTrack(id);
+		if(cachedIndexMap.getDeletedFraction() > COMPACTION_THRESHOLD){
+			cachedIndexMap.compact();
+		}
+		return true;
+	}
+	
+	/**
+	 * Indexes the first readable alias of a track that is being removed, and links the other aliases to it.
+	 * @param id The TrackID of the track being removed.
+	 * @param aliases The aliases of the track.
+	 * @throws IllegalStateException If none of the aliases could be read.
+	 */
+	private void promoteAlias(TrackID id, ArrayList<TrackID> aliases)
+	{
+		Exception failure = null;
+		for(TrackID alias : aliases){
+			ArrayList<HashPoint> hashPoints;
+			try{
+				hashPoints = fingerprint(new File(trackMap.getPath(alias.getIntID())));
+			} catch(UnsupportedAudioFileException e){
+				failure = e;
+				continue;
+			} catch(IOException e){
+				failure = e;
+				continue;
+			}
+			int numberIndexed = cachedIndexMap.indexHashPoints(hashPoints, alias);
+			trackMap.setAliasOf(alias, null);
+			trackMap.setNumberHashPoints(alias, numberIndexed);
+			for(TrackID other : aliases){
+				if(!other.equals(alias))trackMap.setAliasOf(other, alias);
+			}
+			return;
+		}
+		throw new IllegalStateException("Track " + id.getIntID() + " cannot be removed: none of its " + aliases.size()
+				+ " aliases could be indexed in its place (" + failure.getMessage() + ").", failure);
+	}
+	
+	/**
+	 * Extracts the hash points of an audio file.
+	 * @param file The audio file.
+	 * @return The hash points.
+	 * @throws IOException Problem reading the audio file.
+	 * @throws UnsupportedAudioFileException The audio file type is not supported.
+	 */
+	private static ArrayList<HashPoint> fingerprint(File file) throws UnsupportedAudioFileException, IOException
+	{
+		Fingerprint fingerprint = new Fingerprint();
+		StreamingFingerprinter.readSamples(file, fingerprint);
+		fingerprint.finish();
+		return fingerprint.hashPoints;
+	}
+	
+	/**
+	 * Replaces a track in the index with a new file, such as a re-mastered version of the track.
+	 * The old track is removed as in removeTrack and the new file is indexed under a new TrackID.
+	 * @param id The TrackID of the track to be replaced.
+	 * @param file The file that replaces the track.
+	 * @return The TrackID of the new track, or null if it could not be indexed.
+	 */
+	public TrackID replaceTrack(TrackID id, File file)
+	{
+		removeTrack(id);
+		return addTrack(file);
+	}
+	
+	/**
+	 * Physically removes the data points of all removed tracks from the index.
+	 */
+	public void compact()
+	{
+		cachedIndexMap.compact();
+	}
+	
+	/**
+	 * Queries the index with the hash points of a new track and finds the indexed track it duplicates.
+	 * The similarity with a track is the number of hashes matching at the best time offset, divided by the 
+	 * hash count of the longer of the two tracks, so an excerpt of a track is not taken for a copy of it.
+	 * @param hashPoints The hash points of the new track.
+	 * @param id The TrackID of the new track, which is never reported as its own duplicate.
+	 * @return The TrackID of the most similar indexed track if it exceeds the duplicate similarity, else null.
+	 */
+	private TrackID findDuplicate(ArrayList<HashPoint> hashPoints, TrackID id)
+	{
+		if(hashPoints.isEmpty())return null;
+		MatchResults results = cachedIndexMap.query(hashPoints, id.toString());
+		TrackID bestID = null;
+		double bestSimilarity = 0;
+		for(Iterator<TrackID>it = results.getContentsIterator();it.hasNext();){
+			TrackID otherID = it.next();
+			if(otherID.equals(id))continue;
+			MaxMatch maxMatch = results.getHistogramAt(otherID).getMaxMatch();
+			int otherHashPoints = trackMap.getNumberHashPoints(otherID.getIntID());
+			double similarity = (double)maxMatch.numberOfMatches/(double)Math.max(hashPoints.size(), otherHashPoints);
+			if(similarity > bestSimilarity){
+				bestSimilarity = similarity;
+				bestID = otherID;
+			}
+		}
+		if(bestSimilarity >= duplicateSimilarity)return bestID;
+		return null;
+	}
+	
+	/**
+	 * Turns checking new tracks for duplicates of indexed tracks on or off.
+	 * @param detectDuplicates True to link duplicates as aliases, false to index every track.
+	 */
+	public void setDuplicateDetection(boolean detectDuplicates)
+	{
+		this.detectDuplicates = detectDuplicates;
+	}
+	
+	/**
+	 * Sets the similarity (between 0 and 1) at which a new track is considered a duplicate.
+	 * @param similarity The fraction of hashes that must match at a single time offset.
+	 */
+	public void setDuplicateSimilarity(double similarity)
+	{
+		duplicateSimilarity = similarity;
 	}
 	
 	/**
 	 * Adds a folder to the track index object.
 	 * @param folder The folder to be indexed
+	 * @return The number of tracks that were indexed.
 	 */
-	public void addFolder(File folder)
+	public int addFolder(File folder)
 	{
 		File[] files = folder.listFiles(new TrackMap.AudioFileFilter());		
+		int indexed = 0;
 		for(int i=0; i<files.length; i++){
 			File f = files[i];
-			addTrack(f);
-		}
-		if(files.length == 0){
-			JOptionPane.showMessageDialog(null, "The folder -" + 
-					folder.getName() + "-\nhas no tracks.");
-		} else {
-			JOptionPane.showMessageDialog(null, "The folder -" + 
-					folder.getName() + "-\nwas successfully indexed.");
+			if(addTrack(f) != null)indexed++;
 		}
+		return indexed;
 	}
 	
 	/**
 	 * Tries to match a signal against the index. It will not be added to the index.
-	 * Displays the results on a new JFrame.
 	 * @param s The signal to query.
+	 * @return The results of the match.
 	 */
-	public void matchSignal(Signal s)
+	public MatchResults matchSignal(Signal s)
 	{
-		MatchResults results = cachedIndexMap.query(s);
-		MatchResultsFrame matchFrame = new MatchResultsFrame(results, trackMap);		
+		return cachedIndexMap.query(s);
+	}
+	
+	/**
+	 * Matches many signals against the index without displaying anything.
+	 * @param signals The signals to query.
+	 * @return The results of each signal, in the same order as the signals.
+	 * @throws ExecutionException If a signal could not be processed.
+	 */
+	public ArrayList<MatchResults> matchBatch(List<Signal> signals) throws ExecutionException
+	{
+		return cachedIndexMap.queryBatch(signals);
+	}
+	
+	/**
+	 * Writes the index to a file, so it can be loaded without reading the audio files again.
+	 * The probe settings and the canonical rate are saved with the index, since queries must use the same settings.
+	 * @param file The file to write to.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void save(File file) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(Probe.TIME_OFFSET);
+			out.writeInt(Probe.FREQ_OFFSET);
+			out.writeInt((int)Math.round(Resampler.CANONICAL_RATE));
+			trackMap.writeTo(out);
+			cachedIndexMap.writeTo(out);
+		} finally{
+			out.close();
+		}
+	}
+	
+	/**
+	 * Reads an index that was written with save, and applies its probe settings and canonical rate.
+	 * @param file The file to read from.
+	 * @return The index.
+	 * @throws IOException If the file cannot be read or does not hold an index.
+	 */
+	public static TrackIndex load(File file) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try{
+			int magic = in.readInt();
+			if(magic != MAGIC && magic != MAGIC_NATIVE_RATE)throw new IOException("Not a track index: " + file);
+			Probe.TIME_OFFSET = in.readInt();
+			Probe.FREQ_OFFSET = in.readInt();
+			Resampler.CANONICAL_RATE = magic == MAGIC ? in.readInt() : 0;
+			TrackMap trackMap = TrackMap.readFrom(in);
+			CachedIndexMap cachedIndexMap = CachedIndexMap.readFrom(in);
+			return new TrackIndex(trackMap, cachedIndexMap);
+		} finally{
+			in.close();
+		}
+	}
+	
+	/**
+	 * Gets the trackID of an indexed file.
+	 * @param file The file.
+	 * @return The TrackID, or null if the file is not in the index.
+	 */
+	public TrackID getTrackID(File file)
+	{
+		return trackMap.getTrackID(file);
+	}
+	
+	/**
+	 * Gets the map of the track id's to their track data.
+	 * @return The track map.
+	 */
+	public TrackMap getTrackMap()
+	{
+		return trackMap;
+	}
+	
+	/**
+	 * Gets the map of probes to their data points.
+	 * @return The cached index map.
+	 */
+	public CachedIndexMap getCachedIndexMap()
+	{
+		return cachedIndexMap;
+	}
+	
+	/**
+	 * Walks the index and reports its size and shape, for capacity planning.
+	 * @param hottest The number of hottest hashes to report.
+	 * @return The statistics.
+	 */
+	public IndexStatistics getStatistics(int hottest)
+	{
+		return new IndexStatistics(trackMap, cachedIndexMap, hottest);
 	}
 	
 	/**
@@ -131,6 +501,19 @@ public class TrackIndex
 		return trackMap.getNumberOfTracks();
 	}
 	
+	/**
+	 * Gets the number of tracks in the index that have hash points, leaving out the files that could not be indexed.
+	 * @return The number of tracks with hash points.
+	 */
+	public int getNumberOfIndexedTracks()
+	{
+		int indexed = 0;
+		for(Iterator<TrackID> it = trackMap.getTrackIDIterator(); it.hasNext();){
+			if(trackMap.getNumberHashPoints(it.next().getIntID()) > 0)indexed++;
+		}
+		return indexed;
+	}
+	
 	/**
 	 * Gets the base directory of the index.
 	 * @return The file base directory.
@@ -18,6 +18,12 @@ public class TrackInfo implements java.io.Serializable
 	/** Number of hash points for the particular id */
 	public int numberHashPoints;
 	
+	/** The length of the track in seconds */
+	private double duration;
+	
+	/** The track this one duplicates, or null if the track was indexed on its own */
+	private TrackID aliasOf;
+	
 	
 	/**
 	 * Constructs a trackInfo object.
@@ -66,6 +72,52 @@ public class TrackInfo implements java.io.Serializable
 		return numberHashPoints;
 	}
 	
+	/**
+	 * Sets the length of the track.
+	 * @param seconds The length in seconds.
+	 */
+	public void setDuration(double seconds)
+	{
+		duration = seconds;
+	}
+	
+	/**
+	 * Gets the length of the track.
+	 * @return The length in seconds.
+	 */
+	public double getDuration()
+	{
+		return duration;
+	}
+	
+	/**
+	 * Links this track as an alias of an already indexed track. An alias has no hash points 
+	 * of its own in the index; matches are reported against the original track.
+	 * @param original The track that this track duplicates.
+	 */
+	public void setAliasOf(TrackID original)
+	{
+		aliasOf = original;
+	}
+	
+	/**
+	 * Gets the track that this track is an alias of.
+	 * @return The original track, or null if this track is not an alias.
+	 */
+	public TrackID getAliasOf()
+	{
+		return aliasOf;
+	}
+	
+	/**
+	 * Checks whether this track was linked to an existing track instead of being indexed.
+	 * @return True if the track is an alias, false otherwise.
+	 */
+	public boolean isAlias()
+	{
+		return aliasOf != null;
+	}
+	
 	/**
 	 * Tests for equality of two TrackInfo objects.
 	 */
@@ -84,6 +136,9 @@ public class TrackInfo implements java.io.Serializable
 	 */
 	public String toString()
 	{
+		if(isAlias()){
+			return("Name: "  + description + " / Alias of track: " + aliasOf.getIntID());
+		}
 		return("Name: "  + description + " / Number Hash Points: " + numberHashPoints);		
 	}
 }
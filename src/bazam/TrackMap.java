@@ -9,20 +9,70 @@ import javax.sound.sampled.AudioSystem;
 /**
  * Maps integer values to actual track names. It is used every time except when the user
  * decides to try to match a track.
+ * <p>
+ * Track ID's are allocated densely by each map, starting at 0, so the ID of a track is also its slot
+ * in the columns holding the track data. Paths are kept in a single character pool and looked up
+ * through an open addressing hash table of track ID's.
  * @author Brook
  *
  */
-public class TrackMap 
+public class TrackMap
 {
-	/** Maps an track ID to track name */
-	private Map<TrackID,TrackInfo>trackMap=new HashMap<TrackID,TrackInfo>();
-	
 	/** The directory at which the tracks are located */
 	private File directoryLocated;
-	
-	/** The track number that will keep track of the index 	 */
-	public static int trackNo = 0;	
-	
+
+	/** The track number that will be given to the next track added to the map */
+	private int nextTrackNo = 0;
+
+	/** The number of tracks inside the map, not counting removed tracks */
+	private int numberOfTracks = 0;
+
+	/** The characters of the paths of all the tracks, one after the other */
+	private char[] pathChars = new char[1024];
+
+	/** The number of characters used inside the path pool */
+	private int pathCharsUsed = 0;
+
+	/** The offset of each track's path inside the path pool. Track i's path ends at the offset of track i+1 */
+	private int[] pathOffsets = new int[INITIAL_CAPACITY+1];
+
+	/** The number of hash points extracted from each track */
+	private int[] hashCounts = new int[INITIAL_CAPACITY];
+
+	/** The length of each track in seconds */
+	private float[] durations = new float[INITIAL_CAPACITY];
+
+	/** The track ID each track is an alias of, or NO_TRACK if it was indexed on its own */
+	private int[] aliasOf = new int[INITIAL_CAPACITY];
+
+	/** The tracks that have not been removed from the map */
+	private BitSet present = new BitSet();
+
+	/** Open addressing table from path hash to track ID. Empty slots hold NO_TRACK, slots of removed tracks hold REMOVED */
+	private int[] pathTable = newPathTable(INITIAL_CAPACITY*2);
+
+	/** The number of slots of the path table in use, including slots of removed tracks */
+	private int pathTableUsed = 0;
+
+	/** The number of tracks the columns are first created for */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Marks an empty slot in the path table, or a track that is not an alias */
+	private static final int NO_TRACK = -1;
+
+	/** Marks a slot in the path table that belonged to a removed track */
+	private static final int REMOVED = -2;
+
+	/** Identifies a serialized track map */
+	private static final int MAGIC = 0x42544D31;//"BTM1"
+
+	/**
+	 * Constructs an empty trackMap.
+	 */
+	public TrackMap()
+	{
+	}
+
 	/**
 	 * Constructs a trackMap of the available audio files in supported formats
 	 * @param baseDirectory The base directory (folder) from which the files will be indexed.
@@ -31,69 +81,368 @@ public class TrackMap
 	{
 		directoryLocated = baseDirectory;
 		if(baseDirectory.isDirectory()){
-			addFolder(baseDirectory);	
+			addFolder(baseDirectory);
 		} else{
 			addTrack(baseDirectory);
 		}
 	}
-	
+
 	/**
 	 * Adds all the tracks inside the given file or folder into the map.
 	 * @param baseDirectory The directory of tracks to be mapped.
 	 */
 	public void addFolder(File baseDirectory)
-	{		
+	{
 		File[] files = baseDirectory.listFiles(new AudioFileFilter());
 		//Add the files to the map.
 		for(int i=0; i<files.length; i++){
 			File f = files[i];
-			addTrack(f);
-		}				
+			if(!containsTrack(f))addTrack(f);
+		}
 	}
-	
-	/** 
+
+	/**
 	 * Adds a new track to the track map.
 	 * @param file The file to be added to the track map.
+	 * @return The TrackID assigned to the file.
+	 */
+	public TrackID addTrack(File file)
+	{
+		return new TrackID(addPath(file.getAbsolutePath()));
+	}
+
+	/**
+	 * Allocates the next track ID for a path and stores the path in the columns.
+	 * @param path The path of the track.
+	 * @return The track ID allocated.
+	 */
+	private int addPath(String path)
+	{
+		int trackNo = nextTrackNo++;//this ensures unique TrackID
+		ensureCapacity(trackNo+1);
+		if(pathCharsUsed + path.length() > pathChars.length){
+			pathChars = Arrays.copyOf(pathChars, Math.max(pathCharsUsed + path.length(), pathChars.length*2));
+		}
+		path.getChars(0, path.length(), pathChars, pathCharsUsed);
+		pathOffsets[trackNo] = pathCharsUsed;
+		pathCharsUsed += path.length();
+		pathOffsets[trackNo+1] = pathCharsUsed;
+		hashCounts[trackNo] = 0;
+		durations[trackNo] = 0;
+		aliasOf[trackNo] = NO_TRACK;
+		present.set(trackNo);
+		numberOfTracks++;
+		insertPath(path.hashCode(), trackNo);
+		return trackNo;
+	}
+
+	/**
+	 * Grows the columns so that they hold at least the given number of tracks.
+	 * @param capacity The number of tracks.
+	 */
+	private void ensureCapacity(int capacity)
+	{
+		if(capacity <= hashCounts.length)return;
+		int newCapacity = Math.max(capacity, hashCounts.length*2);
+		pathOffsets = Arrays.copyOf(pathOffsets, newCapacity+1);
+		hashCounts = Arrays.copyOf(hashCounts, newCapacity);
+		durations = Arrays.copyOf(durations, newCapacity);
+		aliasOf = Arrays.copyOf(aliasOf, newCapacity);
+	}
+
+	/**
+	 * Creates an empty path table.
+	 * @param size The number of slots, a power of two.
+	 * @return The table.
+	 */
+	private static int[] newPathTable(int size)
+	{
+		int[] table = new int[size];
+		Arrays.fill(table, NO_TRACK);
+		return table;
+	}
+
+	/**
+	 * Places a track into the path table, growing the table when it is more than half full.
+	 * @param hash The hash code of the path of the track.
+	 * @param trackNo The track ID.
+	 */
+	private void insertPath(int hash, int trackNo)
+	{
+		if((pathTableUsed+1)*2 > pathTable.length){
+			rehash(Math.max(pathTable.length, Integer.highestOneBit(Math.max(numberOfTracks, 1))*4));
+		}
+		int mask = pathTable.length-1;
+		int slot = mix(hash) & mask;
+		while(pathTable[slot] != NO_TRACK){
+			slot = (slot+1) & mask;
+		}
+		pathTable[slot] = trackNo;
+		pathTableUsed++;
+	}
+
+	/**
+	 * Rebuilds the path table with the given number of slots, dropping the slots of removed tracks.
+	 * @param size The number of slots, a power of two.
 	 */
-	public void addTrack(File file)
+	private void rehash(int size)
 	{
-		String fileName = file.getName();
-		TrackID id = new TrackID(trackNo++);//this ensures unique TrackID
-		TrackInfo info = new TrackInfo(id,fileName);
-		trackMap.put(id,info);		
-		
-		//System.out.println(id.toString() + " " + info.toString());//TEST PRINT
+		int[] oldTable = pathTable;
+		pathTable = newPathTable(size);
+		pathTableUsed = 0;
+		int mask = size-1;
+		for(int i = 0; i < oldTable.length; i++){
+			int trackNo = oldTable[i];
+			if(trackNo < 0)continue;
+			int slot = mix(pathHashCode(trackNo)) & mask;
+			while(pathTable[slot] != NO_TRACK){
+				slot = (slot+1) & mask;
+			}
+			pathTable[slot] = trackNo;
+			pathTableUsed++;
+		}
 	}
-	
+
+	/**
+	 * Spreads the bits of a hash code so that paths that differ only at the end land in different slots.
+	 * @param hash The hash code.
+	 * @return The mixed hash code.
+	 */
+	private static int mix(int hash)
+	{
+		hash ^= (hash >>> 16);
+		hash *= 0x85ebca6b;
+		hash ^= (hash >>> 13);
+		return hash;
+	}
+
+	/**
+	 * Computes the hash code of the path of a track, the same way String.hashCode does.
+	 * @param trackNo The track ID.
+	 * @return The hash code of the path.
+	 */
+	private int pathHashCode(int trackNo)
+	{
+		int hash = 0;
+		for(int i = pathOffsets[trackNo]; i < pathOffsets[trackNo+1]; i++){
+			hash = 31*hash + pathChars[i];
+		}
+		return hash;
+	}
+
+	/**
+	 * Finds the slot of the path table that holds the given path.
+	 * @param path The path to look for.
+	 * @return The slot, or -1 if the path is not in the map.
+	 */
+	private int findSlot(String path)
+	{
+		int mask = pathTable.length-1;
+		int slot = mix(path.hashCode()) & mask;
+		int trackNo;
+		while((trackNo = pathTable[slot]) != NO_TRACK){
+			if(trackNo >= 0 && pathEquals(trackNo, path))return slot;
+			slot = (slot+1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares the path of a track against a path.
+	 * @param trackNo The track ID.
+	 * @param path The path to compare with.
+	 * @return True if they are the same path.
+	 */
+	private boolean pathEquals(int trackNo, String path)
+	{
+		int offset = pathOffsets[trackNo];
+		if(pathOffsets[trackNo+1] - offset != path.length())return false;
+		for(int i = 0; i < path.length(); i++){
+			if(pathChars[offset+i] != path.charAt(i))return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a track from the track map. The ID of a removed track is never given to another track.
+	 * @param id The TrackID of the track to be removed.
+	 * @return The TrackInfo of the removed track, or null if it was not in the map.
+	 */
+	public TrackInfo removeTrack(TrackID id)
+	{
+		TrackInfo info = getTrackInfo(id);
+		if(info == null)return null;
+		int trackNo = id.getIntID();
+		int slot = findSlot(getPath(trackNo));
+		if(slot >= 0)pathTable[slot] = REMOVED;
+		present.clear(trackNo);
+		numberOfTracks--;
+		return info;
+	}
+
 	/**
 	 * Gets the number of tracks mapped in the index.
 	 * @return Number of tracks inside.
 	 */
 	public int getNumberOfTracks()
 	{
-		return trackMap.size();
+		return numberOfTracks;
 	}
-	
+
+	/**
+	 * Gets the number of track ID's that were allocated, including those of removed tracks.
+	 * Every track ID in the map is less than this value.
+	 * @return The number of track ID's allocated.
+	 */
+	public int getTrackIDLimit()
+	{
+		return nextTrackNo;
+	}
+
 	/**
 	 * Gets an iterator that goes through all the trackID's
 	 * @return An iterator.
 	 */
 	public Iterator<TrackID> getTrackIDIterator()
 	{
-		Collection<TrackID> keys = trackMap.keySet();
-		return keys.iterator();
+		return new Iterator<TrackID>(){
+			private int next = present.nextSetBit(0);
+
+			public boolean hasNext(){
+				return next >= 0;
+			}
+
+			public TrackID next(){
+				if(next < 0)throw new NoSuchElementException();
+				TrackID id = new TrackID(next);
+				next = present.nextSetBit(next+1);
+				return id;
+			}
+
+			public void remove(){
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Checks whether a track ID belongs to a track inside the map.
+	 * @param trackNo The track ID.
+	 * @return True if the track is in the map.
+	 */
+	public boolean isPresent(int trackNo)
+	{
+		return trackNo >= 0 && present.get(trackNo);
 	}
-	
+
 	/**
-	 * Gets the trackInfo object at the specific TrackID
+	 * Gets the trackInfo object at the specific TrackID. The TrackInfo is a snapshot of the
+	 * track data; use the setters of this map to change the data.
 	 * @param id The TrackID to find the TrackInfo for.
-	 * @return The TrackInfo object.
+	 * @return The TrackInfo object, or null if the track is not in the map.
 	 */
 	public TrackInfo getTrackInfo(TrackID id)
 	{
-		return(trackMap.get(id));		
+		int trackNo = id.getIntID();
+		if(!isPresent(trackNo))return null;
+		TrackInfo info = new TrackInfo(id, getDescription(trackNo));
+		info.setNumberHashPoints(hashCounts[trackNo]);
+		info.setDuration(durations[trackNo]);
+		if(aliasOf[trackNo] != NO_TRACK)info.setAliasOf(new TrackID(aliasOf[trackNo]));
+		return info;
+	}
+
+	/**
+	 * Gets the full path of a track.
+	 * @param trackNo The track ID.
+	 * @return The path of the track's file.
+	 */
+	public String getPath(int trackNo)
+	{
+		return new String(pathChars, pathOffsets[trackNo], pathOffsets[trackNo+1]-pathOffsets[trackNo]);
+	}
+
+	/**
+	 * Gets the description of a track, which is the name of the track's file.
+	 * @param trackNo The track ID.
+	 * @return The description.
+	 */
+	public String getDescription(int trackNo)
+	{
+		int start = pathOffsets[trackNo];
+		int end = pathOffsets[trackNo+1];
+		int nameStart = start;
+		for(int i = start; i < end; i++){
+			if(pathChars[i] == File.separatorChar)nameStart = i+1;
+		}
+		return new String(pathChars, nameStart, end-nameStart);
+	}
+
+	/**
+	 * Sets the number of hash points extracted from a track.
+	 * @param id The track.
+	 * @param number The number of hash points.
+	 */
+	public void setNumberHashPoints(TrackID id, int number)
+	{
+		hashCounts[id.getIntID()] = number;
+	}
+
+	/**
+	 * Gets the number of hash points extracted from a track.
+	 * @param trackNo The track ID.
+	 * @return The number of hash points.
+	 */
+	public int getNumberHashPoints(int trackNo)
+	{
+		return hashCounts[trackNo];
+	}
+
+	/**
+	 * Sets the length of a track.
+	 * @param id The track.
+	 * @param seconds The length in seconds.
+	 */
+	public void setDuration(TrackID id, double seconds)
+	{
+		durations[id.getIntID()] = (float)seconds;
+	}
+
+	/**
+	 * Gets the length of a track.
+	 * @param trackNo The track ID.
+	 * @return The length in seconds.
+	 */
+	public double getDuration(int trackNo)
+	{
+		return durations[trackNo];
+	}
+
+	/**
+	 * Links a track as an alias of another track.
+	 * @param id The alias.
+	 * @param original The track it duplicates, or null to make the track an original again.
+	 */
+	public void setAliasOf(TrackID id, TrackID original)
+	{
+		aliasOf[id.getIntID()] = original == null ? NO_TRACK : original.getIntID();
 	}
-	
+
+	/**
+	 * Gets the tracks that are aliases of the given track.
+	 * @param id The original track.
+	 * @return The list of aliases.
+	 */
+	public ArrayList<TrackID> getAliasesOf(TrackID id)
+	{
+		ArrayList<TrackID> aliases = new ArrayList<TrackID>();
+		int trackNo = id.getIntID();
+		for(int i = present.nextSetBit(0); i >= 0; i = present.nextSetBit(i+1)){
+			if(aliasOf[i] == trackNo)aliases.add(new TrackID(i));
+		}
+		return aliases;
+	}
+
 	/**
 	 * Tests to see if the trackMap already has mapped the specified file
 	 * @param file The file to map the trackMap.
@@ -101,12 +450,113 @@ public class TrackMap
 	 */
 	public boolean containsTrack(File file)
 	{
-		for(TrackID id: trackMap.keySet()){
-			if(trackMap.get(id).getDescription().equals(file.getName()))return true;
+		return findSlot(file.getAbsolutePath()) >= 0;
+	}
+
+	/**
+	 * Gets the TrackID that the specified file was mapped to.
+	 * @param file The file to look for.
+	 * @return The TrackID of the file, or null if the file is not in the map.
+	 */
+	public TrackID getTrackID(File file)
+	{
+		int slot = findSlot(file.getAbsolutePath());
+		if(slot < 0)return null;
+		return new TrackID(pathTable[slot]);
+	}
+
+	/**
+	 * Writes the track map to a stream. Only the columns are written; the path table is rebuilt when reading.
+	 * @param out The stream to write to.
+	 * @throws IOException If the stream cannot be written.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeInt(nextTrackNo);
+		out.writeInt(pathCharsUsed);
+		for(int i = 0; i < pathCharsUsed; i++){
+			out.writeChar(pathChars[i]);
+		}
+		byte[] presentBits = new byte[(nextTrackNo+7)/8];
+		for(int i = 0; i < nextTrackNo; i++){
+			out.writeInt(pathOffsets[i+1]);
+			out.writeInt(hashCounts[i]);
+			out.writeFloat(durations[i]);
+			out.writeInt(aliasOf[i]);
+			if(present.get(i))presentBits[i/8] |= (byte)(1 << (i%8));
 		}
-		return false;
+		out.write(presentBits);
+	}
+
+	/**
+	 * Estimates the heap taken by the map: its columns, path pool and path table, on a 64-bit JVM.
+	 * @return The number of bytes.
+	 */
+	long getMemoryBytes()
+	{
+		return arrayBytes(pathChars.length, 2) + arrayBytes(pathOffsets.length, 4) + arrayBytes(hashCounts.length, 4)
+				+ arrayBytes(durations.length, 4) + arrayBytes(aliasOf.length, 4) + arrayBytes(pathTable.length, 4)
+				+ nextTrackNo/8;
 	}
-	/** 
+
+	/**
+	 * Gets the size of an array on the heap, with its header and padding.
+	 * @param length The length of the array.
+	 * @param elementBytes The size of one element.
+	 * @return The number of bytes.
+	 */
+	static long arrayBytes(long length, int elementBytes)
+	{
+		return (16 + length*elementBytes + 7) & ~7L;
+	}
+
+	/**
+	 * Gets the number of bytes writeTo writes.
+	 * @return The number of bytes.
+	 */
+	long getSerializedBytes()
+	{
+		return 12 + 2L*pathCharsUsed + 16L*nextTrackNo + (nextTrackNo+7)/8;
+	}
+
+	/**
+	 * Reads a track map that was written with writeTo.
+	 * @param in The stream to read from.
+	 * @return The track map.
+	 * @throws IOException If the stream cannot be read or does not hold a track map.
+	 */
+	public static TrackMap readFrom(DataInputStream in) throws IOException
+	{
+		if(in.readInt() != MAGIC)throw new IOException("Not a track map.");
+		TrackMap map = new TrackMap();
+		int tracks = in.readInt();
+		map.ensureCapacity(tracks);
+		map.nextTrackNo = tracks;
+		map.pathCharsUsed = in.readInt();
+		map.pathChars = new char[Math.max(map.pathCharsUsed, 1024)];
+		for(int i = 0; i < map.pathCharsUsed; i++){
+			map.pathChars[i] = in.readChar();
+		}
+		for(int i = 0; i < tracks; i++){
+			map.pathOffsets[i+1] = in.readInt();
+			map.hashCounts[i] = in.readInt();
+			map.durations[i] = in.readFloat();
+			map.aliasOf[i] = in.readInt();
+		}
+		byte[] presentBits = new byte[(tracks+7)/8];
+		in.readFully(presentBits);
+		for(int i = 0; i < tracks; i++){
+			if((presentBits[i/8] & (1 << (i%8))) != 0){
+				map.present.set(i);
+				map.numberOfTracks++;
+				map.insertPath(map.pathHashCode(i), i);
+			}
+		}
+		return map;
+	}
+
+	/**
 	 * Inner class that will serve as a filter for the files ending in supported audio formats.
 	 * @author Brook
 	 *
@@ -114,14 +564,14 @@ public class TrackMap
 	public static class AudioFileFilter implements FilenameFilter /*extends javax.swing.filechooser.FileFilter*/
 	{
 		private AudioFileFormat.Type[] types = AudioSystem.getAudioFileTypes();
-	
+
 		public boolean accept(File dir, String name){
 			String lowercaseName = name.toLowerCase();
 			for(int i=0; i<types.length; i++){
 				if (lowercaseName.endsWith(types[i].getExtension())) return true;
-			} 
-			return false;	
-		}	
+			}
+			return false;
+		}
 	}
 
 }
@@ -0,0 +1,313 @@
+package bazam;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+import javax.sound.sampled.*;
+
+/**
+ * A WAV file whose samples are read straight from a memory mapping of the file, without Java Sound.
+ * Plain RIFF files, WAVE_FORMAT_EXTENSIBLE and RF64 (for data over 4 GB) are understood, with any sample
+ * format PcmDecoder supports. The data chunk is mapped read-only in regions of whole frames, so samples
+ * are decoded from the page cache with no copy on the heap, and the operating system's read-ahead does
+ * the reading; a recording of any length is decoded a block at a time with read.
+ * <p>
+ * The file is closed once it is mapped; the mapping lasts until the WavFile is garbage collected.
+ * @author Brook
+ *
+ */
+public class WavFile
+{
+	/** The largest number of bytes mapped as one region; regions always hold whole frames */
+	public static long REGION_BYTES = 1L << 30;
+
+	/** Format tag of integer PCM samples */
+	private static final int WAVE_FORMAT_PCM = 1;
+
+	/** Format tag of float samples */
+	private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+
+	/** Format tag of a format whose actual tag is the start of its sub-format GUID */
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+	/** The chunk size RF64 files give for the sizes kept in their ds64 chunk */
+	private static final long RF64_SIZE = 0xFFFFFFFFL;
+
+	/** The file */
+	private File file;
+
+	/** The format of the samples */
+	private AudioFormat format;
+
+	/** Decodes the samples */
+	private PcmDecoder decoder;
+
+	/** The number of frames of the data chunk */
+	private long frameLength;
+
+	/** The number of frames of every region but the last */
+	private long regionFrames;
+
+	/** The read-only mappings of the data chunk, in order */
+	private ByteBuffer[] regions;
+
+	/**
+	 * Constructs a WAV file once its header is read.
+	 */
+	private WavFile(File file, AudioFormat format)
+	{
+		this.file = file;
+		this.format = format;
+		decoder = new PcmDecoder(format);
+	}
+
+	/**
+	 * Opens a WAV file and maps its samples.
+	 * @param file The file.
+	 * @return The WAV file.
+	 * @throws UnsupportedAudioFileException If the file is not a WAV file, or its samples are not PCM.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static WavFile open(File file) throws UnsupportedAudioFileException, IOException
+	{
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try{
+			return readHeader(file, channel);
+		} finally{
+			channel.close();//the mapping stays valid
+		}
+	}
+
+	/**
+	 * Reads the chunks of a file up to its data chunk, and maps the data chunk.
+	 * @param file The file.
+	 * @param channel The open file.
+	 * @return The WAV file.
+	 * @throws UnsupportedAudioFileException If the file is not a WAV file, or its samples are not PCM.
+	 * @throws IOException If the file cannot be read.
+	 */
+	private static WavFile readHeader(File file, FileChannel channel) throws UnsupportedAudioFileException, IOException
+	{
+		long fileSize = channel.size();
+		ByteBuffer header = read(channel, 0, 12);
+		if(header == null)throw new UnsupportedAudioFileException("Not a WAV file: " + file);
+		int riff = header.getInt(0);
+		boolean rf64 = riff == fourCC("RF64");
+		if(riff != fourCC("RIFF") && !rf64 || header.getInt(8) != fourCC("WAVE"))
+			throw new UnsupportedAudioFileException("Not a WAV file: " + file);
+		long rf64DataSize = -1;
+		AudioFormat format = null;
+		long position = 12;
+		while(true){
+			ByteBuffer chunk = read(channel, position, 8);
+			if(chunk == null)throw new UnsupportedAudioFileException("No data chunk in " + file);
+			int id = chunk.getInt(0);
+			long size = chunk.getInt(4) & 0xFFFFFFFFL;
+			long body = position + 8;
+			if(id == fourCC("ds64")){
+				ByteBuffer ds64 = read(channel, body, 16);
+				if(ds64 == null)throw new UnsupportedAudioFileException("Truncated ds64 chunk in " + file);
+				rf64DataSize = ds64.getLong(8);
+			} else if(id == fourCC("fmt ")){
+				ByteBuffer fmt = read(channel, body, (int)Math.min(size, 40));
+				if(fmt == null || size < 16)throw new UnsupportedAudioFileException("Truncated fmt chunk in " + file);
+				format = readFormat(fmt, file);
+			} else if(id == fourCC("data")){
+				if(format == null)throw new UnsupportedAudioFileException("No fmt chunk before the data of " + file);
+				if(rf64 && size == RF64_SIZE){//the real size is in the ds64 chunk, if the recording was finished
+					size = rf64DataSize >= 0 ? rf64DataSize : fileSize - body;
+				}
+				if(body + size > fileSize)size = fileSize - body;//a recording that was never finished, or cut short
+				WavFile wav = new WavFile(file, format);
+				wav.map(channel, body, size);
+				return wav;
+			}
+			position = body + size + (size & 1);//chunks are padded to an even size
+		}
+	}
+
+	/**
+	 * Reads the format of the samples from a fmt chunk.
+	 * @param fmt The body of the chunk, at least 16 bytes.
+	 * @param file The file, for messages.
+	 * @return The format.
+	 * @throws UnsupportedAudioFileException If the samples are not integer or float PCM.
+	 */
+	private static AudioFormat readFormat(ByteBuffer fmt, File file) throws UnsupportedAudioFileException
+	{
+		int tag = fmt.getShort(0) & 0xFFFF;
+		int channels = fmt.getShort(2) & 0xFFFF;
+		long sampleRate = fmt.getInt(4) & 0xFFFFFFFFL;
+		int blockAlign = fmt.getShort(12) & 0xFFFF;
+		int bits = fmt.getShort(14) & 0xFFFF;
+		if(tag == WAVE_FORMAT_EXTENSIBLE){
+			if(fmt.limit() < 26)throw new UnsupportedAudioFileException("Truncated extensible format in " + file);
+			tag = fmt.getShort(24) & 0xFFFF;//the first two bytes of the sub-format GUID
+		}
+		AudioFormat.Encoding encoding;
+		if(tag == WAVE_FORMAT_PCM){
+			encoding = bits <= 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED;
+		} else if(tag == WAVE_FORMAT_IEEE_FLOAT){
+			encoding = AudioFormat.Encoding.PCM_FLOAT;
+		} else {
+			throw new UnsupportedAudioFileException("WAV format " + tag + " is not PCM: " + file);
+		}
+		AudioFormat format = new AudioFormat(encoding, sampleRate, bits, channels, blockAlign, sampleRate, false);
+		if(!PcmDecoder.isSupported(format))throw new UnsupportedAudioFileException("Unsupported " + format + ": " + file);
+		return format;
+	}
+
+	/**
+	 * Maps the data chunk.
+	 * @param channel The open file.
+	 * @param offset The position of the first frame inside the file.
+	 * @param size The size of the chunk.
+	 * @throws IOException If the file cannot be mapped.
+	 */
+	private void map(FileChannel channel, long offset, long size) throws IOException
+	{
+		int frameSize = decoder.getFrameSize();
+		frameLength = size/frameSize;
+		regionFrames = Math.max(1, Math.min(REGION_BYTES, Integer.MAX_VALUE)/frameSize);
+		regions = new ByteBuffer[(int)((frameLength + regionFrames - 1)/regionFrames)];
+		for(int i = 0; i < regions.length; i++){
+			long first = i*regionFrames;
+			long frames = Math.min(regionFrames, frameLength - first);
+			regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first*frameSize, frames*frameSize)
+					.asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Reads bytes at a position of a file.
+	 * @param channel The file.
+	 * @param position The position.
+	 * @param length The number of bytes.
+	 * @return The bytes in little-endian order, or null if the file ends first.
+	 * @throws IOException If the file cannot be read.
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while(bytes.hasRemaining()){
+			if(channel.read(bytes, position + bytes.position()) < 0)return null;
+		}
+		bytes.flip();
+		return bytes;
+	}
+
+	/**
+	 * Gets a chunk ID as read from a little-endian buffer.
+	 * @param id The four characters of the ID.
+	 * @return The ID.
+	 */
+	private static int fourCC(String id)
+	{
+		return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+	}
+
+	/**
+	 * Gets the format of the samples.
+	 * @return The format.
+	 */
+	public AudioFormat getFormat()
+	{
+		return format;
+	}
+
+	/**
+	 * Gets the number of frames of the file.
+	 * @return The number of frames.
+	 */
+	public long getFrameLength()
+	{
+		return frameLength;
+	}
+
+	/**
+	 * Gets the length of the file.
+	 * @return In seconds.
+	 */
+	public double getDuration()
+	{
+		return frameLength/format.getFrameRate();
+	}
+
+	/**
+	 * Gets the number of regions the data chunk is mapped in.
+	 * @return The number of regions.
+	 */
+	public int getRegionCount()
+	{
+		return regions.length;
+	}
+
+	/**
+	 * Gets the number of frames of every region but the last, which may hold fewer.
+	 * @return The number of frames.
+	 */
+	public long getRegionFrames()
+	{
+		return regionFrames;
+	}
+
+	/**
+	 * Gets a read-only view of the samples of a region, as they are in the file.
+	 * @param region The region, from 0.
+	 * @return A new view of the mapping, from the first frame of the region to its last.
+	 */
+	public ByteBuffer getRegion(int region)
+	{
+		return regions[region].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Decodes frames to mono samples.
+	 * @param firstFrame The first frame.
+	 * @param samples Receives the samples.
+	 * @param offset The position of the first sample inside the array.
+	 * @param frames The largest number of frames to decode.
+	 * @return The number of frames decoded, fewer than frames at the end of the file.
+	 */
+	public int read(long firstFrame, double[] samples, int offset, int frames)
+	{
+		int done = 0;
+		int frameSize = decoder.getFrameSize();
+		while(done < frames && firstFrame + done < frameLength){
+			long frame = firstFrame + done;
+			int region = (int)(frame/regionFrames);
+			long inRegion = frame - region*regionFrames;
+			int n = (int)Math.min(frames - done, Math.min(regionFrames - inRegion, frameLength - frame));
+			decoder.decode(regions[region], (int)inRegion*frameSize, n, samples, offset + done);
+			done += n;
+		}
+		return done;
+	}
+
+	/**
+	 * Decodes the whole file, block by block.
+	 * @param sink Receives the samples.
+	 * @return The number of frames decoded.
+	 */
+	public long read(SampleSink sink)
+	{
+		double[] samples = new double[PcmDecoder.BLOCK_FRAMES];
+		long frame = 0;
+		while(frame < frameLength){
+			long start = System.nanoTime();
+			int n = read(frame, samples, 0, samples.length);
+			Metrics.DECODE.record(start, (long)n*decoder.getFrameSize(), n);
+			sink.process(samples, 0, n);
+			frame += n;
+		}
+		return frame;
+	}
+
+	/**
+	 * Gets the path of the file.
+	 */
+	public String toString()
+	{
+		return file.getPath();
+	}
+}
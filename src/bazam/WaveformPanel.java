@@ -22,7 +22,7 @@ public class WaveformPanel extends JPanel
 	private Signal signal;	
 	
 	/** Contains the samples of data of audio */
-	private double[] samples;
+	private SampleStore samples;
 	
 	/** The scale of the waveform horizontally	 */
 	private double hscale = 0.1;
@@ -42,7 +42,7 @@ public class WaveformPanel extends JPanel
 		super();
 		this.signal = signal;
 		samples = signal.getSamples();		
-		numberOfSamples = samples.length;
+		numberOfSamples = samples.length();
 		double width = numberOfSamples*hscale;
 		setPreferredSize(new Dimension((int)width,HEIGHT));
 		//setPreferredSize(new Dimension(WIDTH, HEIGHT));
@@ -69,10 +69,10 @@ public class WaveformPanel extends JPanel
 		getVscale();
 		
 		g.setColor(Color.BLUE);
-		for(int t = 0; t < samples.length; t++){
-			double scaledSample = samples[t] * vscale;	
-			double scaledX = (double)(((double)t/(double)samples.length)*width);
-			//double scaledX = (double)(((double)t/(double)samples.length)*WIDTH);
+		for(int t = 0; t < samples.length(); t++){
+			double scaledSample = samples.get(t) * vscale;	
+			double scaledX = (double)(((double)t/(double)samples.length())*width);
+			//double scaledX = (double)(((double)t/(double)samples.length())*WIDTH);
 			
 			int x = (int) scaledX;
 			int y = (int)((getHeight()/2 - scaledSample));
@@ -83,6 +83,16 @@ public class WaveformPanel extends JPanel
 		}		
 	}
 	
+	/**
+	 * Gets the sample drawn at a horizontal position of the panel.
+	 * @param x The position, in pixels.
+	 * @return The index of the sample, kept inside the signal.
+	 */
+	public int getSampleAt(int x)
+	{
+		return (int)Math.max(0, Math.min(numberOfSamples, x/hscale));
+	}
+	
 	/**
 	 * Zooms in to the waveform.
 	 */
@@ -124,13 +134,13 @@ public class WaveformPanel extends JPanel
 	{
 		double min = Double.MAX_VALUE;
 		double max = Double.MIN_VALUE;
-		for(int i = 0; i < samples.length; i++){
-			double sample = samples[i];
+		for(int i = 0; i < samples.length(); i++){
+			double sample = samples.get(i);
 			if(sample < min)
 				min = sample;
 		}
-		for(int i = 0; i < samples.length; i++){
-			double sample = samples[i];
+		for(int i = 0; i < samples.length(); i++){
+			double sample = samples.get(i);
 			if(sample > max)
 				max = sample;
 		}